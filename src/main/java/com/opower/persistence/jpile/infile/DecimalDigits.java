@@ -0,0 +1,174 @@
+package com.opower.persistence.jpile.infile;
+
+/**
+ * Arithmetic used by {@link InfileDataBuffer} to print numbers as ASCII digits without creating Strings. Decimal values
+ * are represented as a non-negative unscaled {@code long} plus a scale, the same way {@link java.math.BigDecimal} does.
+ * <p/>
+ * Doubles are only handled here when the result can be proven exact using plain {@code double} arithmetic. Otherwise
+ * the methods return {@link #UNSUPPORTED} and callers fall back to the JDK's (allocating) conversions.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class DecimalDigits {
+    /**
+     * Returned when a value cannot be converted exactly with the fast path.
+     */
+    static final long UNSUPPORTED = -1;
+
+    // Every long below this is exactly representable as a double
+    private static final double TWO_TO_53 = 9007199254740992.0;
+
+    // Powers of ten that are exact as doubles (up to 1e22) and as longs (up to 1e18)
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[23];
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    static {
+        double d = 1;
+        for (int i = 0; i < DOUBLE_POWERS_OF_TEN.length; i++) {
+            DOUBLE_POWERS_OF_TEN[i] = d;
+            d *= 10;
+        }
+        long l = 1;
+        for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = l;
+            l *= 10;
+        }
+    }
+
+    private DecimalDigits() {
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the number of decimal digits needed to print the value
+     */
+    static int digitCount(long value) {
+        int count = 1;
+        while (count < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[count]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Rounds a non-negative double to a fixed number of fractional digits using
+     * {@link java.math.RoundingMode#HALF_EVEN}, the same rounding {@link java.text.DecimalFormat} uses. The product of
+     * the value and the power of ten can be off by half an ulp, which only matters when it lands next to a tie. Those
+     * values are reported as unsupported so that the caller can round the exact binary value instead.
+     *
+     * @param value non-negative value to round
+     * @param scale the number of fractional digits
+     * @return the unscaled value, or {@link #UNSUPPORTED}
+     */
+    static long roundHalfEven(double value, int scale) {
+        if (scale >= LONG_POWERS_OF_TEN.length) {
+            return UNSUPPORTED;
+        }
+        double product = value * DOUBLE_POWERS_OF_TEN[scale];
+        // Also rejects NaN and infinity
+        if (!(product < TWO_TO_53)) {
+            return UNSUPPORTED;
+        }
+        double fraction = product - Math.floor(product);
+        if (Math.abs(fraction - 0.5) <= Math.ulp(product)) {
+            return UNSUPPORTED;
+        }
+        return (long) Math.rint(product);
+    }
+
+    /**
+     * Finds the smallest number of fractional digits that still parses back to exactly the same value. Division of a
+     * long below 2<sup>53</sup> by an exact power of ten is correctly rounded, so it is the same as what the database
+     * gets when it parses the digits.
+     *
+     * @param value           non-negative value to print
+     * @param singlePrecision {@code true} if the value came from a float and only needs to round trip as a float
+     * @return the number of fractional digits, or {@code -1} if there is no exact representation below 2<sup>53</sup>
+     */
+    static int shortestScale(double value, boolean singlePrecision) {
+        for (int scale = 0; scale < LONG_POWERS_OF_TEN.length; scale++) {
+            double product = value * DOUBLE_POWERS_OF_TEN[scale];
+            if (!(product < TWO_TO_53)) {
+                return -1;
+            }
+            double parsed = Math.rint(product) / DOUBLE_POWERS_OF_TEN[scale];
+            if (singlePrecision ? (float) parsed == (float) value : parsed == value) {
+                return scale;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param value a non-negative value
+     * @param scale the number of fractional digits
+     * @return the unscaled value for {@link #shortestScale(double, boolean)}
+     */
+    static long unscaled(double value, int scale) {
+        return (long) Math.rint(value * DOUBLE_POWERS_OF_TEN[scale]);
+    }
+
+    /**
+     * Removes trailing fractional zeros, returning the scale that is left. Use {@link #stripZeros(long, int, int)} to
+     * get the unscaled value that goes with it.
+     *
+     * @param unscaled non-negative unscaled value
+     * @param scale    the current scale
+     * @return the smallest scale that keeps the value the same
+     */
+    static int strippedScale(long unscaled, int scale) {
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        return scale;
+    }
+
+    /**
+     * @return the unscaled value after reducing the scale from {@code scale} to {@code newScale}
+     */
+    static long stripZeros(long unscaled, int scale, int newScale) {
+        return unscaled / LONG_POWERS_OF_TEN[scale - newScale];
+    }
+
+    /**
+     * @param unscaled non-negative unscaled value
+     * @param scale    number of fractional digits, between 0 and 18
+     * @return the number of bytes {@link #write(long, int, byte[], int)} will write
+     */
+    static int length(long unscaled, int scale) {
+        if (scale == 0) {
+            return digitCount(unscaled);
+        }
+        return Math.max(digitCount(unscaled), scale + 1) + 1;
+    }
+
+    /**
+     * Writes a decimal in plain notation. There is always at least one integer digit, so 0.5 is written as
+     * {@code 0.5}, and exactly {@code scale} fractional digits.
+     *
+     * @param unscaled non-negative unscaled value
+     * @param scale    number of fractional digits, between 0 and 18
+     * @param out      destination array
+     * @param pos      index of the first byte to write
+     * @return the index after the last byte written
+     */
+    static int write(long unscaled, int scale, byte[] out, int pos) {
+        int end = pos + length(unscaled, scale);
+        int i = end;
+        for (int digits = 0; digits < scale; digits++) {
+            out[--i] = (byte) ('0' + (unscaled % 10));
+            unscaled /= 10;
+        }
+        if (scale > 0) {
+            out[--i] = '.';
+        }
+        do {
+            out[--i] = (byte) ('0' + (unscaled % 10));
+            unscaled /= 10;
+        }
+        while (unscaled != 0);
+        return end;
+    }
+}
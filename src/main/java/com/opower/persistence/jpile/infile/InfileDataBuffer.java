@@ -2,27 +2,36 @@ package com.opower.persistence.jpile.infile;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Strings;
 import com.opower.persistence.jpile.reflection.CachedProxy;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
+import java.nio.charset.MalformedInputException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.UUID;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.ImmutableSet.of;
@@ -39,6 +48,9 @@ import static com.google.common.collect.ImmutableSet.of;
  * level interaction and
  * management of these buffers.
  * <p/>
+ * The infile is either a single array or, given an {@link InfileSegmentPool}, a chain of smaller segments that can be
+ * allocated off-heap and are read back with {@link #asInputStream()} without being copied into one array.
+ * <p/>
  * Instances of this class are not safe for use by multiple threads.
  *
  * @author Sean-Michael
@@ -64,47 +76,147 @@ public class InfileDataBuffer implements InfileRow {
     // See http://dev.mysql.com/doc/refman/5.1/en/load-data.html
     protected static final Set<Byte> BYTES_NEEDING_ESCAPING =
             of((byte) '\0', (byte) '\b', (byte) '\n', (byte) '\r', (byte) '\t', (byte) MYSQL_ESCAPE_CHAR, (byte) 26);
+    /**
+     * The largest number of fractional seconds MySQL supports, as in {@code DATETIME(6)}.
+     */
+    public static final int MAX_FRACTIONAL_DIGITS = 6;
+
+    private static final int UUID_LENGTH = 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+
+    // Decimals with fewer digits than this have an unscaled value that fits in a long
+    private static final int MAX_FAST_DECIMAL_DIGITS = 19;
     private static final String TEMPORAL_TYPE_EXCEPTION =
             "The Temporal.value should be TemporalType.DATE, TemporalType.TIME, or TemporalType.TIMESTAMP on method [%s]";
-    // This Pattern matches on all of the BYTES_NEEDING_ESCAPING
-    private static final Pattern ESCAPE_PATTERN = Pattern.compile("[\b\n\r\t\f\0\u001A\\\\]");
+    // Lookup tables indexed by ASCII code. Strings have always escaped form feed as well, so it is only in the char table.
+    private static final boolean[] BYTE_NEEDS_ESCAPING = new boolean[128];
+    private static final boolean[] CHAR_NEEDS_ESCAPING = new boolean[128];
 
-    // Using Joda time which is thread safe
+    static {
+        for (byte b : BYTES_NEEDING_ESCAPING) {
+            BYTE_NEEDS_ESCAPING[b] = true;
+            CHAR_NEEDS_ESCAPING[b] = true;
+        }
+        CHAR_NEEDS_ESCAPING['\f'] = true;
+    }
+
+    // Using Joda time which is thread safe. Only used for years that do not fit in four digits.
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd");
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss");
     private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int MILLIS_PER_SECOND = 1000;
+    private static final int NANOS_PER_MILLI = 1000000;
 
     // Utilities
     private final CharsetEncoder encoder;
+    private final boolean utf8;
 
     // Common byte sequences
+    private final byte[] escapeBytes;
     private final byte[] nullBytes;
     private final byte[] tabBytes;
     private final byte[] newlineBytes;
 
-    // Buffers
-    private final ByteBuffer infileBuffer;
+    // Buffers. The infile is a chain of segments, only the last of which is written to. Without a segment pool the
+    // chain is a single buffer of the full infile size.
+    private final InfileSegmentPool segmentPool;
+    private final int infileBufferSize;
+    private final int maxSegments;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer infileBuffer;
     private final ByteBuffer rowBuffer;
 
+    // Bytes in the segments before the current one
+    private int filledBytes;
+
+    // Where the current row is written: the row buffer, or the current segment if there is no row buffer
+    private ByteBuffer row;
+
+    // Position of the current row in the current segment before and after its leading newline. Always 0 with a row
+    // buffer.
+    private int rowMark;
+    private int rowStart;
+
+    // The last date written by appendInstant(), since rows usually share a day
+    private final byte[] cachedDate = new byte[TemporalDigits.DATE_LENGTH];
+    private long cachedEpochDay = Long.MIN_VALUE;
+
+    // Scratch space for writing UUIDs as raw bytes
+    private final byte[] uuidBytes = new byte[UUID_LENGTH];
+
     private PersistenceAnnotationInspector persistenceAnnotationInspector =
             CachedProxy.create(new PersistenceAnnotationInspector());
 
     public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize) {
+        this(charset, infileBufferSize, null, ByteBuffer.allocate(checkRowBufferSize(rowBufferSize, infileBufferSize)));
+    }
+
+    /**
+     * Creates a buffer without a separate row buffer. Every row is encoded straight into the infile buffer, so rows are
+     * copied once instead of twice and are only limited by the size of the infile buffer. A row that does not fit throws
+     * {@link java.nio.BufferOverflowException} while it is being appended; call {@link #rollbackRow()} to remove the
+     * partial row, flush the infile and append the row again.
+     *
+     * @param charset          the charset to encode rows with
+     * @param infileBufferSize the size of the infile buffer
+     */
+    public InfileDataBuffer(Charset charset, int infileBufferSize) {
+        this(charset, infileBufferSize, null, null);
+    }
+
+    /**
+     * Creates a buffer whose infile is a chain of segments taken from a pool, instead of one array of
+     * {@code infileBufferSize} bytes. The infile grows a segment at a time up to {@code infileBufferSize}, and its
+     * segments go back to the pool when it is cleared or released.
+     * <p/>
+     * With heap segments rows are written in place, see {@link #InfileDataBuffer(Charset, int)}, and a row must fit into
+     * a single segment. A row that does not fit into what is left of the current segment throws
+     * {@link java.nio.BufferOverflowException}; call {@link #rollbackRow()} and {@link #nextSegment()} before appending
+     * the row again. Direct segments cannot be written in place, so rows are staged in a row buffer of
+     * {@link #DEFAULT_ROW_BUFFER_SIZE} bytes.
+     *
+     * @param charset          the charset to encode rows with
+     * @param infileBufferSize the most bytes the infile holds before it has to be flushed
+     * @param segmentPool      where to take segments from
+     */
+    public InfileDataBuffer(Charset charset, int infileBufferSize, InfileSegmentPool segmentPool) {
+        this(charset,
+             infileBufferSize,
+             Preconditions.checkNotNull(segmentPool, "No segment pool set."),
+             segmentPool.isDirect() ? ByteBuffer.allocate(Math.min(DEFAULT_ROW_BUFFER_SIZE, infileBufferSize)) : null);
+    }
+
+    private InfileDataBuffer(Charset charset, int infileBufferSize, InfileSegmentPool segmentPool, ByteBuffer rowBuffer) {
         Preconditions.checkNotNull(charset, "No charset set for encoding.");
         this.encoder = charset.newEncoder();
+        this.utf8 = Charsets.UTF_8.equals(charset);
 
         // This not using the encoder because that API is tedious just to encode a few strings.
+        this.escapeBytes = String.valueOf(MYSQL_ESCAPE_CHAR).getBytes(charset);
         this.tabBytes = "\t".getBytes(charset);
         this.newlineBytes = "\n".getBytes(charset);
         this.nullBytes = MYSQL_NULL_STRING.getBytes(charset);
 
+        this.segmentPool = segmentPool;
+        this.infileBufferSize = infileBufferSize;
+        this.rowBuffer = rowBuffer;
+        if (segmentPool == null) {
+            this.maxSegments = 1;
+            this.infileBuffer = ByteBuffer.allocate(infileBufferSize);
+        }
+        else {
+            this.maxSegments = Math.max(1, infileBufferSize / segmentPool.getSegmentSize());
+            this.infileBuffer = segmentPool.acquire();
+        }
+        this.segments.add(this.infileBuffer);
+        this.row = rowBuffer != null ? rowBuffer : this.infileBuffer;
+    }
+
+    private static int checkRowBufferSize(int rowBufferSize, int infileBufferSize) {
         // Make sure the row buffer is not larger than the infile buffer. If that were allowed you'd get into cases
         // where you would not be able to write rows to the infile buffer even if it were empty.
         Preconditions.checkState(rowBufferSize <= infileBufferSize,
                                  "Cannot create a row buffer larger than the infile buffer.");
-
-        this.rowBuffer = ByteBuffer.allocate(rowBufferSize);
-        this.infileBuffer = ByteBuffer.allocate(infileBufferSize);
+        return rowBufferSize;
     }
 
     public InfileDataBuffer(Charset charset) {
@@ -115,16 +227,72 @@ public class InfileDataBuffer implements InfileRow {
         this(Charsets.UTF_8);
     }
 
+    /**
+     * Creates an empty buffer with the same charset, sizes and segment pool as this one, for example to keep adding rows
+     * while this one is being flushed.
+     *
+     * @return a new buffer
+     */
+    public InfileDataBuffer newBuffer() {
+        Charset charset = this.encoder.charset();
+        if (this.segmentPool != null) {
+            return new InfileDataBuffer(charset, this.infileBufferSize, this.segmentPool);
+        }
+        if (this.rowBuffer == null) {
+            return new InfileDataBuffer(charset, this.infileBufferSize);
+        }
+        return new InfileDataBuffer(charset, this.infileBufferSize, this.rowBuffer.capacity());
+    }
+
+    /**
+     * @return the charset rows are encoded with
+     */
+    public Charset getCharset() {
+        return this.encoder.charset();
+    }
+
+    /**
+     * @return true if rows are written straight into the infile buffer, see {@link #InfileDataBuffer(Charset, int)}
+     */
+    public boolean isWritingRowsInPlace() {
+        return this.rowBuffer == null;
+    }
+
+    /**
+     * @return the number of segments the infile is using
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * @return the number of bytes in the infile
+     */
+    public int getInfileSize() {
+        return this.filledBytes + this.infileBuffer.position();
+    }
+
     /**
      * Attempts to add the current row to the infile buffer. If there is insufficient room for the current row
      * and -- if there is any other data in the buffer -- a newline, then the row is not added and the method returns
      * {@code false}.
+     * <p/>
+     * When rows are written in place the row is already in the infile buffer, so this always returns {@code true}. An
+     * empty row is removed together with its newline.
      *
      * @return {@code true} if the current row fits into the infile (and has been added)
      */
     public boolean addRowToInfile() {
-        boolean addNewline = this.infileBuffer.position() > 0;
-        if (this.infileBuffer.remaining() < (this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0))) {
+        if (this.isWritingRowsInPlace()) {
+            if (this.infileBuffer.position() == this.rowStart) {
+                this.rollbackRow();
+            }
+            return true;
+        }
+
+        boolean addNewline = this.getInfileSize() > 0;
+        int length = this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0);
+        if (this.infileBuffer.remaining() < length && !this.nextSegment()) {
             return false;
         }
 
@@ -140,6 +308,48 @@ public class InfileDataBuffer implements InfileRow {
         return true;
     }
 
+    /**
+     * Discards the current row. When rows are written in place this removes whatever part of the row already made it
+     * into the infile buffer, including its newline, leaving the infile as it was before {@link #newRow()}.
+     */
+    public void rollbackRow() {
+        if (this.isWritingRowsInPlace()) {
+            this.infileBuffer.position(this.rowMark);
+            this.rowStart = this.rowMark;
+        }
+        else {
+            this.rowBuffer.clear();
+        }
+    }
+
+    /**
+     * Starts writing rows into a new segment, leaving the rest of the current one unused. Clients writing rows in place
+     * call this after {@link #rollbackRow()} when a row did not fit into the current segment. Staged rows never span
+     * segments either; the row buffer is always smaller than a segment.
+     *
+     * @return {@code false} if the infile already has all of its segments, if the segment pool has used up its memory
+     * budget, or if the current segment is empty so that a new one would not help. The infile must be flushed in that
+     * case.
+     */
+    public boolean nextSegment() {
+        if (this.segments.size() >= this.maxSegments || this.infileBuffer.position() == 0) {
+            return false;
+        }
+        ByteBuffer segment = this.segmentPool.tryAcquire();
+        if (segment == null) {
+            return false;
+        }
+        this.filledBytes += this.infileBuffer.position();
+        this.infileBuffer = segment;
+        this.segments.add(segment);
+        if (this.isWritingRowsInPlace()) {
+            this.row = segment;
+        }
+        this.rowMark = 0;
+        this.rowStart = 0;
+        return true;
+    }
+
     /**
      * @return true if the rowBuffer is empty.
      */
@@ -149,37 +359,88 @@ public class InfileDataBuffer implements InfileRow {
 
     /**
      * Gets a view of the contents of the infile buffer as input stream. Once you are done reading, you <i>must</i>
-     * clear or reset this buffer.
+     * clear or reset this buffer. The stream reads across the segments without copying them.
      *
      * @return buffer contents
      */
     // CR MB: Do we want to add status flags to this class to prevent undefined use?
     public InputStream asInputStream() {
-        this.infileBuffer.flip();
-        return new ByteArrayInputStream(this.infileBuffer.array(), 0, this.infileBuffer.limit());
+        if (this.segments.size() == 1 && this.infileBuffer.hasArray()) {
+            this.infileBuffer.flip();
+            return new ByteArrayInputStream(this.infileBuffer.array(), 0, this.infileBuffer.limit());
+        }
+        for (ByteBuffer segment : this.segments) {
+            segment.flip();
+        }
+        return new SegmentInputStream(this.segments);
+    }
+
+    /**
+     * Moves the contents of the infile buffer into a pipe that a statement may already be reading, and clears the
+     * infile. The rows are separated by a newline from rows written to the pipe before. Only call this between rows.
+     *
+     * @param pipe to write to
+     */
+    public void drainTo(InfilePipe pipe) {
+        if (this.getInfileSize() == 0) {
+            return;
+        }
+        if (pipe.getBytesWritten() > 0) {
+            pipe.write(ByteBuffer.wrap(this.newlineBytes));
+        }
+        for (ByteBuffer segment : this.segments) {
+            segment.flip();
+            pipe.write(segment);
+        }
+        this.clear();
     }
 
     /**
      * Resets this buffer, clearing both the current row and the infile buffer.
      */
     public void reset() {
-        this.infileBuffer.clear();
-        this.rowBuffer.clear();
+        this.clear();
+        if (this.rowBuffer != null) {
+            this.rowBuffer.clear();
+        }
     }
 
     /**
-     * Clears the contents of the infile buffer, but maintains the state of the current row.
+     * Clears the contents of the infile buffer, but maintains the state of the current row. When rows are written in
+     * place the current row is part of the infile, so it is cleared as well. All segments but the first go back to the
+     * pool.
      */
     public void clear() {
+        while (this.segments.size() > 1) {
+            this.segmentPool.release(this.segments.remove(this.segments.size() - 1));
+        }
+        this.infileBuffer = this.segments.get(0);
         this.infileBuffer.clear();
+        if (this.isWritingRowsInPlace()) {
+            this.row = this.infileBuffer;
+        }
+        this.filledBytes = 0;
+        this.rowMark = 0;
+        this.rowStart = 0;
+    }
+
+    /**
+     * Clears this buffer and gives all of its segments back to the pool. The buffer must not be used afterwards. Does
+     * nothing for buffers without a segment pool.
+     */
+    public void release() {
+        if (this.segmentPool != null && !this.segments.isEmpty()) {
+            this.clear();
+            this.segmentPool.release(this.segments.remove(0));
+        }
     }
 
     /**
      * Appends an encoded tab ('\t') character if current row has any data in it. Otherwise, it does nothing.
      */
     private void appendTabIfNeeded() {
-        if (this.rowBuffer.position() > 0) {
-            this.rowBuffer.put(this.tabBytes);
+        if (this.row.position() > this.rowStart) {
+            this.row.put(this.tabBytes);
         }
     }
 
@@ -193,36 +454,262 @@ public class InfileDataBuffer implements InfileRow {
     @Override
     public final InfileRow append(byte[] bytes) {
         this.appendTabIfNeeded();
+        this.appendEscapedBytes(bytes, 0, bytes.length);
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(ByteBuffer bytes) {
+        if (bytes == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        if (bytes.hasArray()) {
+            int start = bytes.arrayOffset() + bytes.position();
+            this.appendEscapedBytes(bytes.array(), start, start + bytes.remaining());
+        }
+        else {
+            for (int i = bytes.position(); i < bytes.limit(); i++) {
+                this.appendByte(bytes.get(i));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(UUID uuid) {
+        if (uuid == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        putLong(uuid.getMostSignificantBits(), this.uuidBytes, 0);
+        putLong(uuid.getLeastSignificantBits(), this.uuidBytes, UUID_LENGTH / 2);
+        this.appendEscapedBytes(this.uuidBytes, 0, UUID_LENGTH);
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendHex(byte[] bytes) {
+        if (bytes == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, bytes.length * 2, offset + this.row.limit());
         for (byte b : bytes) {
-            appendByte(b);
+            out[pos++] = HEX_DIGITS[(b >> 4) & 0x0F];
+            out[pos++] = HEX_DIGITS[b & 0x0F];
         }
+        this.row.position(pos - offset);
         return this;
     }
 
+    @Override
+    public final InfileRow appendHex(ByteBuffer bytes) {
+        if (bytes == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, bytes.remaining() * 2, offset + this.row.limit());
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            byte b = bytes.get(i);
+            out[pos++] = HEX_DIGITS[(b >> 4) & 0x0F];
+            out[pos++] = HEX_DIGITS[b & 0x0F];
+        }
+        this.row.position(pos - offset);
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendHex(UUID uuid) {
+        if (uuid == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, UUID_LENGTH * 2, offset + this.row.limit());
+        pos = putHex(uuid.getMostSignificantBits(), out, pos);
+        pos = putHex(uuid.getLeastSignificantBits(), out, pos);
+        this.row.position(pos - offset);
+        return this;
+    }
+
+    /**
+     * Writes the 16 hex digits of a long, most significant first.
+     */
+    private static int putHex(long value, byte[] out, int pos) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            out[pos++] = HEX_DIGITS[(int) (value >>> shift) & 0x0F];
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the 8 bytes of a long in big-endian order.
+     */
+    private static void putLong(long value, byte[] out, int pos) {
+        for (int i = 7; i >= 0; i--) {
+            out[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Copies bytes straight into the row buffer's backing array, escaping the ones in {@link #BYTES_NEEDING_ESCAPING}.
+     */
+    private void appendEscapedBytes(byte[] bytes, int from, int to) {
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        int limit = offset + this.row.limit();
+        // Only check the capacity for every byte if the worst case, where every byte is escaped, might not fit
+        boolean checked = limit - pos < (to - from) * 2;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            boolean escape = b >= 0 && BYTE_NEEDS_ESCAPING[b];
+            if (checked) {
+                checkCapacity(pos, escape ? 2 : 1, limit);
+            }
+            if (escape) {
+                out[pos++] = (byte) MYSQL_ESCAPE_CHAR;
+            }
+            out[pos++] = b;
+        }
+        this.row.position(pos - offset);
+    }
+
     @Override
     public InfileRow append(Float number, int precision, int scale) {
+        return this.append(number == null ? null : number.doubleValue(), precision, scale);
+    }
+
+    @Override
+    public InfileRow append(Double number, int precision, int scale) {
+        checkPrecisionAndScale(precision, scale);
+        if (number == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+
+        double value = number;
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            this.appendAscii(number.toString());
+            return this;
+        }
+        boolean negative = value < 0;
+        long unscaled = DecimalDigits.roundHalfEven(negative ? -value : value, scale);
+        if (unscaled == DecimalDigits.UNSUPPORTED) {
+            // Too large or too close to a tie to round with doubles, so round the exact binary value
+            this.appendAscii(new BigDecimal(value).setScale(scale, RoundingMode.HALF_EVEN).stripTrailingZeros()
+                                                  .toPlainString());
+            return this;
+        }
+        int strippedScale = DecimalDigits.strippedScale(unscaled, scale);
+        this.writeDecimal(negative && unscaled != 0, DecimalDigits.stripZeros(unscaled, scale, strippedScale), strippedScale);
+        return this;
+    }
+
+    @Override
+    public InfileRow append(BigDecimal number, int precision, int scale) {
+        checkPrecisionAndScale(precision, scale);
+        if (number == null) {
+            return this.appendNull();
+        }
+        BigDecimal rounded = number.setScale(scale, RoundingMode.HALF_EVEN).stripTrailingZeros();
+        return this.appendDecimal(rounded.scale() < 0 ? rounded.setScale(0) : rounded);
+    }
+
+    @Override
+    public final InfileRow appendDecimal(BigDecimal number) {
+        if (number == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        if (number.scale() >= 0 && number.scale() < MAX_FAST_DECIMAL_DIGITS && number.precision() < MAX_FAST_DECIMAL_DIGITS) {
+            long unscaled = number.unscaledValue().longValue();
+            this.writeDecimal(unscaled < 0, Math.abs(unscaled), number.scale());
+        }
+        else {
+            this.appendAscii(number.toPlainString());
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendDouble(double d) {
+        return this.appendShortest(d, false);
+    }
+
+    @Override
+    public final InfileRow appendFloat(float f) {
+        return this.appendShortest(f, true);
+    }
+
+    /**
+     * Writes the shortest plain decimal that parses back to the same value, falling back to the JDK's conversion for
+     * values that need more than 2<sup>53</sup> as unscaled value.
+     */
+    private InfileRow appendShortest(double value, boolean singlePrecision) {
+        this.appendTabIfNeeded();
+        boolean negative = value < 0;
+        double abs = negative ? -value : value;
+        int scale = DecimalDigits.shortestScale(abs, singlePrecision);
+        if (scale < 0) {
+            this.appendAscii(singlePrecision ? Float.toString((float) value) : Double.toString(value));
+        }
+        else {
+            this.writeDecimal(negative, DecimalDigits.unscaled(abs, scale), scale);
+        }
+        return this;
+    }
+
+    private static void checkPrecisionAndScale(int precision, int scale) {
         checkArgument(scale > 0, "Scale (%s) should be greater than 0", scale);
         checkArgument(precision > 0, "Precision (%s) should be greater than 0", precision);
-        checkArgument(scale < precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
-
-        String integer = Strings.repeat("#", precision - scale);
-        String fractional = Strings.repeat("#", scale);
+        checkArgument(scale <= precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
+    }
 
-        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
-        decimalFormatSymbols.setDecimalSeparator('.');
-        DecimalFormat decimalFormat = new DecimalFormat(integer + "." + fractional);
-        decimalFormat.setGroupingUsed(false);
-        decimalFormat.setDecimalFormatSymbols(decimalFormatSymbols);
+    /**
+     * Writes a decimal straight into the row buffer. Digits never need escaping.
+     */
+    private void writeDecimal(boolean negative, long unscaled, int scale) {
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, DecimalDigits.length(unscaled, scale) + (negative ? 1 : 0), offset + this.row.limit());
+        if (negative) {
+            out[pos++] = '-';
+        }
+        pos = DecimalDigits.write(unscaled, scale, out, pos);
+        this.row.position(pos - offset);
+    }
 
-        String formatted = decimalFormat.format(number);
-        return append(formatted);
+    /**
+     * Writes a String that is known to be ASCII and to never need escaping, such as a number.
+     */
+    private void appendAscii(String s) {
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, s.length(), offset + this.row.limit());
+        for (int i = 0, length = s.length(); i < length; i++) {
+            out[pos++] = (byte) s.charAt(i);
+        }
+        this.row.position(pos - offset);
     }
 
     private void appendByte(byte b) {
-        if (BYTES_NEEDING_ESCAPING.contains(b)) {
-            this.rowBuffer.put((byte) MYSQL_ESCAPE_CHAR);
+        if (b >= 0 && BYTE_NEEDS_ESCAPING[b]) {
+            this.row.put((byte) MYSQL_ESCAPE_CHAR);
         }
-        this.rowBuffer.put(b);
+        this.row.put(b);
     }
 
     @Override
@@ -231,9 +718,113 @@ public class InfileDataBuffer implements InfileRow {
             return this.appendNull();
         }
         this.appendTabIfNeeded();
-        String escapedStr = ESCAPE_PATTERN.matcher(s).replaceAll("\\\\$0");
+        if (this.utf8) {
+            this.appendEscapedUtf8(s);
+        }
+        else {
+            this.appendEscapedWithEncoder(s);
+        }
+        return this;
+    }
+
+    /**
+     * Escapes and encodes a string as UTF-8 in a single pass, writing straight into the row buffer's backing array.
+     * Runs of plain ASCII characters are copied in a tight loop without any per character encoding decisions.
+     *
+     * @param s the string to append
+     */
+    private void appendEscapedUtf8(String s) {
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        int limit = offset + this.row.limit();
+        int length = s.length();
+
+        int i = 0;
+        while (i < length) {
+            // Find the end of the current run of ASCII characters that don't need escaping and copy it as is
+            int runEnd = i;
+            while (runEnd < length) {
+                char c = s.charAt(runEnd);
+                if (c >= 0x80 || CHAR_NEEDS_ESCAPING[c]) {
+                    break;
+                }
+                runEnd++;
+            }
+            checkCapacity(pos, runEnd - i, limit);
+            for (; i < runEnd; i++) {
+                out[pos++] = (byte) s.charAt(i);
+            }
+            if (i == length) {
+                break;
+            }
+
+            char c = s.charAt(i++);
+            if (c < 0x80) {
+                checkCapacity(pos, 2, limit);
+                out[pos++] = (byte) MYSQL_ESCAPE_CHAR;
+                out[pos++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                checkCapacity(pos, 2, limit);
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i == length || !Character.isLowSurrogate(s.charAt(i))) {
+                    throw new Error(new MalformedInputException(1));
+                }
+                int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                checkCapacity(pos, 4, limit);
+                out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else {
+                checkCapacity(pos, 3, limit);
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.row.position(pos - offset);
+    }
+
+    /**
+     * Makes sure there is room for {@code length} more bytes, mimicking what {@link ByteBuffer#put(byte)} would do.
+     */
+    private static void checkCapacity(int pos, int length, int limit) {
+        if (limit - pos < length) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    /**
+     * Escapes a string for charsets other than UTF-8. Clean runs of characters are handed to the {@link CharsetEncoder}
+     * as they are and the escape sequence is written in between runs.
+     *
+     * @param s the string to append
+     */
+    private void appendEscapedWithEncoder(String s) {
+        int runStart = 0;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && CHAR_NEEDS_ESCAPING[c]) {
+                this.encode(s, runStart, i);
+                this.row.put(this.escapeBytes);
+                // The special character itself starts the next run
+                runStart = i;
+            }
+        }
+        this.encode(s, runStart, s.length());
+    }
 
-        CoderResult result = this.encoder.encode(CharBuffer.wrap(escapedStr), this.rowBuffer, false);
+    private void encode(String s, int start, int end) {
+        if (start == end) {
+            return;
+        }
+        CoderResult result = this.encoder.encode(CharBuffer.wrap(s, start, end), this.row, false);
         if (!result.isUnderflow()) {
             try {
                 result.throwException();
@@ -242,33 +833,190 @@ public class InfileDataBuffer implements InfileRow {
                 throw new Error(e);
             }
         }
-        return this;
     }
 
     @Override
     public final InfileRow append(Date d, Method method) {
         Temporal temporal = this.persistenceAnnotationInspector.findAnnotation(method, Temporal.class);
         Preconditions.checkNotNull(temporal, "A temporal annotation must be provided on method [%s]", method);
+        checkArgument(temporal.value() != null, TEMPORAL_TYPE_EXCEPTION, method);
 
-        switch (temporal.value()) {
-            case DATE:
-                return appendDate(d, DATE_FORMATTER);
-            case TIME:
-                return appendDate(d, TIME_FORMATTER);
-            case TIMESTAMP:
-                return appendDate(d, TIMESTAMP_FORMATTER);
-            default:
-                throw new IllegalArgumentException(String.format(TEMPORAL_TYPE_EXCEPTION, method));
+        return this.append(d, temporal.value(), 0);
+    }
+
+    @Override
+    public final InfileRow append(Date d, TemporalType temporalType, int fractionalDigits) {
+        if (d == null) {
+            return this.appendNull();
         }
+        long millis = d.getTime();
+        int nanoOfSecond = d instanceof Timestamp ? ((Timestamp) d).getNanos() : millisOfSecond(millis) * NANOS_PER_MILLI;
+        return this.appendInstant(millis, nanoOfSecond, DateTimeZone.getDefault(), temporalType, fractionalDigits);
     }
 
-    private InfileRow appendDate(Date d, DateTimeFormatter dateTimeFormatter) {
-        return (d == null) ? this.appendNull() : this.append(dateTimeFormatter.print(d.getTime()));
+    @Override
+    public final InfileRow append(ReadableInstant instant, TemporalType temporalType, int fractionalDigits) {
+        if (instant == null) {
+            return this.appendNull();
+        }
+        long millis = instant.getMillis();
+        return this.appendInstant(millis, millisOfSecond(millis) * NANOS_PER_MILLI, instant.getZone(), temporalType,
+                                  fractionalDigits);
+    }
+
+    @Override
+    public final InfileRow append(LocalDate date) {
+        if (date == null) {
+            return this.appendNull();
+        }
+        int year = date.getYear();
+        if (year < TemporalDigits.MIN_YEAR || year > TemporalDigits.MAX_YEAR) {
+            return this.append(date.toString());
+        }
+        this.appendTabIfNeeded();
+
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, TemporalDigits.DATE_LENGTH, offset + this.row.limit());
+        pos = TemporalDigits.writeDate(year, date.getMonthOfYear(), date.getDayOfMonth(), out, pos);
+        this.row.position(pos - offset);
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(LocalDateTime dateTime, TemporalType temporalType, int fractionalDigits) {
+        Preconditions.checkNotNull(temporalType, "No temporal type given");
+        checkFractionalDigits(fractionalDigits);
+        if (dateTime == null) {
+            return this.appendNull();
+        }
+        if (temporalType != TemporalType.TIMESTAMP) {
+            // The same fields as an instant in UTC, which has no gaps
+            return this.appendInstant(dateTime.toDateTime(DateTimeZone.UTC).getMillis(),
+                                      dateTime.getMillisOfSecond() * NANOS_PER_MILLI, DateTimeZone.UTC, temporalType,
+                                      fractionalDigits);
+        }
+        int year = dateTime.getYear();
+        if (year < TemporalDigits.MIN_YEAR || year > TemporalDigits.MAX_YEAR) {
+            return this.append(TIMESTAMP_FORMATTER.print(dateTime));
+        }
+        this.appendTabIfNeeded();
+
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        checkCapacity(pos, TemporalDigits.DATE_LENGTH + 1 + TemporalDigits.TIME_LENGTH
+                           + TemporalDigits.fractionLength(fractionalDigits), offset + this.row.limit());
+        pos = TemporalDigits.writeDate(year, dateTime.getMonthOfYear(), dateTime.getDayOfMonth(), out, pos);
+        out[pos++] = ' ';
+        pos = TemporalDigits.writeTime(dateTime.getHourOfDay(), dateTime.getMinuteOfHour(), dateTime.getSecondOfMinute(),
+                                       out, pos);
+        pos = TemporalDigits.writeFraction(dateTime.getMillisOfSecond() * NANOS_PER_MILLI, fractionalDigits, out, pos);
+        this.row.position(pos - offset);
+        return this;
+    }
+
+    /**
+     * Writes an instant as seen in a time zone. The date part is cached so that consecutive values on the same day only
+     * need to print the time.
+     */
+    private InfileRow appendInstant(long millis, int nanoOfSecond, DateTimeZone zone, TemporalType temporalType,
+                                    int fractionalDigits) {
+        Preconditions.checkNotNull(temporalType, "No temporal type given");
+        checkFractionalDigits(fractionalDigits);
+
+        long localMillis = millis + zone.getOffset(millis);
+        long epochDay = TemporalDigits.floorDiv(localMillis, TemporalDigits.MILLIS_PER_DAY);
+        int millisOfDay = (int) (localMillis - epochDay * TemporalDigits.MILLIS_PER_DAY);
+
+        boolean hasDate = temporalType != TemporalType.TIME;
+        boolean hasTime = temporalType != TemporalType.DATE;
+        if (hasDate && !this.cacheDate(epochDay)) {
+            // Years that do not fit in four digits are left to Joda, just as all dates used to be
+            DateTimeFormatter formatter = hasTime ? TIMESTAMP_FORMATTER : DATE_FORMATTER;
+            return this.append(formatter.withZone(zone).print(millis));
+        }
+        this.appendTabIfNeeded();
+
+        byte[] out = this.row.array();
+        int offset = this.row.arrayOffset();
+        int pos = offset + this.row.position();
+        int length = (hasDate ? TemporalDigits.DATE_LENGTH : 0) + (hasDate && hasTime ? 1 : 0)
+                     + (hasTime ? TemporalDigits.TIME_LENGTH + TemporalDigits.fractionLength(fractionalDigits) : 0);
+        checkCapacity(pos, length, offset + this.row.limit());
+
+        if (hasDate) {
+            System.arraycopy(this.cachedDate, 0, out, pos, TemporalDigits.DATE_LENGTH);
+            pos += TemporalDigits.DATE_LENGTH;
+        }
+        if (hasDate && hasTime) {
+            out[pos++] = ' ';
+        }
+        if (hasTime) {
+            int secondOfDay = millisOfDay / MILLIS_PER_SECOND;
+            pos = TemporalDigits.writeTime(secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60, out, pos);
+            pos = TemporalDigits.writeFraction(nanoOfSecond, fractionalDigits, out, pos);
+        }
+        this.row.position(pos - offset);
+        return this;
+    }
+
+    /**
+     * Makes sure {@link #cachedDate} holds the date for a day, unless the year does not fit in four digits.
+     *
+     * @return false if the year cannot be written as four digits
+     */
+    private boolean cacheDate(long epochDay) {
+        if (epochDay != this.cachedEpochDay) {
+            long date = TemporalDigits.civilFromDays(epochDay);
+            long year = date / 10000;
+            if (year < TemporalDigits.MIN_YEAR || year > TemporalDigits.MAX_YEAR) {
+                return false;
+            }
+            TemporalDigits.writeDate((int) year, (int) (date / 100 % 100), (int) (date % 100), this.cachedDate, 0);
+            this.cachedEpochDay = epochDay;
+        }
+        return true;
+    }
+
+    private static int millisOfSecond(long millis) {
+        return (int) (millis - TemporalDigits.floorDiv(millis, MILLIS_PER_SECOND) * MILLIS_PER_SECOND);
+    }
+
+    private static void checkFractionalDigits(int fractionalDigits) {
+        checkArgument(fractionalDigits >= 0 && fractionalDigits <= MAX_FRACTIONAL_DIGITS,
+                      "Fractional seconds (%s) should be between 0 and %s", fractionalDigits, MAX_FRACTIONAL_DIGITS);
     }
 
     @Override
     public final InfileRow append(Boolean b) {
-        return (b == null) ? this.appendNull() : this.append(b ? 1 : 0);
+        return (b == null) ? this.appendNull() : this.appendBoolean(b);
+    }
+
+    @Override
+    public final InfileRow appendBoolean(boolean b) {
+        this.appendTabIfNeeded();
+        this.row.put(b ? (byte) '1' : (byte) '0');
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendInt(int i) {
+        return this.appendLong(i);
+    }
+
+    @Override
+    public final InfileRow appendLong(long l) {
+        this.appendTabIfNeeded();
+        if (l == Long.MIN_VALUE) {
+            // Cannot be negated
+            this.appendAscii(Long.toString(l));
+        }
+        else {
+            this.writeDecimal(l < 0, Math.abs(l), 0);
+        }
+        return this;
     }
 
     @Override
@@ -279,7 +1027,7 @@ public class InfileDataBuffer implements InfileRow {
     @Override
     public final InfileRow appendNull() {
         this.appendTabIfNeeded();
-        this.rowBuffer.put(this.nullBytes);
+        this.row.put(this.nullBytes);
         return this;
     }
 
@@ -289,13 +1037,24 @@ public class InfileDataBuffer implements InfileRow {
     }
 
     /**
-     * Clears the current row and returns this buffer as row view.
+     * Clears the current row and returns this buffer as row view. When rows are written in place this starts the row
+     * in the infile buffer, writing the newline that separates it from the previous row.
      *
      * @return this
      */
     @Override
     public final InfileRow newRow() {
-        this.rowBuffer.clear();
+        if (this.isWritingRowsInPlace()) {
+            this.rowMark = this.infileBuffer.position();
+            this.rowStart = this.rowMark;
+            if (this.getInfileSize() > 0) {
+                this.infileBuffer.put(this.newlineBytes);
+                this.rowStart = this.infileBuffer.position();
+            }
+        }
+        else {
+            this.rowBuffer.clear();
+        }
         return this;
     }
 }
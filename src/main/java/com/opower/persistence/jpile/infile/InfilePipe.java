@@ -0,0 +1,219 @@
+package com.opower.persistence.jpile.infile;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded ring of chunks that connects a thread encoding rows to a thread running {@code LOAD DATA LOCAL INFILE}.
+ * The producer copies infile contents into free chunks with {@link #write(ByteBuffer)}, and the driver reads the
+ * filled chunks through {@link #getInputStream()} while more rows are being encoded. When all chunks are full the
+ * producer waits for the driver to catch up, so at most {@code chunkCount * chunkSize} bytes are in flight.
+ * <p/>
+ * The producer calls {@link #close()} once it has written everything, which ends the stream. If either side gives up
+ * early with {@link #abort()}, the other side fails instead of waiting forever.
+ * <p/>
+ * Instances of this class are safe for use by one producer thread and one consumer thread.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class InfilePipe {
+    // Marks the end of the stream in the queue of filled chunks
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    // How often a waiting thread checks whether the other side has aborted
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<ByteBuffer> freeChunks;
+    private final BlockingQueue<ByteBuffer> filledChunks;
+    private final InputStream inputStream = new PipeInputStream();
+
+    // Producer state
+    private ByteBuffer writeChunk;
+    private long bytesWritten;
+    private boolean closed;
+
+    private volatile boolean aborted;
+
+    /**
+     * @param chunkSize  size of each chunk in bytes
+     * @param chunkCount number of chunks in the ring, at least 2 so that both sides can work at the same time
+     */
+    public InfilePipe(int chunkSize, int chunkCount) {
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        Preconditions.checkArgument(chunkCount >= 2, "A pipe needs at least two chunks");
+        this.freeChunks = new ArrayBlockingQueue<>(chunkCount);
+        // One more for the end of stream marker
+        this.filledChunks = new ArrayBlockingQueue<>(chunkCount + 1);
+        for (int i = 0; i < chunkCount; i++) {
+            this.freeChunks.add(ByteBuffer.allocate(chunkSize));
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into the pipe, waiting for free chunks as needed.
+     *
+     * @param src bytes to write, heap or direct
+     * @throws IllegalStateException if the pipe was closed or aborted
+     */
+    public void write(ByteBuffer src) {
+        Preconditions.checkState(!this.closed, "Cannot write to a closed pipe");
+        while (src.hasRemaining()) {
+            if (this.writeChunk == null) {
+                this.writeChunk = take(this.freeChunks);
+            }
+            int count = Math.min(src.remaining(), this.writeChunk.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            this.writeChunk.put(slice);
+            src.position(src.position() + count);
+            this.bytesWritten += count;
+            if (!this.writeChunk.hasRemaining()) {
+                this.publishWriteChunk();
+            }
+        }
+    }
+
+    /**
+     * Ends the stream. The reader sees the end of the stream after the bytes written so far.
+     */
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.writeChunk != null && this.writeChunk.position() > 0) {
+            this.publishWriteChunk();
+        }
+        put(this.filledChunks, END_OF_STREAM);
+    }
+
+    /**
+     * Gives up on the pipe from either side. A producer waiting for a free chunk and a reader waiting for data both fail.
+     */
+    public void abort() {
+        this.aborted = true;
+    }
+
+    /**
+     * @return the stream the driver reads from
+     */
+    public InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    /**
+     * @return the number of bytes written by the producer
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    private void publishWriteChunk() {
+        this.writeChunk.flip();
+        put(this.filledChunks, this.writeChunk);
+        this.writeChunk = null;
+    }
+
+    private ByteBuffer take(BlockingQueue<ByteBuffer> queue) {
+        try {
+            ByteBuffer chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            while (chunk == null) {
+                Preconditions.checkState(!this.aborted, "The infile pipe was aborted");
+                chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return chunk;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on the infile pipe", e);
+        }
+    }
+
+    private void put(BlockingQueue<ByteBuffer> queue, ByteBuffer chunk) {
+        try {
+            while (!queue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                Preconditions.checkState(!this.aborted, "The infile pipe was aborted");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on the infile pipe", e);
+        }
+    }
+
+    /**
+     * The reading end of the pipe. Chunks go back to the producer as soon as they have been read.
+     */
+    private class PipeInputStream extends InputStream {
+        private ByteBuffer readChunk;
+        private boolean endOfStream;
+
+        @Override
+        public int read() throws InterruptedIOException {
+            ByteBuffer chunk = this.nextChunk();
+            return chunk == null ? -1 : chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws InterruptedIOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer chunk = this.nextChunk();
+            if (chunk == null) {
+                return -1;
+            }
+            int count = Math.min(len, chunk.remaining());
+            chunk.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.readChunk == null ? 0 : this.readChunk.remaining();
+        }
+
+        @Override
+        public void close() {
+            // The driver closes the stream when it is done, or when the statement failed part way
+            if (!this.endOfStream) {
+                abort();
+            }
+        }
+
+        /**
+         * @return a chunk with bytes left to read, or null at the end of the stream
+         */
+        private ByteBuffer nextChunk() throws InterruptedIOException {
+            while (!this.endOfStream && (this.readChunk == null || !this.readChunk.hasRemaining())) {
+                if (this.readChunk != null) {
+                    this.readChunk.clear();
+                    freeChunks.add(this.readChunk);
+                    this.readChunk = null;
+                }
+                ByteBuffer chunk;
+                try {
+                    chunk = take(filledChunks);
+                }
+                catch (IllegalStateException e) {
+                    InterruptedIOException exception = new InterruptedIOException(e.getMessage());
+                    exception.initCause(e);
+                    throw exception;
+                }
+                if (chunk == END_OF_STREAM) {
+                    this.endOfStream = true;
+                }
+                else {
+                    this.readChunk = chunk;
+                }
+            }
+            return this.endOfStream ? null : this.readChunk;
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package com.opower.persistence.jpile.infile;
 
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
+
+import javax.persistence.TemporalType;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.UUID;
 
 /**
  * A chaining interface for adding data to a row. Implementations handle encoding objects for use in an infile stream.
@@ -35,6 +43,49 @@ public interface InfileRow {
      */
     InfileRow append(byte[] bytes);
 
+    /**
+     * Adds the remaining bytes of a buffer to this row, escaping them like {@link #append(byte[])}, before returning
+     * said row. The buffer's position is not changed.
+     *
+     * @param bytes to add
+     * @return this row
+     */
+    InfileRow append(ByteBuffer bytes);
+
+    /**
+     * Adds the 16 bytes of a UUID to this row, escaping them like {@link #append(byte[])}, before returning said row.
+     *
+     * @param uuid to add
+     * @return this row
+     */
+    InfileRow append(UUID uuid);
+
+    /**
+     * Adds a byte array to this row as lower case hex digits before returning said row. The column needs to be unhexed
+     * by the {@code LOAD DATA} statement.
+     *
+     * @param bytes to add
+     * @return this row
+     */
+    InfileRow appendHex(byte[] bytes);
+
+    /**
+     * Adds the remaining bytes of a buffer to this row as hex digits before returning said row. The buffer's position is
+     * not changed.
+     *
+     * @param bytes to add
+     * @return this row
+     */
+    InfileRow appendHex(ByteBuffer bytes);
+
+    /**
+     * Adds the 16 bytes of a UUID to this row as 32 hex digits, without dashes, before returning said row.
+     *
+     * @param uuid to add
+     * @return this row
+     */
+    InfileRow appendHex(UUID uuid);
+
     /**
      * Adds a Float to this row before returning said row. Implementations are responsible for formatting.
      *
@@ -45,6 +96,53 @@ public interface InfileRow {
      */
     InfileRow append(Float number, int precision, int scale);
 
+    /**
+     * Adds a Double to this row, rounded half-even to {@code scale} fractional digits, before returning said row.
+     *
+     * @param number to add
+     * @param precision the maximum number of digits
+     * @param scale the number of digits to the right of the decimal point
+     * @return this row
+     */
+    InfileRow append(Double number, int precision, int scale);
+
+    /**
+     * Adds a BigDecimal to this row, rounded half-even to {@code scale} fractional digits without trailing zeros, before
+     * returning said row.
+     *
+     * @param number to add
+     * @param precision the maximum number of digits
+     * @param scale the number of digits to the right of the decimal point
+     * @return this row
+     */
+    InfileRow append(BigDecimal number, int precision, int scale);
+
+    /**
+     * Adds a BigDecimal to this row in plain notation (never scientific) before returning said row.
+     *
+     * @param number to add
+     * @return this row
+     */
+    InfileRow appendDecimal(BigDecimal number);
+
+    /**
+     * Adds a double to this row using the shortest plain decimal that parses back to the same double before returning
+     * said row.
+     *
+     * @param d to add
+     * @return this row
+     */
+    InfileRow appendDouble(double d);
+
+    /**
+     * Adds a float to this row using the shortest plain decimal that parses back to the same float before returning
+     * said row.
+     *
+     * @param f to add
+     * @return this row
+     */
+    InfileRow appendFloat(float f);
+
     /**
      * Adds a String to this row before returning said row. Implementations are responsible for handling encoding.
      *
@@ -63,11 +161,76 @@ public interface InfileRow {
      */
     InfileRow append(Date d, Method method);
 
+    /**
+     * Adds a date to this row in the default time zone before returning said row. {@link java.sql.Timestamp}s keep their
+     * nanoseconds when fractional seconds are requested.
+     *
+     * @param d to add
+     * @param temporalType whether to write the date, the time or both
+     * @param fractionalDigits the number of fractional seconds to write, from 0 up to 6 for {@code DATETIME(6)}
+     * @return this row
+     */
+    InfileRow append(Date d, TemporalType temporalType, int fractionalDigits);
+
+    /**
+     * Adds an instant, such as a Joda {@code DateTime} or {@code Instant}, to this row as seen in the instant's own
+     * time zone before returning said row.
+     *
+     * @param instant to add
+     * @param temporalType whether to write the date, the time or both
+     * @param fractionalDigits the number of fractional seconds to write, from 0 up to 6
+     * @return this row
+     */
+    InfileRow append(ReadableInstant instant, TemporalType temporalType, int fractionalDigits);
+
+    /**
+     * Adds a date without a time to this row before returning said row.
+     *
+     * @param date to add
+     * @return this row
+     */
+    InfileRow append(LocalDate date);
+
+    /**
+     * Adds a date and time without a time zone to this row before returning said row.
+     *
+     * @param dateTime to add
+     * @param temporalType whether to write the date, the time or both
+     * @param fractionalDigits the number of fractional seconds to write, from 0 up to 6
+     * @return this row
+     */
+    InfileRow append(LocalDateTime dateTime, TemporalType temporalType, int fractionalDigits);
+
     /**
      * Adds a boolean to this row before returning said row.
      */
     InfileRow append(Boolean b);
 
+    /**
+     * Adds a primitive boolean to this row as {@code 1} or {@code 0} before returning said row.
+     *
+     * @param b to add
+     * @return this row
+     */
+    InfileRow appendBoolean(boolean b);
+
+    /**
+     * Adds an int to this row before returning said row. Shorts and bytes that represent numbers should use this method
+     * as well, unlike {@link #append(byte)} which adds a raw byte.
+     *
+     * @param i to add
+     * @return this row
+     */
+    InfileRow appendInt(int i);
+
+    /**
+     * Adds a long to this row before returning said row. The digits are written without creating a String.
+     *
+     * @param l to add
+     * @return this row
+     */
+    InfileRow appendLong(long l);
+
     /**
      * Adds an arbitrary object to this row before returning said row. Equivalent of calling
      * <code>this.append(o.toString());</code>
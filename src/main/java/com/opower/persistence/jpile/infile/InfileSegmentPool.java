@@ -0,0 +1,183 @@
+package com.opower.persistence.jpile.infile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A pool of fixed size segments that {@link InfileDataBuffer}s chain together instead of allocating one large array per
+ * infile. Segments are small enough to stay out of G1's humongous regions, and they can be allocated off-heap with
+ * direct {@link ByteBuffer}s.
+ * <p/>
+ * Released segments are kept for reuse, up to a limit, so loaders that come and go do not have to allocate new ones.
+ * A pool can also have a memory budget shared by all of its buffers. Once the segments in use reach the budget
+ * {@link #tryAcquire()} refuses to hand out more and {@link #acquire()} fails, and buffers have to be flushed or released
+ * to free some.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads and can be shared between buffers.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class InfileSegmentPool {
+    /**
+     * Smallest allowed segment size in bytes.
+     */
+    public static final int MIN_SEGMENT_SIZE = 64 * 1024; // 64kB
+    /**
+     * Largest allowed segment size in bytes.
+     */
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024; // 1MB
+    /**
+     * Default segment size in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024; // 256kB
+    /**
+     * Default number of bytes kept in released segments.
+     */
+    public static final int DEFAULT_MAX_FREE_BYTES = 32 * 1024 * 1024; // 32MB
+    /**
+     * Budget that never runs out.
+     */
+    public static final long NO_BUDGET = Long.MAX_VALUE;
+
+    private final int segmentSize;
+    private final boolean direct;
+    private final int maxFreeSegments;
+    private final long budgetSegments;
+    private final Deque<ByteBuffer> freeSegments = new ArrayDeque<>();
+
+    // Segments handed out and not yet released, guarded by freeSegments
+    private long segmentsInUse;
+
+    /**
+     * @param segmentSize  size of each segment, between {@link #MIN_SEGMENT_SIZE} and {@link #MAX_SEGMENT_SIZE}
+     * @param direct       true to allocate segments off-heap
+     * @param maxFreeBytes the most bytes to keep in released segments, the rest are left to the garbage collector
+     * @param budgetBytes  the most bytes handed out at once, or {@link #NO_BUDGET}
+     */
+    public InfileSegmentPool(int segmentSize, boolean direct, int maxFreeBytes, long budgetBytes) {
+        checkArgument(segmentSize >= MIN_SEGMENT_SIZE && segmentSize <= MAX_SEGMENT_SIZE,
+                      "Segment size must be between %s and %s bytes, but was %s", MIN_SEGMENT_SIZE, MAX_SEGMENT_SIZE,
+                      segmentSize);
+        checkArgument(maxFreeBytes >= 0, "Cannot keep a negative number of bytes");
+        checkArgument(budgetBytes >= segmentSize, "Budget must allow at least one segment, but was %s", budgetBytes);
+        this.segmentSize = segmentSize;
+        this.direct = direct;
+        this.budgetSegments = budgetBytes / segmentSize;
+        this.maxFreeSegments = (int) Math.min(maxFreeBytes / segmentSize, this.budgetSegments);
+    }
+
+    public InfileSegmentPool(int segmentSize, boolean direct, long budgetBytes) {
+        this(segmentSize, direct, DEFAULT_MAX_FREE_BYTES, budgetBytes);
+    }
+
+    public InfileSegmentPool(int segmentSize, boolean direct) {
+        this(segmentSize, direct, NO_BUDGET);
+    }
+
+    public InfileSegmentPool() {
+        this(DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Takes a released segment, or allocates a new one if there are none. Every buffer takes its first segment this way,
+     * so the budget must allow at least one segment per buffer.
+     *
+     * @return an empty segment
+     * @throws IllegalStateException if the segments in use have reached the budget
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer segment;
+        synchronized (this.freeSegments) {
+            checkState(this.segmentsInUse < this.budgetSegments,
+                       "The memory budget of %s bytes is used up, flush or release buffers first",
+                       this.budgetSegments * this.segmentSize);
+            segment = this.freeSegments.poll();
+            this.segmentsInUse++;
+        }
+        return this.prepare(segment);
+    }
+
+    /**
+     * Takes a segment like {@link #acquire()}, but returns null instead of failing once the segments in use have reached
+     * the budget.
+     *
+     * @return an empty segment, or null if the budget is used up
+     */
+    public ByteBuffer tryAcquire() {
+        ByteBuffer segment;
+        synchronized (this.freeSegments) {
+            if (this.segmentsInUse >= this.budgetSegments) {
+                return null;
+            }
+            segment = this.freeSegments.poll();
+            this.segmentsInUse++;
+        }
+        return this.prepare(segment);
+    }
+
+    private ByteBuffer prepare(ByteBuffer segment) {
+        if (segment == null) {
+            return this.direct ? ByteBuffer.allocateDirect(this.segmentSize) : ByteBuffer.allocate(this.segmentSize);
+        }
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * Gives a segment back to the pool. The caller must not use it afterwards.
+     *
+     * @param segment a segment returned by {@link #acquire()}
+     */
+    public void release(ByteBuffer segment) {
+        checkNotNull(segment, "Cannot release a null segment");
+        checkArgument(segment.capacity() == this.segmentSize && segment.isDirect() == this.direct,
+                      "Segment was not acquired from this pool");
+        synchronized (this.freeSegments) {
+            this.segmentsInUse--;
+            if (this.freeSegments.size() < this.maxFreeSegments) {
+                this.freeSegments.push(segment);
+            }
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return true if {@link #tryAcquire()} would not hand out another segment
+     */
+    public boolean isBudgetExhausted() {
+        synchronized (this.freeSegments) {
+            return this.segmentsInUse >= this.budgetSegments;
+        }
+    }
+
+    /**
+     * @return the number of bytes in segments that have been acquired and not yet released
+     */
+    public long getBytesInUse() {
+        synchronized (this.freeSegments) {
+            return this.segmentsInUse * this.segmentSize;
+        }
+    }
+
+    /**
+     * @return the number of released segments waiting to be reused
+     */
+    public int getFreeSegments() {
+        synchronized (this.freeSegments) {
+            return this.freeSegments.size();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.opower.persistence.jpile.infile;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Reads the remaining bytes of a chain of buffers in order, without copying them into one array first.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class SegmentInputStream extends InputStream {
+    private final List<ByteBuffer> segments;
+    private int index;
+
+    /**
+     * @param segments buffers ready for reading, each from its position to its limit
+     */
+    SegmentInputStream(List<ByteBuffer> segments) {
+        this.segments = ImmutableList.copyOf(segments);
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer segment = this.currentSegment();
+        return segment == null ? -1 : segment.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer segment = this.currentSegment();
+        if (segment == null) {
+            return -1;
+        }
+        int read = Math.min(len, segment.remaining());
+        segment.get(b, off, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        ByteBuffer segment = this.currentSegment();
+        while (segment != null && skipped < n) {
+            int step = (int) Math.min(n - skipped, segment.remaining());
+            segment.position(segment.position() + step);
+            skipped += step;
+            segment = this.currentSegment();
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long available = 0;
+        for (int i = this.index; i < this.segments.size(); i++) {
+            available += this.segments.get(i).remaining();
+        }
+        return (int) Math.min(available, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the first segment with bytes left, or null if all of them have been read
+     */
+    private ByteBuffer currentSegment() {
+        while (this.index < this.segments.size()) {
+            ByteBuffer segment = this.segments.get(this.index);
+            if (segment.hasRemaining()) {
+                return segment;
+            }
+            this.index++;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+package com.opower.persistence.jpile.infile;
+
+/**
+ * Arithmetic used by {@link InfileDataBuffer} to print dates and times in MySQL's {@code yyyy-MM-dd HH:mm:ss} format as
+ * ASCII digits without going through a formatter or a String. All dates use the proleptic Gregorian calendar, the same
+ * as Joda's ISO chronology.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class TemporalDigits {
+    static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    // Length of yyyy-MM-dd and HH:mm:ss
+    static final int DATE_LENGTH = 10;
+    static final int TIME_LENGTH = 8;
+
+    // The only years that fit in four digits. Anything else is left to the caller.
+    static final int MIN_YEAR = 0;
+    static final int MAX_YEAR = 9999;
+
+    // Days between 0000-03-01 and 1970-01-01, and days per 400 year era
+    private static final long DAYS_0000_TO_1970 = 719468;
+    private static final long DAYS_PER_ERA = 146097;
+
+    private static final int[] NANOS_DIVISORS = {1000000000, 100000000, 10000000, 1000000, 100000, 10000, 1000};
+
+    private TemporalDigits() {
+    }
+
+    /**
+     * @return the largest value that is less than or equal to {@code x / y}, which is {@code Math.floorDiv} in Java 8
+     */
+    static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    /**
+     * Converts days since 1970-01-01 into a date. See
+     * <a href="http://howardhinnant.github.io/date_algorithms.html#civil_from_days">civil_from_days</a>.
+     *
+     * @param epochDay days since 1970-01-01
+     * @return the date packed as {@code year * 10000 + month * 100 + day}
+     */
+    static long civilFromDays(long epochDay) {
+        long z = epochDay + DAYS_0000_TO_1970;
+        long era = floorDiv(z, DAYS_PER_ERA);
+        long dayOfEra = z - era * DAYS_PER_ERA;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Writes {@code yyyy-MM-dd}. The year must be between {@link #MIN_YEAR} and {@link #MAX_YEAR}.
+     *
+     * @return the index after the last byte written
+     */
+    static int writeDate(int year, int month, int day, byte[] out, int pos) {
+        pos = writeDigits(year, 4, out, pos);
+        out[pos++] = '-';
+        pos = writeDigits(month, 2, out, pos);
+        out[pos++] = '-';
+        return writeDigits(day, 2, out, pos);
+    }
+
+    /**
+     * Writes {@code HH:mm:ss}.
+     *
+     * @return the index after the last byte written
+     */
+    static int writeTime(int hour, int minute, int second, byte[] out, int pos) {
+        pos = writeDigits(hour, 2, out, pos);
+        out[pos++] = ':';
+        pos = writeDigits(minute, 2, out, pos);
+        out[pos++] = ':';
+        return writeDigits(second, 2, out, pos);
+    }
+
+    /**
+     * Writes a period and the first {@code fractionalDigits} digits of the nanoseconds, as used by MySQL's
+     * {@code DATETIME(fsp)}. Nothing is written if {@code fractionalDigits} is 0.
+     *
+     * @param nanoOfSecond     between 0 and 999,999,999
+     * @param fractionalDigits between 0 and 6
+     * @return the index after the last byte written
+     */
+    static int writeFraction(int nanoOfSecond, int fractionalDigits, byte[] out, int pos) {
+        if (fractionalDigits == 0) {
+            return pos;
+        }
+        out[pos++] = '.';
+        return writeDigits(nanoOfSecond / NANOS_DIVISORS[fractionalDigits], fractionalDigits, out, pos);
+    }
+
+    /**
+     * @return the number of bytes {@link #writeFraction(int, int, byte[], int)} writes
+     */
+    static int fractionLength(int fractionalDigits) {
+        return fractionalDigits == 0 ? 0 : fractionalDigits + 1;
+    }
+
+    private static int writeDigits(int value, int width, byte[] out, int pos) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + width;
+    }
+}
@@ -0,0 +1,69 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares one counter per schema and table between all loaders that use this allocator, so that loaders in the same JVM never
+ * generate the same id. A counter starts after {@code select max(id)} the first time a loader for its table is built, and
+ * the max id is only queried again after {@link #refreshMaxIds()}. Other processes must not insert generated ids into
+ * these tables at the same time, use {@link HiLoIdAllocator} for that.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class AtomicIdAllocator implements IdAllocator {
+    // Keyed by the catalog of the connection and the table, tables of the same name in two schemas have their own ids
+    private final ConcurrentMap<String, MaxIdAllocator.CounterSequence> sequences = new ConcurrentHashMap<>();
+    // Tables whose max id has to be queried again before the next loader uses them
+    private final Set<String> staleTables = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public Sequence forTable(Connection connection, String tableName, String idColumnName) {
+        String key = tableKey(connection, tableName);
+        MaxIdAllocator.CounterSequence sequence = sequences.get(key);
+        if (sequence != null && !staleTables.remove(key)) {
+            return sequence;
+        }
+        long maxId = SingleInfileObjectLoaderBuilder.findMaxId(idColumnName, tableName, connection);
+        if (sequence == null) {
+            sequence = new MaxIdAllocator.CounterSequence(maxId);
+            MaxIdAllocator.CounterSequence existing = sequences.putIfAbsent(key, sequence);
+            if (existing == null) {
+                return sequence;
+            }
+            sequence = existing;
+        }
+        // Only move forward, loaders may have generated ids past the max that are not flushed yet
+        long current = sequence.lastId.get();
+        while (maxId > current && !sequence.lastId.compareAndSet(current, maxId)) {
+            current = sequence.lastId.get();
+        }
+        return sequence;
+    }
+
+    /**
+     * Makes the next loader built for each table query its max id again, for when rows were inserted by something else.
+     * Ids never go back, so loaders already running keep generating unique ids.
+     */
+    public void refreshMaxIds() {
+        staleTables.addAll(sequences.keySet());
+    }
+
+    private static String tableKey(Connection connection, String tableName) {
+        try {
+            return connection.getCatalog() + "." + tableName;
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getIdValue;
+
+/**
+ * Appends the values of one column. Codecs are chosen once per column when the loader is built, from the getter's return
+ * type and annotations, so that rows do not have to look up annotations or test the type of every value again.
+ * <p/>
+ * Getters that return a type without a codec of its own, such as {@code Object}, get a codec that picks one by the class
+ * of each value and remembers it.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+abstract class ColumnCodec {
+    private static final ColumnCodec LONG = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendLong((Long) value);
+        }
+    };
+    private static final ColumnCodec INT = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendInt(((Number) value).intValue());
+        }
+    };
+    private static final ColumnCodec BOOLEAN = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendBoolean((Boolean) value);
+        }
+    };
+    private static final ColumnCodec STRING = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((String) value);
+        }
+    };
+    private static final ColumnCodec LOCAL_DATE = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((LocalDate) value);
+        }
+    };
+    private static final ColumnCodec ENUM_ORDINAL = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendInt(((Enum<?>) value).ordinal());
+        }
+    };
+    private static final ColumnCodec HEX_BYTES = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendHex((byte[]) value);
+        }
+    };
+    private static final ColumnCodec RAW_BYTES = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((byte[]) value);
+        }
+    };
+    private static final ColumnCodec HEX_UUID = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendHex((UUID) value);
+        }
+    };
+    private static final ColumnCodec RAW_UUID = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((UUID) value);
+        }
+    };
+    private static final ColumnCodec HEX_BYTE_BUFFER = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.appendHex((ByteBuffer) value);
+        }
+    };
+    private static final ColumnCodec RAW_BYTE_BUFFER = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((ByteBuffer) value);
+        }
+    };
+    private static final ColumnCodec TO_STRING = new ColumnCodec() {
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append(value);
+        }
+    };
+
+    /**
+     * Appends a value, or {@code \N} if it is null.
+     *
+     * @param value     returned by the getter
+     * @param infileRow to append to
+     */
+    final void append(Object value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            this.appendValue(value, infileRow);
+        }
+    }
+
+    /**
+     * @param value     never null
+     * @param infileRow to append to
+     */
+    abstract void appendValue(Object value, InfileRow infileRow);
+
+    /**
+     * Chooses the codec for a column by the getter's return type.
+     *
+     * @param getter  the column's getter
+     * @param loader  the loader of the column, which holds its resolved formats
+     * @param charset the charset of the infile, used to encode enum names up front
+     * @return the codec
+     */
+    static ColumnCodec forColumn(Method getter, SingleInfileObjectLoader<?> loader, Charset charset) {
+        ColumnCodec codec = forType(getter.getReturnType(), getter, loader, charset);
+        return codec != null ? codec : new DynamicCodec(getter, loader, charset);
+    }
+
+    /**
+     * @return the codec for values of {@code type}, or null if it depends on the class of each value
+     */
+    private static ColumnCodec forType(Class<?> type, Method getter, SingleInfileObjectLoader<?> loader, Charset charset) {
+        if (loader.persistenceAnnotationInspector.hasTableAnnotation(type)) {
+            return new ForeignKeyCodec(loader.persistenceAnnotationInspector);
+        }
+        if (Long.class.equals(type) || long.class.equals(type)) {
+            return LONG;
+        }
+        if (Integer.class.equals(type) || int.class.equals(type) || Short.class.equals(type) || short.class.equals(type)
+            || Byte.class.equals(type) || byte.class.equals(type)) {
+            return INT;
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            return new DateCodec(getter, loader.temporalColumns.get(getter));
+        }
+        if (ReadableInstant.class.isAssignableFrom(type)) {
+            return new InstantCodec(getter, jodaColumn(getter, type, loader));
+        }
+        if (LocalDateTime.class.equals(type)) {
+            return new LocalDateTimeCodec(getter, jodaColumn(getter, type, loader));
+        }
+        if (LocalDate.class.equals(type)) {
+            return LOCAL_DATE;
+        }
+        if (Boolean.class.equals(type) || boolean.class.equals(type)) {
+            return BOOLEAN;
+        }
+        if (byte[].class.equals(type)) {
+            return loader.rawBinary ? RAW_BYTES : HEX_BYTES;
+        }
+        if (UUID.class.equals(type)) {
+            return loader.rawBinary ? RAW_UUID : HEX_UUID;
+        }
+        if (ByteBuffer.class.isAssignableFrom(type)) {
+            return loader.rawBinary ? RAW_BYTE_BUFFER : HEX_BYTE_BUFFER;
+        }
+        if (type.isEnum()) {
+            return isEnumName(getter) ? new EnumNameCodec(type, charset) : ENUM_ORDINAL;
+        }
+        if (type.getSuperclass() != null && type.getSuperclass().isEnum()) {
+            // A constant with a body, only seen when choosing by the class of a value
+            return forType(type.getSuperclass(), getter, loader, charset);
+        }
+        if (Float.class.equals(type) || float.class.equals(type) || Double.class.equals(type)
+            || double.class.equals(type) || BigDecimal.class.equals(type)) {
+            return new DecimalCodec(loader.decimalColumns.get(getter));
+        }
+        if (String.class.equals(type)) {
+            return STRING;
+        }
+        return null;
+    }
+
+    /**
+     * @return the resolved column of a Joda getter, or a default for getters declared with another type
+     */
+    private static TemporalColumn jodaColumn(Method getter, Class<?> type, SingleInfileObjectLoader<?> loader) {
+        TemporalColumn temporal = loader.temporalColumns.get(getter);
+        return temporal != null ? temporal : TemporalColumn.forMethod(getter, type, loader.persistenceAnnotationInspector);
+    }
+
+    /**
+     * @param getter the getter of an enum column
+     * @return true if the column stores {@link Enum#name()} rather than {@link Enum#ordinal()}
+     */
+    static boolean isEnumName(Method getter) {
+        Enumerated enumerated = getter.getAnnotation(Enumerated.class);
+        return enumerated != null && enumerated.value() == EnumType.STRING;
+    }
+
+    /**
+     * Appends the id of a referenced entity.
+     */
+    private static final class ForeignKeyCodec extends ColumnCodec {
+        private final PersistenceAnnotationInspector persistenceAnnotationInspector;
+
+        private ForeignKeyCodec(PersistenceAnnotationInspector persistenceAnnotationInspector) {
+            this.persistenceAnnotationInspector = persistenceAnnotationInspector;
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            Long id = (Long) getIdValue(this.persistenceAnnotationInspector, value);
+            Preconditions.checkState(id != null, "@Id for [%s] is null", value);
+            infileRow.appendLong(id);
+        }
+    }
+
+    /**
+     * Appends a {@link Date} with the column's temporal type, which must be annotated when the loader is built.
+     */
+    private static final class DateCodec extends ColumnCodec {
+        private final TemporalColumn temporal;
+
+        private DateCodec(Method getter, TemporalColumn temporal) {
+            this.temporal = Preconditions.checkNotNull(temporal, "A temporal annotation must be provided on method [%s]",
+                                                       getter);
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((Date) value, this.temporal.getType(), this.temporal.getFractionalDigits());
+        }
+    }
+
+    private static final class InstantCodec extends ColumnCodec {
+        private final TemporalColumn temporal;
+
+        private InstantCodec(Method getter, TemporalColumn temporal) {
+            this.temporal = Preconditions.checkNotNull(temporal, "No temporal column for method [%s]", getter);
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((ReadableInstant) value, this.temporal.getType(), this.temporal.getFractionalDigits());
+        }
+    }
+
+    private static final class LocalDateTimeCodec extends ColumnCodec {
+        private final TemporalColumn temporal;
+
+        private LocalDateTimeCodec(Method getter, TemporalColumn temporal) {
+            this.temporal = Preconditions.checkNotNull(temporal, "No temporal column for method [%s]", getter);
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append((LocalDateTime) value, this.temporal.getType(), this.temporal.getFractionalDigits());
+        }
+    }
+
+    /**
+     * Appends enum names from bytes encoded once per constant.
+     */
+    private static final class EnumNameCodec extends ColumnCodec {
+        private final byte[][] names;
+
+        private EnumNameCodec(Class<?> enumClass, Charset charset) {
+            Object[] constants = enumClass.getEnumConstants();
+            this.names = new byte[constants.length][];
+            for (int i = 0; i < constants.length; i++) {
+                this.names[i] = ((Enum<?>) constants[i]).name().getBytes(charset);
+            }
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            infileRow.append(this.names[((Enum<?>) value).ordinal()]);
+        }
+    }
+
+    /**
+     * Appends a Float, Double or BigDecimal. If the column declared a precision and scale then the value is rounded to
+     * that scale, otherwise the shortest representation is used.
+     */
+    private static final class DecimalCodec extends ColumnCodec {
+        private final Column column;
+
+        private DecimalCodec(Column column) {
+            this.column = column;
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            if (value instanceof BigDecimal) {
+                if (this.column != null) {
+                    infileRow.append((BigDecimal) value, this.column.precision(), this.column.scale());
+                }
+                else {
+                    infileRow.appendDecimal((BigDecimal) value);
+                }
+            }
+            else if (value instanceof Double) {
+                if (this.column != null) {
+                    infileRow.append((Double) value, this.column.precision(), this.column.scale());
+                }
+                else {
+                    infileRow.appendDouble((Double) value);
+                }
+            }
+            else if (this.column != null) {
+                infileRow.append((Float) value, this.column.precision(), this.column.scale());
+            }
+            else {
+                infileRow.appendFloat((Float) value);
+            }
+        }
+    }
+
+    /**
+     * Chooses a codec by the class of each value, for getters whose return type does not decide it.
+     */
+    private static final class DynamicCodec extends ColumnCodec {
+        private final Method getter;
+        private final SingleInfileObjectLoader<?> loader;
+        private final Charset charset;
+        private final ConcurrentMap<Class<?>, ColumnCodec> codecs = new ConcurrentHashMap<>();
+
+        private DynamicCodec(Method getter, SingleInfileObjectLoader<?> loader, Charset charset) {
+            this.getter = getter;
+            this.loader = loader;
+            this.charset = charset;
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            ColumnCodec codec = this.codecs.get(value.getClass());
+            if (codec == null) {
+                codec = forType(value.getClass(), this.getter, this.loader, this.charset);
+                if (codec == null) {
+                    codec = TO_STRING;
+                }
+                this.codecs.putIfAbsent(value.getClass(), codec);
+            }
+            codec.appendValue(value, infileRow);
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileStatementCallback;
+import com.opower.persistence.jpile.util.JdbcUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Saves objects like {@link HierarchicalInfileObjectLoader} for any number of threads at the same time, with a few
+ * connections of its own:
+ * <pre>
+ *     ConcurrentInfileObjectLoader objectLoader = new ConcurrentInfileObjectLoader(new InfileLoaderFactory(), dataSource, 2);
+ *     ...
+ *     // on any thread
+ *     objectLoader.persist(foo, bar);
+ *     objectLoader.flush();
+ *     ...
+ *     // once all threads are done
+ *     objectLoader.close();
+ * </pre>
+ * Every thread that calls persist gets a session of the factory, which encodes rows into buffers of its own. Full buffers
+ * are put into a queue per table, and writer threads, each with a connection that has foreign key checks disabled, write
+ * them. One writer at a time writes to a table. Ids come from the factory's {@link IdAllocator}, which must be safe for
+ * use by multiple threads like the default {@link AtomicIdAllocator}.
+ * <p/>
+ * Producers wait while more than {@value #BUFFERS_PER_WRITER} full buffers per writer, counting all tables together, are
+ * waiting to be written. If a writer fails, the next call to persist, flush or close throws its exception. The rows of the
+ * failed buffer are lost.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class ConcurrentInfileObjectLoader implements Flushable, Closeable {
+    private static Logger logger = LoggerFactory.getLogger(ConcurrentInfileObjectLoader.class);
+
+    // The number of full buffers per writer, in all tables together, that producers can get ahead of the writers
+    static final int BUFFERS_PER_WRITER = 4;
+    // How long close waits for the writers to stop, before and after interrupting them
+    private static final long STOP_TIMEOUT_SECONDS = 60;
+
+    private final InfileLoaderFactory factory;
+    private final DataSource dataSource;
+    // Only used to create loaders, by one producer at a time
+    private final Connection setupConnection;
+
+    private final ConcurrentMap<String, TableQueue> tableQueues = new ConcurrentHashMap<>();
+    // Tables with buffers to write. A table may be in here more than once, or not at all while a writer is on it.
+    private final BlockingQueue<TableQueue> readyTables = new LinkedBlockingQueue<>();
+    private final TableQueue stop = new TableQueue(null);
+    private final ExecutorService writers;
+    private final int writerCount;
+
+    private final ThreadLocal<Producer> producers = new ThreadLocal<>();
+    private final Queue<Producer> allProducers = new ConcurrentLinkedQueue<>();
+
+    // Guards the number of buffers handed to the writers and not written yet, in total and per producer, and the first
+    // failure of a writer
+    private final Object progress = new Object();
+    private int pendingBuffers;
+    private Throwable failure;
+
+    private volatile HierarchicalInfileObjectLoader.CallBack eventCallback;
+    private volatile Set<Class<?>> classesToIgnore = ImmutableSet.of();
+    private volatile boolean useReplace = false;
+
+    /**
+     * @param factory     creates the session of each producer thread
+     * @param dataSource  where the connections of the writers and the connection to create loaders with come from
+     * @param writerCount the number of writer threads and connections
+     */
+    public ConcurrentInfileObjectLoader(InfileLoaderFactory factory, DataSource dataSource, int writerCount) {
+        Preconditions.checkArgument(writerCount > 0, "Writer count must be positive");
+        this.factory = Preconditions.checkNotNull(factory, "Factory cannot be null");
+        this.dataSource = Preconditions.checkNotNull(dataSource, "Data source cannot be null");
+        this.writerCount = writerCount;
+        try {
+            this.setupConnection = dataSource.getConnection();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        this.writers = Executors.newFixedThreadPool(
+                writerCount, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-infile-writer-%d").build());
+        for (int i = 0; i < writerCount; i++) {
+            this.writers.execute(new Writer());
+        }
+    }
+
+    /**
+     * Saves each object, see {@link HierarchicalInfileObjectLoader#persist(Object, Object...)}. Safe to call from any
+     * number of threads.
+     *
+     * @param firstObject the first object to save
+     * @param moreObjects optional more objects
+     */
+    public void persist(Object firstObject, Object... moreObjects) {
+        checkFailure();
+        producer().session.persist(firstObject, moreObjects);
+    }
+
+    /**
+     * Saves each object, see {@link HierarchicalInfileObjectLoader#persist(Iterable)}. Safe to call from any number of
+     * threads.
+     *
+     * @param objects the objects to save
+     */
+    public void persist(Iterable<?> objects) {
+        checkFailure();
+        producer().session.persist(objects);
+    }
+
+    /**
+     * Hands the rows this thread has encoded to the writers, and waits until the writers have written all rows of this
+     * thread. Rows of other threads may still be waiting to be written afterwards.
+     */
+    @Override
+    public void flush() {
+        Producer producer = producers.get();
+        if (producer != null) {
+            producer.session.flush();
+            synchronized (progress) {
+                while (producer.pendingBuffers > 0 && failure == null) {
+                    waitForProgress();
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes the rows of all threads, stops the writers and closes all connections. Call this once no thread calls persist
+     * anymore.
+     */
+    @Override
+    public void close() {
+        try {
+            for (Producer producer : allProducers) {
+                producer.session.flush();
+            }
+            awaitWriters();
+        }
+        finally {
+            stopWriters();
+            for (Producer producer : allProducers) {
+                producer.session.releaseLoaders();
+            }
+            allProducers.clear();
+            closeConnection(setupConnection);
+        }
+    }
+
+    /**
+     * Sets the callback of the sessions created afterwards. It is called on the producer threads, so it must be safe for
+     * use by multiple threads.
+     */
+    public void setEventCallback(HierarchicalInfileObjectLoader.CallBack eventCallback) {
+        this.eventCallback = eventCallback;
+    }
+
+    /**
+     * Sets the classes to ignore of the sessions created afterwards.
+     */
+    public void setClassesToIgnore(Set<Class<?>> classesToIgnore) {
+        this.classesToIgnore = classesToIgnore;
+    }
+
+    /**
+     * Sets whether the sessions created afterwards replace rows with the same key.
+     */
+    public void setUseReplace(boolean useReplace) {
+        this.useReplace = useReplace;
+    }
+
+    /**
+     * @return the producer of the current thread, created when the thread first calls persist
+     */
+    private Producer producer() {
+        Producer producer = producers.get();
+        if (producer == null) {
+            producer = new Producer();
+            producers.set(producer);
+            allProducers.add(producer);
+        }
+        return producer;
+    }
+
+    /**
+     * @return the queue that the loaders of a table put their full buffers into
+     */
+    private TableQueue tableQueue(String loadInfileSql) {
+        TableQueue queue = tableQueues.get(loadInfileSql);
+        if (queue == null) {
+            queue = new TableQueue(loadInfileSql);
+            TableQueue existing = tableQueues.putIfAbsent(loadInfileSql, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Stops the writers, interrupting them if they do not stop in time, and then gives the buffers they did not write back
+     * to the pool. Buffers are left alone if the writers still do not stop, since they may be writing them.
+     */
+    private void stopWriters() {
+        for (int i = 0; i < writerCount; i++) {
+            readyTables.add(stop);
+        }
+        writers.shutdown();
+        if (!awaitWriterTermination()) {
+            logger.warn("Writers did not stop within [{}] seconds, interrupting them.", STOP_TIMEOUT_SECONDS);
+            writers.shutdownNow();
+            if (!awaitWriterTermination()) {
+                logger.error("Writers did not stop after being interrupted, leaving their buffers to them.");
+                return;
+            }
+        }
+        // Left over if the writers failed or were interrupted
+        for (TableQueue table : tableQueues.values()) {
+            QueuedBuffer queued;
+            while ((queued = table.buffers.poll()) != null) {
+                queued.buffer.release();
+            }
+        }
+    }
+
+    private boolean awaitWriterTermination() {
+        try {
+            return writers.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return writers.isTerminated();
+        }
+    }
+
+    /**
+     * Waits until the writers have written everything handed to them, by any thread.
+     */
+    private void awaitWriters() {
+        synchronized (progress) {
+            while (pendingBuffers > 0 && failure == null) {
+                waitForProgress();
+            }
+        }
+        checkFailure();
+    }
+
+    private void waitForProgress() {
+        try {
+            progress.wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void checkFailure() {
+        synchronized (progress) {
+            if (failure != null) {
+                throw new IllegalStateException("Writing rows failed", failure);
+            }
+        }
+    }
+
+    private void written(QueuedBuffer queued, Throwable error) {
+        synchronized (progress) {
+            pendingBuffers--;
+            queued.producer.pendingBuffers--;
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            progress.notifyAll();
+        }
+    }
+
+    private static void closeConnection(Connection connection) {
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            // Do nothing
+        }
+    }
+
+    private static void setForeignKeyChecks(Connection connection, final boolean enabled) {
+        JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Boolean>() {
+            @Override
+            public Boolean doInStatement(Statement statement) throws SQLException {
+                return statement.execute("SET FOREIGN_KEY_CHECKS = " + (enabled ? 1 : 0));
+            }
+        });
+    }
+
+    /**
+     * Passes classes to {@link HierarchicalInfileObjectLoader#setClassesToIgnore(Set)}, which takes a raw set.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Set<Class> rawClasses(Set<Class<?>> classes) {
+        return (Set) classes;
+    }
+
+    /**
+     * The session of one producer thread, and the number of its buffers that were not written yet.
+     */
+    final class Producer {
+        private final HierarchicalInfileObjectLoader session;
+        // Guarded by progress
+        private int pendingBuffers;
+
+        private Producer() {
+            this.session = new HierarchicalInfileObjectLoader(factory, this);
+            if (eventCallback != null) {
+                this.session.setEventCallback(eventCallback);
+            }
+            this.session.setClassesToIgnore(rawClasses(classesToIgnore));
+            this.session.setUseReplace(useReplace);
+        }
+
+        /**
+         * @return the connection to create loaders with, shared by all producers
+         */
+        Connection setupConnection() {
+            return setupConnection;
+        }
+
+        /**
+         * @return where the loaders of a table put their full buffers, blocking while the writers are too far behind
+         */
+        InfileObjectLoader.FullBufferSink tableSink(String loadInfileSql) {
+            final TableQueue table = tableQueue(loadInfileSql);
+            return new InfileObjectLoader.FullBufferSink() {
+                @Override
+                public void put(InfileDataBuffer buffer) {
+                    table.put(buffer, Producer.this);
+                }
+            };
+        }
+    }
+
+    /**
+     * The full buffers of one table, and the lock of the writer writing them.
+     */
+    private final class TableQueue {
+        private final String loadInfileSql;
+        private final Queue<QueuedBuffer> buffers = new ConcurrentLinkedQueue<>();
+        // Held by the writer writing to this table
+        private final Lock lock = new ReentrantLock();
+
+        private TableQueue(String loadInfileSql) {
+            this.loadInfileSql = loadInfileSql;
+        }
+
+        /**
+         * Adds a full buffer, waiting while the writers are too far behind on all tables together, and tells the writers
+         * that the table has rows to write.
+         */
+        private void put(InfileDataBuffer buffer, Producer producer) {
+            synchronized (progress) {
+                while (pendingBuffers >= BUFFERS_PER_WRITER * writerCount && failure == null) {
+                    waitForProgress();
+                }
+                if (failure != null) {
+                    buffer.release();
+                    throw new IllegalStateException("Writing rows failed", failure);
+                }
+                pendingBuffers++;
+                producer.pendingBuffers++;
+            }
+            buffers.add(new QueuedBuffer(buffer, producer));
+            readyTables.add(this);
+        }
+    }
+
+    /**
+     * A full buffer and the producer that encoded it.
+     */
+    private static final class QueuedBuffer {
+        private final InfileDataBuffer buffer;
+        private final Producer producer;
+
+        private QueuedBuffer(InfileDataBuffer buffer, Producer producer) {
+            this.buffer = buffer;
+            this.producer = producer;
+        }
+    }
+
+    /**
+     * Writes the buffers of tables as they are handed over, on a connection of its own.
+     */
+    private final class Writer implements Runnable {
+        @Override
+        public void run() {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                setForeignKeyChecks(connection, false);
+                TableQueue table;
+                while ((table = readyTables.take()) != stop) {
+                    write(table, connection);
+                }
+                setForeignKeyChecks(connection, true);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (SQLException | RuntimeException e) {
+                logger.error("Writer stopped.", e);
+                synchronized (progress) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    progress.notifyAll();
+                }
+            }
+            finally {
+                if (connection != null) {
+                    closeConnection(connection);
+                }
+            }
+        }
+
+        /**
+         * Writes all buffers of a table, unless another writer already is.
+         */
+        private void write(TableQueue table, Connection connection) {
+            if (!table.lock.tryLock()) {
+                // The other writer checks the queue again once it is done
+                return;
+            }
+            try {
+                QueuedBuffer queued;
+                while ((queued = table.buffers.poll()) != null) {
+                    InfileDataBuffer buffer = queued.buffer;
+                    Throwable error = null;
+                    int bytes = buffer.getInfileSize();
+                    try {
+                        List<Exception> warnings = JdbcUtil.execute(
+                                connection, new InfileStatementCallback(table.loadInfileSql, buffer.asInputStream()));
+                        if (!warnings.isEmpty()) {
+                            logger.debug("Writing [{}] bytes returned [{}] warnings.", bytes, warnings.size());
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        logger.error("Writing rows failed.", e);
+                        error = e;
+                    }
+                    finally {
+                        buffer.release();
+                        written(queued, error);
+                    }
+                }
+            }
+            finally {
+                table.lock.unlock();
+            }
+            // Buffers may have been added after the last poll while other writers gave up on the lock
+            if (!table.buffers.isEmpty()) {
+                readyTables.add(table);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.opower.persistence.jpile.loader;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The outcome of flushing an infile buffer to the database, as returned by {@link InfileObjectLoader#flushAsync()}.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public final class FlushResult {
+    private final List<Exception> warnings;
+    private final long bytes;
+
+    FlushResult(List<Exception> warnings, long bytes) {
+        this.warnings = ImmutableList.copyOf(warnings);
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the warnings MySQL reported for the rows, see {@link InfileObjectLoader#getWarnings()}
+     */
+    public List<Exception> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return the number of bytes sent
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,180 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.opower.persistence.jpile.util.JdbcUtil;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reserves blocks of ids in a sequence table, so that loaders in any number of JVMs can insert into the same table. Each
+ * reservation is one atomic update on a connection of its own, which is why this allocator takes a {@link DataSource}
+ * instead of using the loader's connection, that may be busy streaming rows. The sequence table must look like
+ * <pre>
+ *     CREATE TABLE jpile_sequence (
+ *       table_name varchar(129) NOT NULL,
+ *       last_id bigint unsigned NOT NULL,
+ *       PRIMARY KEY (table_name)
+ *     ) ENGINE=InnoDB;
+ * </pre>
+ * Tables are named by the catalog of the loader's connection and their own name, such as {@code app.customer}, so that
+ * loaders writing to different schemas get separate sequences. The sequence table itself lives in the default schema of
+ * the data source, which has to be on the same server as the loaders' schemas. The row of a table is created from
+ * {@code max(id)} of the loader's schema the first time ids are reserved for it. From then on every process that inserts
+ * generated ids into the table has to reserve them here.
+ * <p/>
+ * Ids that were reserved but not used are skipped. Instances of this class are safe for use by multiple threads.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class HiLoIdAllocator implements IdAllocator {
+    public static final String DEFAULT_SEQUENCE_TABLE = "jpile_sequence";
+    public static final int DEFAULT_BLOCK_SIZE = 10000;
+
+    private final DataSource dataSource;
+    private final String sequenceTable;
+    private final int blockSize;
+    private final ConcurrentMap<String, BlockSequence> sequences = new ConcurrentHashMap<>();
+
+    public HiLoIdAllocator(DataSource dataSource) {
+        this(dataSource, DEFAULT_SEQUENCE_TABLE, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param dataSource    where to get connections for reservations from
+     * @param sequenceTable the name of the sequence table
+     * @param blockSize     the number of ids to reserve at a time
+     */
+    public HiLoIdAllocator(DataSource dataSource, String sequenceTable, int blockSize) {
+        Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+        this.dataSource = Preconditions.checkNotNull(dataSource, "Data source cannot be null");
+        this.sequenceTable = Preconditions.checkNotNull(sequenceTable, "Sequence table cannot be null");
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public Sequence forTable(Connection connection, String tableName, String idColumnName) {
+        String qualifiedName = qualifiedName(connection, tableName);
+        BlockSequence sequence = sequences.get(qualifiedName);
+        if (sequence == null) {
+            sequence = new BlockSequence(qualifiedName, idColumnName);
+            BlockSequence existing = sequences.putIfAbsent(qualifiedName, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the table name prefixed with the catalog of the connection, if it has one
+     */
+    private static String qualifiedName(Connection connection, String tableName) {
+        try {
+            String catalog = connection.getCatalog();
+            return catalog != null ? catalog + "." + tableName : tableName;
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Reserves the next block of a table, creating its row first if needed.
+     *
+     * @param tableName    the table name qualified with its schema
+     * @param idColumnName the id column of the table
+     * @return the last id of the block
+     */
+    private long reserveBlock(final String tableName, final String idColumnName) {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            long lastId = JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Long>() {
+                @Override
+                public Long doInStatement(Statement statement) throws SQLException {
+                    Long reserved = updateSequence(statement, tableName);
+                    if (reserved == null) {
+                        // Another process may create the row at the same time, which is why the insert is ignored
+                        statement.executeUpdate(String.format(
+                                "insert ignore into %s (table_name, last_id) select '%s', coalesce(max(%s), 0) from %s",
+                                sequenceTable, tableName, idColumnName, tableName));
+                        reserved = updateSequence(statement, tableName);
+                    }
+                    Preconditions.checkState(reserved != null, "Could not reserve ids for [%s] in [%s]", tableName,
+                                             sequenceTable);
+                    return reserved;
+                }
+            });
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            return lastId;
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a block to the sequence of a table with MySQL's {@code last_insert_id(expr)}, which returns the new value on
+     * this connection no matter what other connections do.
+     *
+     * @return the new last id, or null if the table has no row yet
+     */
+    private Long updateSequence(Statement statement, String tableName) throws SQLException {
+        int updated = statement.executeUpdate(String.format(
+                "update %s set last_id = last_insert_id(last_id + %d) where table_name = '%s'",
+                sequenceTable, blockSize, tableName));
+        if (updated == 0) {
+            return null;
+        }
+        ResultSet resultSet = statement.executeQuery("select last_insert_id()");
+        if (!resultSet.first()) {
+            throw new SQLException("Could not read last_insert_id() after reserving ids for [" + tableName + "]");
+        }
+        return resultSet.getLong(1);
+    }
+
+    /**
+     * Hands out the ids of the current block, reserving a new block when it is used up.
+     */
+    private final class BlockSequence implements Sequence {
+        private final String tableName;
+        private final String idColumnName;
+        // The next id to hand out and the last id of the block, the block is used up when next > last
+        private long nextId = 1;
+        private long lastId = 0;
+
+        private BlockSequence(String tableName, String idColumnName) {
+            this.tableName = tableName;
+            this.idColumnName = idColumnName;
+        }
+
+        @Override
+        public synchronized long next() {
+            if (nextId > lastId) {
+                lastId = reserveBlock(tableName, idColumnName);
+                nextId = lastId - blockSize + 1;
+            }
+            return nextId++;
+        }
+    }
+}
@@ -1,40 +1,54 @@
 package com.opower.persistence.jpile.loader;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSegmentPool;
 import com.opower.persistence.jpile.reflection.CachedProxy;
+import com.opower.persistence.jpile.reflection.EntityMetadata;
+import com.opower.persistence.jpile.reflection.EntityMetadataSnapshot;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import com.opower.persistence.jpile.util.JdbcUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.persistence.ManyToOne;
-import javax.persistence.OneToMany;
-import javax.persistence.OneToOne;
-import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
 import java.io.Closeable;
 import java.io.Flushable;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.ImmutableList.copyOf;
 import static com.google.common.collect.ImmutableList.of;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Iterables.concat;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
-import static com.google.common.collect.Sets.newHashSet;
 
 /**
  * Save any type of data using a collection of SingleInfileObjectLoaders. A common use case would be to do something like
@@ -52,6 +66,10 @@ import static com.google.common.collect.Sets.newHashSet;
  * </pre>
  * Note that because the connection is passed in, it is up to the caller to close the connection correctly. Otherwise the
  * connection will never be closed.
+ * <p/>
+ * Services that persist in many short sessions should create them with an {@link InfileLoaderFactory}, which keeps the
+ * loaders, buffers and ids between sessions. Instances of this class are not safe for use by multiple threads, see
+ * {@link ConcurrentInfileObjectLoader} for that.
  *
  * @author amir.raminfar
  * @since 1.0
@@ -59,8 +77,16 @@ import static com.google.common.collect.Sets.newHashSet;
 public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
     private static Logger logger = LoggerFactory.getLogger(HierarchicalInfileObjectLoader.class);
 
-    private PersistenceAnnotationInspector persistenceAnnotationInspector =
-            CachedProxy.create(new PersistenceAnnotationInspector());
+    // persistAll encodes up to this many chunks per thread ahead of the chunk being written
+    private static final int CHUNKS_PER_THREAD = 2;
+    // The most roots per chunk of persistAll, unless the class batch size says otherwise
+    private static final int MAX_CHUNK_SIZE = 1000;
+
+    private final PersistenceAnnotationInspector persistenceAnnotationInspector;
+    // Copies loaders from templates instead of building them, null unless this is a session of a factory
+    private final InfileLoaderFactory factory;
+    // Takes the full buffers of this session's loaders, null unless this session is a producer of a concurrent loader
+    private final ConcurrentInfileObjectLoader.Producer producer;
 
     private CallBack eventCallback = new NoOpCallBack();
     private Connection connection;
@@ -68,12 +94,71 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
     // linked for consistent error message
     private Map<Class<?>, SingleInfileObjectLoader<Object>> primaryObjectLoaders = newLinkedHashMap();
     private Map<Class<?>, SingleInfileObjectLoader<Object>> secondaryTableObjectLoaders = newLinkedHashMap();
-    private Map<Class<?>, Set<Method>> parentDependent = newHashMap();
-    private Map<Class<?>, Set<Method>> childDependent = newHashMap();
+    private Map<Class<?>, TraversalPlan> traversalPlans = newHashMap();
     private Set<Class> classesToIgnore = ImmutableSet.of();
     private Set<String> secondaryClassesToIgnore = ImmutableSet.of();
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private InfileSegmentPool segmentPool;
+    // The most bytes the infile of each buffer holds before it is flushed
+    int infileBufferSize = InfileDataBuffer.DEFAULT_INFILE_BUFFER_SIZE;
+    private int maxRowsPerStatement = 0;
+    private long maxBytesPerStatement = 0;
+    private StreamingConnection streamingConnection = new StreamingConnection();
+    private boolean useAsyncFlush = false;
+    private ListeningExecutorService flushExecutor;
+    private IdAllocator idAllocator;
+    // True if the segment pool was set or shared with a factory, so that setMemoryBudget cannot replace it
+    private boolean customSegmentPool;
+    private final InfileObjectLoader.BudgetListener budgetListener = new InfileObjectLoader.BudgetListener() {
+        @Override
+        public boolean onBudgetExhausted(InfileObjectLoader<?> loader) {
+            return flushFullest(loader);
+        }
+    };
+
+    // Entities saved through a relationship by any call to persist, compared by identity. Null unless enabled.
+    private Cache<Object, Boolean> savedReferences;
+    // The entities of each class to write once a batch of roots was walked, in the order classes were first seen. Null
+    // unless enabled.
+    private Map<TraversalPlan, List<Object>> classBatches;
+    private int classBatchSize;
+    // The stack and saved entities of the outermost walk, cleared between roots so that they keep their capacity. True
+    // while they are in use, so that a callback persisting other objects walks on a stack of its own.
+    private final Deque<Visit> rootTraversal = new ArrayDeque<>();
+    private final Set<Object> rootVisited = Sets.newIdentityHashSet();
+    private boolean walking;
+
+    public HierarchicalInfileObjectLoader() {
+        this.persistenceAnnotationInspector = CachedProxy.create(new PersistenceAnnotationInspector());
+        this.segmentPool = new InfileSegmentPool();
+        this.factory = null;
+        this.producer = null;
+    }
 
+    /**
+     * Creates a session that shares the inspector, segment pool, loader templates and ids of a factory.
+     */
+    HierarchicalInfileObjectLoader(InfileLoaderFactory factory) {
+        this(factory, null);
+    }
+
+    /**
+     * Creates a session of a factory for one producer thread of a concurrent loader. Its loaders only encode rows and hand
+     * their buffers to the concurrent loader's writers. The connection is shared by all producers and only used to create
+     * loaders.
+     */
+    HierarchicalInfileObjectLoader(InfileLoaderFactory factory, ConcurrentInfileObjectLoader.Producer producer) {
+        this.persistenceAnnotationInspector = factory.persistenceAnnotationInspector;
+        this.segmentPool = factory.segmentPool;
+        this.customSegmentPool = true;
+        this.idAllocator = factory.idAllocator;
+        this.factory = factory;
+        this.producer = producer;
+        if (producer != null) {
+            this.connection = producer.setupConnection();
+        }
+    }
 
     /**
      * Disables fk (if not already disabled) and saves each object
@@ -92,70 +177,358 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      */
     public void persist(Iterable<?> objects) {
         Preconditions.checkNotNull(connection, "Connection is null, did you call setConnection()?");
+        if (classBatches == null) {
+            for (Object o : objects) {
+                persistGraph(o);
+            }
+            return;
+        }
+        // Left over if a previous call failed
+        clearClassBatches();
+        int roots = 0;
         for (Object o : objects) {
-            persistWithCyclicCheck(o, new HashSet<Object>());
+            persistGraph(o);
+            if (++roots == classBatchSize) {
+                writeClassBatches();
+                roots = 0;
+            }
+        }
+        writeClassBatches();
+    }
+
+    /**
+     * Persists objects like {@link #persist(Iterable)}, but encodes their rows on {@code parallelism} threads. The objects
+     * are split into chunks of consecutive roots. This thread walks each chunk and generates its ids in the same order as
+     * persist would, so every chunk gets a contiguous range of ids and the rows are the same as in a sequential run. A
+     * fork/join pool then encodes every chunk into buffers of its own, and this thread writes the buffers of each chunk
+     * in order of the roots. The connection and callbacks are only used by this thread.
+     * <p/>
+     * Rows added before are flushed first. Each chunk is written with statements of its own, and at most
+     * {@code 2 * parallelism} chunks are encoded ahead of the one being written. Chunks have {@link #setClassBatchSize(int)}
+     * roots if it is set. Entities shared between chunks must not be changed by callbacks while persistAll runs.
+     *
+     * @param objects     the objects to save
+     * @param parallelism the number of threads to encode rows on
+     */
+    public void persistAll(Collection<?> objects, int parallelism) {
+        Preconditions.checkNotNull(connection, "Connection is null, did you call setConnection()?");
+        Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive");
+        if (parallelism == 1) {
+            persist(objects);
+            return;
+        }
+        flush();
+
+        int chunksInFlight = CHUNKS_PER_THREAD * parallelism;
+        int chunkSize = classBatchSize > 0
+                        ? classBatchSize
+                        : Math.max(1, Math.min(MAX_CHUNK_SIZE, objects.size() / chunksInFlight));
+        Map<TraversalPlan, List<Object>> batches = classBatches;
+        Deque<Future<EncodedChunk>> encoding = new ArrayDeque<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Iterator<?> roots = objects.iterator();
+            while (roots.hasNext() || !encoding.isEmpty()) {
+                while (roots.hasNext() && encoding.size() < chunksInFlight) {
+                    encoding.add(pool.submit(walkChunk(roots, chunkSize)));
+                }
+                writeChunk(getEncodedChunk(encoding.poll()));
+            }
+        }
+        finally {
+            classBatches = batches;
+            // Chunks that were not written give their buffers back once they are encoded
+            for (Future<EncodedChunk> chunk : encoding) {
+                try {
+                    getEncodedChunk(chunk).releaseBuffers();
+                }
+                catch (RuntimeException e) {
+                    logger.debug("Discarding chunk that failed to encode.", e);
+                }
+            }
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Walks the next roots, generating ids and collecting entities by class, and copies the loaders to encode them with.
+     */
+    private EncodedChunk walkChunk(Iterator<?> roots, int chunkSize) {
+        classBatches = newLinkedHashMap();
+        for (int i = 0; i < chunkSize && roots.hasNext(); i++) {
+            persistGraph(roots.next());
+        }
+        EncodedChunk chunk = new EncodedChunk();
+        for (Map.Entry<TraversalPlan, List<Object>> batch : classBatches.entrySet()) {
+            chunk.entities.add(batch.getValue());
+            chunk.primaryLoaders.add(encodingLoader(batch.getKey().primaryLoader));
+            SingleInfileObjectLoader<Object> secondaryLoader = batch.getKey().secondaryLoader;
+            chunk.secondaryLoaders.add(secondaryLoader != null ? encodingLoader(secondaryLoader) : null);
+        }
+        return chunk;
+    }
+
+    private SingleInfileObjectLoader<Object> encodingLoader(SingleInfileObjectLoader<Object> loader) {
+        SingleInfileObjectLoader<Object> copy = loader.copy(newInfileDataBuffer(), connection);
+        copy.streamingConnection = streamingConnection;
+        copy.collectFullBuffers();
+        return copy;
+    }
+
+    /**
+     * Writes the rows of an encoded chunk, one class at a time.
+     */
+    private void writeChunk(EncodedChunk chunk) {
+        try {
+            for (int i = 0; i < chunk.entities.size(); i++) {
+                chunk.primaryLoaders.get(i).flushCollected();
+                for (Object entity : chunk.entities.get(i)) {
+                    callOnAfterEvent(entity);
+                }
+                if (chunk.secondaryLoaders.get(i) != null) {
+                    chunk.secondaryLoaders.get(i).flushCollected();
+                }
+            }
+        }
+        finally {
+            chunk.releaseBuffers();
+        }
+    }
+
+    private static EncodedChunk getEncodedChunk(Future<EncodedChunk> chunk) {
+        try {
+            return chunk.get();
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Writes the entities collected by walking a batch of roots, one class at a time.
+     */
+    private void writeClassBatches() {
+        for (Map.Entry<TraversalPlan, List<Object>> batch : classBatches.entrySet()) {
+            SingleInfileObjectLoader<Object> primaryLoader = batch.getKey().primaryLoader;
+            for (Object entity : batch.getValue()) {
+                primaryLoader.add(entity);
+                callOnAfterEvent(entity);
+            }
+            SingleInfileObjectLoader<Object> secondaryLoader = batch.getKey().secondaryLoader;
+            if (secondaryLoader != null) {
+                for (Object entity : batch.getValue()) {
+                    secondaryLoader.add(entity);
+                }
+            }
         }
+        clearClassBatches();
     }
 
-    private void persistWithCyclicCheck(Object entity, Set<Object> cyclicCheck) {
+    /**
+     * Empties the batches but keeps the lists, which are about the same size for the next batch of roots.
+     */
+    private void clearClassBatches() {
+        for (List<Object> batch : classBatches.values()) {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Saves an object and everything it depends on or that depends on it. The graph is walked on an explicit stack so deep
+     * graphs cannot overflow the call stack. An entity's children are saved before it, and the entities that need its
+     * generated id after it. The outermost walk reuses one stack and set for every root, and a callback that persists
+     * other objects during a walk gets a stack and set of its own.
+     */
+    private void persistGraph(Object root) {
+        boolean outermost = !walking;
+        // The entities being visited, innermost on top, and every entity saved since the root
+        Deque<Visit> traversal = outermost ? rootTraversal : new ArrayDeque<Visit>();
+        Set<Object> visited = outermost ? rootVisited : Sets.newIdentityHashSet();
+        walking = true;
+        try {
+            visit(root, traversal, visited);
+            while (!traversal.isEmpty()) {
+                Object next = nextDependent(traversal.peek());
+                if (next != null) {
+                    visit(next, traversal, visited);
+                }
+                else {
+                    traversal.pop();
+                }
+            }
+        }
+        finally {
+            if (outermost) {
+                walking = false;
+                rootTraversal.clear();
+                rootVisited.clear();
+            }
+        }
+    }
+
+    /**
+     * Starts on an entity unless it was already saved during this walk or its class is ignored.
+     */
+    private void visit(Object entity, Deque<Visit> traversal, Set<Object> visited) {
         Preconditions.checkNotNull(entity, "Cannot persist null");
 
-        // If we already saved this object then ignore
-        if (cyclicCheck.contains(entity)) {
+        // If we already saved this object then ignore. Entities are compared by identity, since unsaved entities may be
+        // equal to each other.
+        if (visited.contains(entity)) {
             logger.debug("Skipping in file persist on [{}] because it has already been saved.", entity);
             return;
         }
 
         // If we are supposed to ignore this class then also ignore
-        if (classesToIgnore.contains(entity.getClass())) {
-            logger.debug("Ignoring [{}].", entity);
-            return;
+        TraversalPlan plan = traversalPlans.get(entity.getClass());
+        if (plan == null) {
+            if (classesToIgnore.contains(entity.getClass())) {
+                logger.debug("Ignoring [{}].", entity);
+                return;
+            }
+            // Initialize for this class
+            plan = traversalPlan(entity.getClass());
         }
 
         logger.debug("Persisting [{}].", entity);
 
-        // Initialize for this class
-        initForClass(entity.getClass());
-
         // Add to a set so we don't save this object again
-        cyclicCheck.add(entity);
+        visited.add(entity);
+        traversal.push(new Visit(entity, plan));
+    }
+
+    /**
+     * Creates the loaders of a class if needed and the plan to save its entities with them.
+     */
+    private TraversalPlan traversalPlan(Class<?> aClass) {
+        TraversalPlan plan = traversalPlans.get(aClass);
+        if (plan == null) {
+            createObjectLoader(aClass, true);
+            plan = new TraversalPlan(persistenceAnnotationInspector, persistenceAnnotationInspector.entityMetadata(aClass),
+                                     primaryObjectLoaders.get(aClass), secondaryTableObjectLoaders.get(aClass));
+            traversalPlans.put(aClass, plan);
+        }
+        return plan;
+    }
+
+    private List<Object> classBatch(TraversalPlan plan) {
+        List<Object> batch = classBatches.get(plan);
+        if (batch == null) {
+            batch = newArrayList();
+            classBatches.put(plan, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Checks whether a related entity was saved by an earlier call to persist, recording it otherwise so that later calls
+     * skip it. Always false unless the reference cache is enabled.
+     */
+    private boolean isSavedReference(Object entity) {
+        if (savedReferences == null) {
+            return false;
+        }
+        if (savedReferences.getIfPresent(entity) != null) {
+            logger.debug("Skipping in file persist on [{}] because it was saved by an earlier persist.", entity);
+            return true;
+        }
+        savedReferences.put(entity, Boolean.TRUE);
+        return false;
+    }
+
+    /**
+     * Advances the visit of an entity, saving it once all of its children were visited.
+     *
+     * @return the next entity to visit, or null when the visit is done
+     */
+    private Object nextDependent(Visit visit) {
+        Object entity = visit.entity;
+        TraversalPlan plan = visit.plan;
 
         // Save dependent children first because there is a key that depends on these items
-        for (Method dependent : childDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
-            if (o != null) {
-                persistWithCyclicCheck(o, cyclicCheck);
+        while (visit.child < plan.children.length) {
+            Object o = plan.children[visit.child++].get(entity);
+            if (o != null && !isSavedReference(o)) {
+                return o;
             }
         }
 
         // Save this entity now that we know all children have been saved
-        callOnBeforeEvent(entity);
-        primaryObjectLoaders.get(entity.getClass()).add(entity);
-        callOnAfterEvent(entity);
-
-        // Get generated id
-        Object id = PersistenceAnnotationInspector.getIdValue(persistenceAnnotationInspector, entity);
+        if (!visit.saved) {
+            callOnBeforeEvent(entity);
+            if (classBatches != null) {
+                // Only the id is needed to go on, the row is written with the rest of its class
+                plan.primaryLoader.assignId(entity);
+                classBatch(plan).add(entity);
+            }
+            else {
+                plan.primaryLoader.add(entity);
+                callOnAfterEvent(entity);
+            }
+            visit.saved = true;
+            // Get generated id
+            visit.id = plan.metadata.getIdValue(entity);
+        }
 
         // Find all objects that depend entity's id being generated and save these now
-        for (Method dependent : parentDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
-            if (o != null) {
-                if (o instanceof Collection) {
-                    for (Object item : (Collection) o) {
-                        persistWithCyclicCheck(item, cyclicCheck);
-                    }
-                }
-                else {
-                    PersistenceAnnotationInspector.setIdValue(persistenceAnnotationInspector, o, id);
-                    persistWithCyclicCheck(o, cyclicCheck);
-                }
+        while (true) {
+            if (visit.items != null && visit.items.hasNext()) {
+                return Preconditions.checkNotNull(visit.items.next(), "Cannot persist null");
+            }
+            if (visit.parent == plan.parents.length) {
+                break;
+            }
+            TraversalPlan.Relationship parent = plan.parents[visit.parent++];
+            Object o = parent.get(entity);
+            if (o instanceof Collection) {
+                visit.items = ((Collection<?>) o).iterator();
+            }
+            else if (o != null) {
+                visit.items = null;
+                parent.setId(persistenceAnnotationInspector, o, visit.id);
+                return o;
             }
         }
 
         // Check to see if there is a secondary
-        if (secondaryTableObjectLoaders.containsKey(entity.getClass())) {
-            secondaryTableObjectLoaders.get(entity.getClass()).add(entity);
+        if (plan.secondaryLoader != null && classBatches == null) {
+            plan.secondaryLoader.add(entity);
+        }
+        return null;
+    }
+
+    /**
+     * Once the buffers have used up the segment pool's budget, flushes the buffer holding the most data so that its
+     * segments can be reused by whichever table needs them, instead of each table waiting to fill up on its own. Buffers
+     * with a single segment are left alone, since flushing them frees nothing. This only runs when a buffer cannot grow
+     * or a new buffer is needed, not for every row.
+     *
+     * @param growing the loader whose buffer cannot grow, which flushes itself if it is the fullest, or null
+     * @return true if another buffer was flushed
+     */
+    private boolean flushFullest(InfileObjectLoader<?> growing) {
+        if (!segmentPool.isBudgetExhausted()) {
+            return false;
+        }
+        SingleInfileObjectLoader<?> fullest = null;
+        int fullestSize = 0;
+        for (SingleInfileObjectLoader<?> loader : concat(primaryObjectLoaders.values(), secondaryTableObjectLoaders.values())) {
+            int size = loader.infileDataBuffer.getInfileSize();
+            if (size > fullestSize && loader.infileDataBuffer.getSegmentCount() > 1) {
+                fullest = loader;
+                fullestSize = size;
+            }
+        }
+        if (fullest == null || fullest == growing) {
+            return false;
         }
+        logger.debug("Memory budget reached, flushing [{}] bytes.", fullestSize);
+        fullest.flush();
+        return true;
     }
 
     private void callOnBeforeEvent(Object entity) {
@@ -166,15 +539,92 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         eventCallback.onAfterSave(entity);
     }
 
-    private void initForClass(Class<?> aClass) {
-        findParentDependents(aClass);
-        findChildDependents(aClass);
-        createObjectLoader(aClass);
+    /**
+     * Builds the loaders of the given classes and of every entity class they reach through relationships, and looks up
+     * the max ids of all of their tables with a single query. Afterwards persisting these classes only uses the connection
+     * to flush, instead of scanning annotations and querying the database when the first entity of each class shows up.
+     * Classes that already have loaders are skipped, so this can be called again with more classes.
+     *
+     * @param classes the entity classes to prepare
+     */
+    public void prepare(Class<?>... classes) {
+        Preconditions.checkNotNull(connection, "Connection is null, did you call setConnection()?");
+        Set<Class<?>> reachable = new LinkedHashSet<>();
+        Deque<Class<?>> toVisit = new ArrayDeque<>(Arrays.asList(classes));
+        while (!toVisit.isEmpty()) {
+            Class<?> aClass = toVisit.pop();
+            if (classesToIgnore.contains(aClass) || !reachable.add(aClass)) {
+                continue;
+            }
+            EntityMetadata metadata = persistenceAnnotationInspector.entityMetadata(aClass);
+            for (Method dependent : concat(metadata.getChildDependents(), metadata.getParentDependents())) {
+                Class<?> related = relatedClass(dependent);
+                if (related != null && persistenceAnnotationInspector.entityMetadata(related).hasTable()) {
+                    toVisit.push(related);
+                }
+            }
+        }
+
+        List<SingleInfileObjectLoader<Object>> created = newArrayList();
+        for (Class<?> aClass : reachable) {
+            if (createObjectLoader(aClass, false) && idAllocator == null) {
+                created.add(primaryObjectLoaders.get(aClass));
+                if (secondaryTableObjectLoaders.containsKey(aClass)) {
+                    created.add(secondaryTableObjectLoaders.get(aClass));
+                }
+            }
+        }
+        logger.debug("Prepared loaders for [{}].", reachable);
+        SingleInfileObjectLoaderBuilder.findMaxIds(connection, created);
+        for (Class<?> aClass : reachable) {
+            traversalPlan(aClass);
+        }
+    }
+
+    /**
+     * @return the entity class of a relationship, the element type for collections, or null if it is not known
+     */
+    private static Class<?> relatedClass(Method dependent) {
+        if (!Collection.class.isAssignableFrom(dependent.getReturnType())) {
+            return dependent.getReturnType();
+        }
+        Type type = dependent.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (element instanceof Class) {
+                return (Class<?>) element;
+            }
+        }
+        return null;
     }
 
-    private void createObjectLoader(Class<?> aClass) {
+    /**
+     * @return true if new loaders were created
+     */
+    private boolean createObjectLoader(Class<?> aClass, boolean lookUpMaxId) {
         if (primaryObjectLoaders.containsKey(aClass)) {
-            return;
+            return false;
+        }
+        // Building a loader queries the connection, which cannot happen while a statement is streaming
+        streamingConnection.finishStream();
+        // Every new buffer takes a segment
+        flushFullest(null);
+        if (factory != null) {
+            List<SingleInfileObjectLoader<Object>> loaders;
+            // The producers of a concurrent loader share the connection
+            synchronized (connection) {
+                loaders = factory.createLoaders(aClass, connection, segmentPool, idAllocator, useReplace, useRawBinary);
+            }
+            primaryObjectLoaders.put(aClass, configureSessionLoader(loaders.get(0)));
+            for (SingleInfileObjectLoader<Object> secondaryLoader : loaders.subList(1, loaders.size())) {
+                if (!secondaryClassesToIgnore.contains(secondaryLoader.tableName)) {
+                    secondaryTableObjectLoaders.put(aClass, configureSessionLoader(secondaryLoader));
+                }
+                else {
+                    secondaryLoader.releaseBuffers();
+                }
+            }
+            return true;
         }
         @SuppressWarnings("unchecked")
         SingleInfileObjectLoader<Object> primaryLoader = new SingleInfileObjectLoaderBuilder<Object>((Class<Object>) aClass)
@@ -183,11 +633,18 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
                 .withJdbcConnection(connection)
                 .usingAnnotationInspector(persistenceAnnotationInspector)
                 .useReplace(useReplace)
+                .useRawBinary(useRawBinary)
+                .streaming(maxRowsPerStatement, maxBytesPerStatement, streamingConnection)
+                .useAsyncFlush(useAsyncFlush)
+                .lookUpMaxId(lookUpMaxId)
+                .withIdAllocator(idAllocator)
                 .build();
+        primaryLoader.flushExecutor = getFlushExecutor();
+        primaryLoader.budgetListener = budgetListener;
 
         primaryObjectLoaders.put(aClass, primaryLoader);
 
-        for (SecondaryTable secondaryTable : persistenceAnnotationInspector.findSecondaryTables(aClass)) {
+        for (SecondaryTable secondaryTable : persistenceAnnotationInspector.entityMetadata(aClass).getSecondaryTables()) {
             if (!secondaryClassesToIgnore.contains(secondaryTable.name())) {
                 @SuppressWarnings("unchecked")
                 SingleInfileObjectLoader<Object> secondaryLoader
@@ -198,79 +655,49 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
                         .withJdbcConnection(connection)
                         .usingAnnotationInspector(persistenceAnnotationInspector)
                         .useReplace(useReplace)
+                        .useRawBinary(useRawBinary)
+                        .streaming(maxRowsPerStatement, maxBytesPerStatement, streamingConnection)
+                        .useAsyncFlush(useAsyncFlush)
+                        .lookUpMaxId(lookUpMaxId)
+                        .withIdAllocator(idAllocator)
                         .build();
+                secondaryLoader.flushExecutor = getFlushExecutor();
+                secondaryLoader.budgetListener = budgetListener;
 
                 secondaryTableObjectLoaders.put(aClass, secondaryLoader);
             }
         }
+        return true;
     }
 
 
-    private void findParentDependents(Class<?> aClass) {
-        if (parentDependent.containsKey(aClass)) {
-            return;
-        }
-        Set<Method> methods = newHashSet(persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToMany.class));
-        methods.addAll(persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToOne.class,
-                                                                           PrimaryKeyJoinColumn.class));
-        parentDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
-
-        // Do all children again
-        for (Method m : methods) {
-            findParentDependents(getReturnType(m));
-        }
-    }
-
-    private void findChildDependents(Class<?> aClass) {
-        if (childDependent.containsKey(aClass)) {
-            return;
-        }
-
-        Set<Method> methods = newHashSet(persistenceAnnotationInspector.methodsAnnotatedWith(aClass, ManyToOne.class));
-        methods.addAll(persistenceAnnotationInspector.methodsAnnotatedWith(aClass, new Predicate<Method>() {
-            @Override
-            public boolean apply(Method m) {
-                // Must have OneToOne but not PrimaryKeyJoinColumn annotations
-                return persistenceAnnotationInspector.hasAnnotation(m, OneToOne.class)
-                       && !persistenceAnnotationInspector.hasAnnotation(m, PrimaryKeyJoinColumn.class);
-            }
-        }));
-
-        childDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
-
-        // Do all children again
-        for (Method m : methods) {
-            findChildDependents(getReturnType(m));
+    /**
+     * Applies the settings that the builder would have applied to a loader copied from a factory's template.
+     */
+    private SingleInfileObjectLoader<Object> configureSessionLoader(SingleInfileObjectLoader<Object> loader) {
+        loader.streamingConnection = streamingConnection;
+        loader.setStreaming(maxRowsPerStatement, maxBytesPerStatement);
+        loader.setAsyncFlush(useAsyncFlush);
+        loader.flushExecutor = getFlushExecutor();
+        loader.budgetListener = budgetListener;
+        if (producer != null) {
+            loader.collectFullBuffers(producer.tableSink(loader.loadInfileSql));
         }
+        return loader;
     }
 
-    private Class getReturnType(Method m) {
-        final Class returnType;
-        if (m.getGenericReturnType() instanceof ParameterizedType) {
-            // For List<String> etc...
-            ParameterizedType type = (ParameterizedType) m.getGenericReturnType();
-            returnType = (Class) type.getActualTypeArguments()[0];
-        }
-        else {
-            returnType = (Class) m.getGenericReturnType();
+    /**
+     * All loaders share one flush executor, so that only one statement at a time runs on the connection.
+     */
+    private ListeningExecutorService getFlushExecutor() {
+        if (flushExecutor == null) {
+            flushExecutor = InfileObjectLoader.newFlushExecutor();
         }
-        return returnType;
+        return flushExecutor;
     }
 
     private InfileDataBuffer newInfileDataBuffer() {
-        return new InfileDataBuffer();
-    }
-
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (InvocationTargetException e) {
-            throw propagate(e);
-        }
-        catch (IllegalAccessException e) {
-            throw propagate(e);
-        }
+        return new InfileDataBuffer(Charsets.UTF_8, infileBufferSize, segmentPool);
     }
 
     /**
@@ -287,6 +714,21 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         }
     }
 
+    /**
+     * Flushes all object loaders asynchronously, see {@link InfileObjectLoader#flushAsync()}. Statements run one at a time
+     * on a single writer thread that owns the connection.
+     *
+     * @return the results of all loaders, which fails if any of the statements fails
+     */
+    public ListenableFuture<List<FlushResult>> flushAsync() {
+        logger.debug("Flushing all object loaders asynchronously.");
+        List<ListenableFuture<FlushResult>> results = newArrayList();
+        for (SingleInfileObjectLoader<?> loader : concat(primaryObjectLoaders.values(), secondaryTableObjectLoaders.values())) {
+            results.add(loader.flushAsync());
+        }
+        return Futures.allAsList(results);
+    }
+
     /**
      * Closes all object loaders.
      * <p/>
@@ -295,9 +737,7 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
     @Override
     public void close() {
         flush();
-        logger.debug("Closing all object loaders.");
-        primaryObjectLoaders.clear();
-        secondaryTableObjectLoaders.clear();
+        releaseLoaders();
         JdbcUtil.execute(this.connection, new JdbcUtil.StatementCallback<Boolean>() {
             @Override
             public Boolean doInStatement(Statement statement) throws SQLException {
@@ -306,6 +746,25 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         });
     }
 
+    /**
+     * Gives the buffers of all loaders back to the pool and forgets the loaders, without writing anything.
+     */
+    void releaseLoaders() {
+        logger.debug("Closing all object loaders.");
+        for (SingleInfileObjectLoader<?> loader : concat(primaryObjectLoaders.values(), secondaryTableObjectLoaders.values())) {
+            loader.releaseBuffers();
+        }
+        primaryObjectLoaders.clear();
+        secondaryTableObjectLoaders.clear();
+        traversalPlans.clear();
+        if (classBatches != null) {
+            classBatches.clear();
+        }
+        if (savedReferences != null) {
+            savedReferences.invalidateAll();
+        }
+    }
+
     /**
      * Disables foreign key checks for this connection by executing {@code SET FOREIGN_KEY_CHECKS = 0}
      */
@@ -321,6 +780,8 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
 
     public void setClassesToIgnore(Set<Class> classToIgnore) {
         this.classesToIgnore = classToIgnore;
+        // Plans exist only for classes that are not ignored
+        this.traversalPlans.clear();
     }
 
     public void setSecondaryClassesToIgnore(Set<String> secondaryClassesToIgnore) {
@@ -339,6 +800,182 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         this.useReplace = useReplace;
     }
 
+    /**
+     * Toggles writing binary columns as escaped raw bytes instead of hex digits that are unhexed by MySQL. This halves the
+     * bytes sent for columns such as {@code BINARY(16)} hashes and UUIDs.
+     */
+    public void setUseRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+    }
+
+    /**
+     * Sets the pool that infile buffers take their segments from. Loaders created afterwards use the new pool. Defaults to
+     * heap segments of {@link InfileSegmentPool#DEFAULT_SEGMENT_SIZE} bytes, and can be shared between loaders. If the
+     * pool has a memory budget, the fullest buffer is flushed whenever a buffer cannot grow.
+     */
+    public void setSegmentPool(InfileSegmentPool segmentPool) {
+        this.segmentPool = Preconditions.checkNotNull(segmentPool, "Segment pool cannot be null");
+        this.customSegmentPool = true;
+    }
+
+    /**
+     * Limits the memory used by the buffers of all tables together. Buffers grow a segment at a time as rows are added,
+     * and when one cannot grow because the budget is used up the fullest buffer is flushed. Every buffer needs at least
+     * one segment: one per table, two with asynchronous flushes, plus the buffers of the chunks that
+     * {@link #persistAll(Collection, int)} encodes. Creating a buffer fails once the budget is used up.
+     * <p/>
+     * Replaces the default segment pool with one that has the same segments and the given budget, so call this before
+     * persisting anything. For a pool set with {@link #setSegmentPool(InfileSegmentPool)} or shared with a factory, create
+     * that pool with the budget instead.
+     *
+     * @param budgetBytes the most bytes to hold in infile buffers, at least one segment
+     */
+    public void setMemoryBudget(long budgetBytes) {
+        Preconditions.checkState(!customSegmentPool, "Cannot replace a segment pool that was set, give it the budget instead");
+        Preconditions.checkState(primaryObjectLoaders.isEmpty(), "Set the memory budget before persisting anything");
+        this.segmentPool = new InfileSegmentPool(segmentPool.getSegmentSize(), segmentPool.isDirect(), budgetBytes);
+    }
+
+    /**
+     * Streams rows to {@code LOAD DATA} statements that read them while further rows are being encoded, instead of
+     * sending each full buffer in one blocking call. A statement stays open until it has received the given number of
+     * rows or bytes, until another table needs the connection, or until {@link #flush()}. Applies to loaders created
+     * afterwards, so call this before persisting anything. Both limits 0 turns streaming off, which is the default.
+     *
+     * @param maxRowsPerStatement  rows after which a statement is completed, or 0 for no limit
+     * @param maxBytesPerStatement bytes after which a statement is completed, or 0 for no limit
+     */
+    public void setStreaming(int maxRowsPerStatement, long maxBytesPerStatement) {
+        this.maxRowsPerStatement = maxRowsPerStatement;
+        this.maxBytesPerStatement = maxBytesPerStatement;
+    }
+
+    /**
+     * Toggles flushing full buffers on a writer thread while rows are added to a second buffer, so that persisting only
+     * waits for the database when both buffers of a table are full. Applies to loaders created afterwards, so call this
+     * before persisting anything. Cannot be combined with {@link #setStreaming(int, long)}.
+     */
+    public void setUseAsyncFlush(boolean useAsyncFlush) {
+        this.useAsyncFlush = useAsyncFlush;
+    }
+
+    /**
+     * Toggles writing rows one class at a time. persist first walks {@code rootsPerBatch} of the objects it is given and
+     * only generates ids, collecting the entities of each class, and then adds all entities of a class to its loader in
+     * one loop. Each class's buffer and row encoder stay hot instead of alternating between every table of the graph,
+     * which pays off for large batches. Rows and ids are the same as without batching. Only the order changes:
+     * {@link CallBack#onAfterSave(Object)} is called when the row is written, after the whole batch was walked.
+     *
+     * @param rootsPerBatch the number of objects to walk before writing their rows, or 0 to write rows while walking
+     */
+    public void setClassBatchSize(int rootsPerBatch) {
+        Preconditions.checkArgument(rootsPerBatch >= 0, "Batch size cannot be negative");
+        this.classBatchSize = rootsPerBatch;
+        if (rootsPerBatch == 0) {
+            this.classBatches = null;
+        }
+        else {
+            this.classBatches = newLinkedHashMap();
+        }
+    }
+
+    /**
+     * Remembers up to {@code maximumSize} entities that were saved through a {@link javax.persistence.ManyToOne} or
+     * {@link javax.persistence.OneToOne} relationship, so that later calls to persist skip them and only write their ids
+     * as foreign keys. This saves one row per distinct entity for reference data shared by many objects, for example a
+     * supplier shared by all products. Entities are compared by identity and held with weak references, and the least
+     * recently used are forgotten first. Changes made to a remembered entity after it was saved are not written.
+     * Disabled by default, and cleared by {@link #close()}.
+     *
+     * @param maximumSize the number of entities to remember, or 0 to disable
+     */
+    public void setReferenceCacheSize(int maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "Maximum size cannot be negative");
+        this.savedReferences = maximumSize == 0
+                               ? null
+                               : CacheBuilder.newBuilder().weakKeys().maximumSize(maximumSize).<Object, Boolean>build();
+    }
+
+    /**
+     * Generates ids with an allocator instead of counting up from the max id of each table, see {@link IdAllocator}.
+     * Applies to loaders created afterwards, so call this before persisting anything. Sessions of an
+     * {@link InfileLoaderFactory} start with the factory's allocator.
+     */
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+    /**
+     * Reads the annotations of entity classes from a snapshot instead of scanning the classes again, as long as they have
+     * not changed, and adds the classes that are scanned to it. Call this before persisting anything, and write the
+     * snapshot once done if {@link EntityMetadataSnapshot#isModified()}.
+     */
+    public void setMetadataSnapshot(EntityMetadataSnapshot snapshot) {
+        persistenceAnnotationInspector.useSnapshot(snapshot);
+    }
+
+    /**
+     * The entities of a chunk of roots by class, and the loaders that encode them on a worker thread. The loaders keep
+     * their full buffers until the chunk is written.
+     */
+    private static final class EncodedChunk implements Callable<EncodedChunk> {
+        private final List<List<Object>> entities = newArrayList();
+        private final List<SingleInfileObjectLoader<Object>> primaryLoaders = newArrayList();
+        // Null for classes without a secondary loader
+        private final List<SingleInfileObjectLoader<Object>> secondaryLoaders = newArrayList();
+
+        @Override
+        public EncodedChunk call() {
+            try {
+                for (int i = 0; i < entities.size(); i++) {
+                    SingleInfileObjectLoader<Object> primaryLoader = primaryLoaders.get(i);
+                    for (Object entity : entities.get(i)) {
+                        primaryLoader.add(entity);
+                    }
+                    SingleInfileObjectLoader<Object> secondaryLoader = secondaryLoaders.get(i);
+                    if (secondaryLoader != null) {
+                        for (Object entity : entities.get(i)) {
+                            secondaryLoader.add(entity);
+                        }
+                    }
+                }
+                return this;
+            }
+            catch (RuntimeException e) {
+                releaseBuffers();
+                throw e;
+            }
+        }
+
+        private void releaseBuffers() {
+            for (SingleInfileObjectLoader<Object> loader : concat(primaryLoaders, secondaryLoaders)) {
+                if (loader != null) {
+                    loader.releaseBuffers();
+                }
+            }
+        }
+    }
+
+    /**
+     * The progress of persist on one entity.
+     */
+    private static final class Visit {
+        private final Object entity;
+        private final TraversalPlan plan;
+        // The next child and parent relationship to read
+        private int child;
+        private int parent;
+        // The collection of the current parent relationship, if it is one
+        private Iterator<?> items;
+        private boolean saved;
+        private Object id;
+
+        private Visit(Object entity, TraversalPlan plan) {
+            this.entity = entity;
+            this.plan = plan;
+        }
+    }
+
     /**
      * An event interface that can be used to do perform actions before and after persisting objects
      */
@@ -0,0 +1,42 @@
+package com.opower.persistence.jpile.loader;
+
+import java.sql.Connection;
+
+/**
+ * Hands out the ids of entities whose {@link javax.persistence.Id &#064;Id} is generated with
+ * {@link javax.persistence.GenerationType#AUTO}. Loaders ask for the sequence of their table once, when they are built,
+ * and then take an id from it for every entity that does not have one yet.
+ * <p/>
+ * jPile comes with
+ * <ul>
+ *     <li>{@link MaxIdAllocator}, which counts up from {@code max(id)} separately for each loader,</li>
+ *     <li>{@link AtomicIdAllocator}, which shares one counter per table between all loaders in the JVM,</li>
+ *     <li>{@link HiLoIdAllocator}, which reserves blocks of ids in a sequence table so that several JVMs can load the same
+ *     table.</li>
+ * </ul>
+ * Without an allocator, loaders behave like {@link MaxIdAllocator}.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public interface IdAllocator {
+    /**
+     * Returns the sequence of ids of a table. Called while a loader is built, when the connection can still be queried.
+     *
+     * @param connection   the connection of the loader
+     * @param tableName    the table
+     * @param idColumnName the id column of the table
+     * @return the sequence, which must be safe for use by multiple threads if it is shared between loaders
+     */
+    Sequence forTable(Connection connection, String tableName, String idColumnName);
+
+    /**
+     * The ids of one table.
+     */
+    interface Sequence {
+        /**
+         * @return an id that was not handed out before
+         */
+        long next();
+    }
+}
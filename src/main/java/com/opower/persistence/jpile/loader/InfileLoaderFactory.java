@@ -0,0 +1,187 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSegmentPool;
+import com.opower.persistence.jpile.reflection.CachedProxy;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+
+import javax.persistence.SecondaryTable;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates {@link HierarchicalInfileObjectLoader} sessions that share everything that does not depend on the session, for
+ * services that persist in many short sessions. A usual setup is one factory per application:
+ * <pre>
+ *     InfileLoaderFactory factory = new InfileLoaderFactory();
+ *     ...
+ *     HierarchicalInfileObjectLoader session = factory.newSession(connection);
+ *     try {
+ *         session.persist(foo, bar);
+ *     } finally {
+ *         session.close();
+ *     }
+ * </pre>
+ * The factory keeps
+ * <ul>
+ *     <li>one annotation inspector, so classes are scanned once,</li>
+ *     <li>a template loader per class, table and options, which sessions copy instead of building loaders,</li>
+ *     <li>one segment pool, so buffers released by a session are reused by the next one,</li>
+ *     <li>one {@link IdAllocator}, by default an {@link AtomicIdAllocator} so that concurrent sessions never generate the
+ *     same id and the max id of a table is only queried the first time it is used.</li>
+ * </ul>
+ * <p/>
+ * Instances of this class are safe for use by multiple threads. Sessions are not, each one belongs to one thread. A
+ * {@link ConcurrentInfileObjectLoader} gives every thread a session and writes their rows with a few shared connections.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class InfileLoaderFactory {
+    final PersistenceAnnotationInspector persistenceAnnotationInspector =
+            CachedProxy.create(new PersistenceAnnotationInspector());
+    final InfileSegmentPool segmentPool;
+    // The most bytes the infile of each buffer holds before it is flushed
+    int infileBufferSize = InfileDataBuffer.DEFAULT_INFILE_BUFFER_SIZE;
+    final IdAllocator idAllocator;
+
+    // The primary loader first, then one loader per secondary table. Keyed by class, useReplace and useRawBinary.
+    private final ConcurrentMap<List<Object>, List<SingleInfileObjectLoader<Object>>> templates =
+            new ConcurrentHashMap<>();
+
+    public InfileLoaderFactory() {
+        this(new InfileSegmentPool());
+    }
+
+    /**
+     * @param segmentPool where the buffers of all sessions take their segments from, its budget is shared by all sessions
+     */
+    public InfileLoaderFactory(InfileSegmentPool segmentPool) {
+        this(segmentPool, new AtomicIdAllocator());
+    }
+
+    /**
+     * @param segmentPool where the buffers of all sessions take their segments from, its budget is shared by all sessions
+     * @param idAllocator generates the ids of all sessions, and must be safe for use by multiple threads
+     */
+    public InfileLoaderFactory(InfileSegmentPool segmentPool, IdAllocator idAllocator) {
+        this.segmentPool = Preconditions.checkNotNull(segmentPool, "Segment pool cannot be null");
+        this.idAllocator = Preconditions.checkNotNull(idAllocator, "Id allocator cannot be null");
+    }
+
+    /**
+     * Creates a session. Sessions are configured like any {@link HierarchicalInfileObjectLoader} and must be closed,
+     * which gives their buffers back to the factory's pool.
+     *
+     * @param connection the connection of the session
+     * @return the new session
+     */
+    public HierarchicalInfileObjectLoader newSession(Connection connection) {
+        HierarchicalInfileObjectLoader session = new HierarchicalInfileObjectLoader(this);
+        session.setConnection(connection);
+        return session;
+    }
+
+    /**
+     * Makes the next session that uses a table query its max id again, for when rows were inserted by something other
+     * than the sessions of this factory. This only affects an {@link AtomicIdAllocator}, the other allocators do not cache
+     * max ids. Ids never go back, so sessions already running keep generating unique ids.
+     */
+    public void refreshMaxIds() {
+        if (idAllocator instanceof AtomicIdAllocator) {
+            ((AtomicIdAllocator) idAllocator).refreshMaxIds();
+        }
+    }
+
+    /**
+     * @return the segment pool of all sessions
+     */
+    public InfileSegmentPool getSegmentPool() {
+        return segmentPool;
+    }
+
+    /**
+     * @return the id allocator that sessions start with
+     */
+    public IdAllocator getIdAllocator() {
+        return idAllocator;
+    }
+
+    /**
+     * Creates the loaders of a class for a session by copying the templates, building the templates first if needed.
+     *
+     * @return the primary loader followed by one loader per secondary table
+     */
+    List<SingleInfileObjectLoader<Object>> createLoaders(Class<?> aClass, Connection connection,
+                                                        InfileSegmentPool sessionPool, IdAllocator sessionIdAllocator,
+                                                        boolean useReplace, boolean useRawBinary) {
+        List<Object> key = Arrays.<Object>asList(aClass, useReplace, useRawBinary);
+        List<SingleInfileObjectLoader<Object>> classTemplates = templates.get(key);
+        if (classTemplates == null) {
+            classTemplates = buildTemplates(aClass, connection, useReplace, useRawBinary);
+            List<SingleInfileObjectLoader<Object>> existing = templates.putIfAbsent(key, classTemplates);
+            if (existing != null) {
+                classTemplates = existing;
+            }
+        }
+
+        ImmutableList.Builder<SingleInfileObjectLoader<Object>> loaders = ImmutableList.builder();
+        for (SingleInfileObjectLoader<Object> template : classTemplates) {
+            SingleInfileObjectLoader<Object> loader = template.copy(newInfileDataBuffer(sessionPool), connection);
+            if (loader.autoGenerateId && sessionIdAllocator != null) {
+                loader.idSequence = sessionIdAllocator.forTable(connection, loader.tableName, loader.idColumnName);
+            }
+            else if (loader.autoGenerateId) {
+                loader.setAutoGeneratedId(
+                        SingleInfileObjectLoaderBuilder.findMaxId(loader.idColumnName, loader.tableName, connection));
+            }
+            loaders.add(loader);
+        }
+        return loaders.build();
+    }
+
+    private List<SingleInfileObjectLoader<Object>> buildTemplates(Class<?> aClass, Connection connection,
+                                                                  boolean useReplace, boolean useRawBinary) {
+        @SuppressWarnings("unchecked")
+        Class<Object> objectClass = (Class<Object>) aClass;
+        ImmutableList.Builder<SingleInfileObjectLoader<Object>> builder = ImmutableList.builder();
+        builder.add(new SingleInfileObjectLoaderBuilder<>(objectClass)
+                            .withBuffer(newInfileDataBuffer(segmentPool))
+                            .withDefaultTableName()
+                            .withJdbcConnection(connection)
+                            .usingAnnotationInspector(persistenceAnnotationInspector)
+                            .useReplace(useReplace)
+                            .useRawBinary(useRawBinary)
+                            .lookUpMaxId(false)
+                            .build());
+        for (SecondaryTable secondaryTable : persistenceAnnotationInspector.entityMetadata(aClass).getSecondaryTables()) {
+            builder.add(new SingleInfileObjectLoaderBuilder<>(objectClass)
+                                .withBuffer(newInfileDataBuffer(segmentPool))
+                                .withDefaultTableName()
+                                .usingSecondaryTable(secondaryTable)
+                                .withJdbcConnection(connection)
+                                .usingAnnotationInspector(persistenceAnnotationInspector)
+                                .useReplace(useReplace)
+                                .useRawBinary(useRawBinary)
+                                .lookUpMaxId(false)
+                                .build());
+        }
+        List<SingleInfileObjectLoader<Object>> classTemplates = builder.build();
+        // Templates are only copied, they never hold rows
+        for (SingleInfileObjectLoader<Object> template : classTemplates) {
+            template.releaseBuffers();
+            template.connection = null;
+        }
+        return classTemplates;
+    }
+
+    private InfileDataBuffer newInfileDataBuffer(InfileSegmentPool pool) {
+        return new InfileDataBuffer(Charsets.UTF_8, infileBufferSize, pool);
+    }
+}
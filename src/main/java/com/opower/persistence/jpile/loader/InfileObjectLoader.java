@@ -1,14 +1,35 @@
 package com.opower.persistence.jpile.loader;
 
 import java.io.Flushable;
+import java.nio.BufferOverflowException;
 import java.sql.Connection;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfilePipe;
 import com.opower.persistence.jpile.infile.InfileRow;
 import com.opower.persistence.jpile.infile.InfileStatementCallback;
 import com.opower.persistence.jpile.util.JdbcUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Throwables.propagate;
 
 /**
  * This class provides a convenient pattern for loading POJOs in batch to MySQL via tha 'LOAD DATA INFILE' protocol.
@@ -29,6 +50,15 @@ import com.opower.persistence.jpile.util.JdbcUtil;
  * @since 1.0
  */
 public abstract class InfileObjectLoader<E> implements Flushable {
+    private static Logger logger = LoggerFactory.getLogger(InfileObjectLoader.class);
+
+    // When streaming, rows are passed on to the open statement in chunks of about this many bytes
+    static final int STREAMING_CHUNK_SIZE = 64 * 1024; // 64kB
+    private static final int STREAMING_CHUNK_COUNT = 8;
+
+    // Runs the statements that read streamed rows. Idle threads go away after a minute.
+    private static final ExecutorService STREAMING_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-infile-stream-%d").build());
 
     protected Connection connection;
     protected String loadInfileSql;
@@ -38,6 +68,34 @@ public abstract class InfileObjectLoader<E> implements Flushable {
     // build a very large one if needed.
     private List<Exception> warnings;
 
+    // Streaming is off while both limits are 0
+    private int maxRowsPerStatement;
+    private long maxBytesPerStatement;
+    // Makes sure loaders sharing a connection do not stream into it at the same time, null if the connection is not shared
+    StreamingConnection streamingConnection;
+
+    // The statement reading streamed rows, null if there is none
+    private InfilePipe pipe;
+    private Future<List<Exception>> pendingStatement;
+    private int streamedRows;
+    private int bufferedRows;
+
+    // Asynchronous flushes run on the flush executor, which must run one statement at a time because it owns the
+    // connection. Created when first needed unless the connection is shared.
+    private boolean asyncFlush;
+    ListeningExecutorService flushExecutor;
+    // The buffer being flushed and its result, or null if there is no flush in flight
+    private InfileDataBuffer flushingBuffer;
+    private ListenableFuture<FlushResult> pendingFlush;
+    // An empty buffer to swap in on the next asynchronous flush
+    private InfileDataBuffer spareBuffer;
+    // Asked to free segments when the infile cannot grow because the segment pool's budget is used up, may be null
+    BudgetListener budgetListener;
+    // Where full buffers go instead of being flushed, null unless this loader only encodes rows
+    private FullBufferSink fullBufferSink;
+    // The full buffers kept by this loader for flushCollected(), null unless it keeps them
+    private Queue<InfileDataBuffer> fullBuffers;
+
     /**
      * For subclasses to extend correctly
      */
@@ -52,15 +110,91 @@ public abstract class InfileObjectLoader<E> implements Flushable {
     public void add(E entity) {
         Preconditions.checkNotNull(entity, "Entity to add cannot be null");
 
-        this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
-        if (!this.infileDataBuffer.addRowToInfile()) {
-            this.flush();
-            if (!this.infileDataBuffer.addRowToInfile()) {
-                // This should be impossible, as the buffer asserts that an empty infile can accept
-                // any valid row.
-                throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed.");
+        if (this.infileDataBuffer.isWritingRowsInPlace()) {
+            if (!this.addRowInPlace(entity) && !(this.nextSegment() && this.addRowInPlace(entity))) {
+                this.makeRoom();
+                if (!this.addRowInPlace(entity)) {
+                    throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed. "
+                                                    + "The row is larger than the infile buffer or one of its segments.");
+                }
+            }
+        }
+        else {
+            this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
+            if (!this.infileDataBuffer.addRowToInfile()
+                && !(this.freeSegments() && this.infileDataBuffer.addRowToInfile())) {
+                InfileDataBuffer fullBuffer = this.infileDataBuffer;
+                this.makeRoom();
+                if (this.infileDataBuffer != fullBuffer) {
+                    // The row was staged in the buffer that was swapped out, so encode it again
+                    this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
+                }
+                if (!this.infileDataBuffer.addRowToInfile()) {
+                    // This should be impossible, as the buffer asserts that an empty infile can accept
+                    // any valid row.
+                    throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed.");
+                }
             }
         }
+
+        if (this.isStreaming()) {
+            this.bufferedRows++;
+            if (this.infileDataBuffer.getInfileSize() >= STREAMING_CHUNK_SIZE) {
+                this.streamRows();
+            }
+        }
+    }
+
+    /**
+     * Moves the infile on to its next segment, asking the budget listener to free segments if there are none left.
+     */
+    private boolean nextSegment() {
+        return this.infileDataBuffer.nextSegment() || (this.freeSegments() && this.infileDataBuffer.nextSegment());
+    }
+
+    private boolean freeSegments() {
+        return this.budgetListener != null && this.budgetListener.onBudgetExhausted(this);
+    }
+
+    /**
+     * Empties the infile buffer when it is full, either by flushing it or, when streaming, by passing its rows on to the
+     * open statement.
+     */
+    private void makeRoom() {
+        if (this.fullBufferSink != null) {
+            this.collectBuffer();
+        }
+        else if (this.isStreaming()) {
+            this.streamRows();
+        }
+        else if (this.asyncFlush) {
+            this.flushAsync();
+        }
+        else {
+            this.flush();
+        }
+    }
+
+    /**
+     * Encodes an entity straight into the infile buffer. If the row does not fit, or the entity cannot be converted, the
+     * partial row is rolled back so that the infile only ever holds complete rows.
+     *
+     * @param entity to be added to infile
+     * @return {@code true} if the row fit into the infile
+     */
+    private boolean addRowInPlace(E entity) {
+        try {
+            this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
+        }
+        catch (BufferOverflowException e) {
+            this.infileDataBuffer.rollbackRow();
+            return false;
+        }
+        catch (RuntimeException e) {
+            this.infileDataBuffer.rollbackRow();
+            throw e;
+        }
+        return this.infileDataBuffer.addRowToInfile();
     }
 
     /**
@@ -77,13 +211,336 @@ public abstract class InfileObjectLoader<E> implements Flushable {
      */
     @Override
     public void flush() {
+        if (this.fullBufferSink != null) {
+            // Whoever takes the full buffers writes the rows
+            if (this.infileDataBuffer.getInfileSize() > 0) {
+                this.collectBuffer();
+            }
+            return;
+        }
+        if (this.pipe != null) {
+            this.infileDataBuffer.drainTo(this.pipe);
+            this.finishStream();
+            return;
+        }
+        if (this.asyncFlush) {
+            this.flushAsync();
+            this.awaitPendingFlush();
+            return;
+        }
+        this.awaitPendingFlush();
+        if (this.streamingConnection != null) {
+            // Another loader may be streaming into the connection
+            this.streamingConnection.finishStream();
+        }
+        this.bufferedRows = 0;
+        this.writeInfile(this.infileDataBuffer);
+    }
+
+    private void writeInfile(InfileDataBuffer buffer) {
         JdbcUtil.StatementCallback<List<Exception>> statementCallback = new InfileStatementCallback(
-                this.loadInfileSql, this.infileDataBuffer.asInputStream()
+                this.loadInfileSql, buffer.asInputStream()
         );
         this.warnings = JdbcUtil.execute(connection, statementCallback);
-        this.infileDataBuffer.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Makes this loader hand full buffers to a sink instead of flushing them, so that it can encode rows on a thread that
+     * must not use the connection. {@link #flush()} hands over the current buffer as well. Whoever takes the buffers from
+     * the sink writes their rows and gives them back to the pool.
+     *
+     * @param sink where full buffers go
+     */
+    void collectFullBuffers(FullBufferSink sink) {
+        this.fullBufferSink = sink;
     }
 
+    /**
+     * Keeps full buffers in a queue of this loader, see {@link #flushCollected()}.
+     */
+    void collectFullBuffers() {
+        final Queue<InfileDataBuffer> queue = new ArrayDeque<>();
+        this.collectFullBuffers(new FullBufferSink() {
+            @Override
+            public void put(InfileDataBuffer buffer) {
+                queue.add(buffer);
+            }
+        });
+        this.fullBuffers = queue;
+    }
+
+    private void collectBuffer() {
+        InfileDataBuffer buffer = this.infileDataBuffer;
+        this.infileDataBuffer = buffer.newBuffer();
+        this.fullBufferSink.put(buffer);
+    }
+
+    /**
+     * Writes the buffers kept since {@link #collectFullBuffers()} in the order they filled up, gives them back to the pool
+     * and then writes the current buffer unless it is empty.
+     */
+    void flushCollected() {
+        if (this.streamingConnection != null) {
+            this.streamingConnection.finishStream();
+        }
+        InfileDataBuffer buffer;
+        while ((buffer = this.fullBuffers.poll()) != null) {
+            try {
+                this.writeInfile(buffer);
+            }
+            finally {
+                buffer.release();
+            }
+        }
+        if (this.infileDataBuffer.getInfileSize() > 0) {
+            this.writeInfile(this.infileDataBuffer);
+        }
+    }
+
+    /**
+     * Hands the infile buffer to the flush executor, which owns the connection, and swaps in a second buffer so that
+     * rows can be added while the first one is being sent. If the previous asynchronous flush is still in flight, this
+     * waits for it first, so at most two buffers are ever in use. {@link #getWarnings()} is updated when a flush is waited
+     * for, either here or by {@link #flush()}.
+     * <p/>
+     * When streaming this completes the open statement and returns its result.
+     *
+     * @return the result of the flush, which fails if the statement fails
+     */
+    public ListenableFuture<FlushResult> flushAsync() {
+        if (this.isStreaming()) {
+            long bytes = this.infileDataBuffer.getInfileSize();
+            this.flush();
+            return Futures.immediateFuture(new FlushResult(this.getWarnings(), bytes));
+        }
+        this.awaitPendingFlush();
+
+        final InfileDataBuffer buffer = this.infileDataBuffer;
+        final long bytes = buffer.getInfileSize();
+        final JdbcUtil.StatementCallback<List<Exception>> statementCallback = new InfileStatementCallback(
+                this.loadInfileSql, buffer.asInputStream()
+        );
+        final Connection statementConnection = this.connection;
+        this.infileDataBuffer = this.spareBuffer != null ? this.spareBuffer : buffer.newBuffer();
+        this.spareBuffer = null;
+        this.bufferedRows = 0;
+
+        if (this.flushExecutor == null) {
+            this.flushExecutor = newFlushExecutor();
+        }
+        this.flushingBuffer = buffer;
+        this.pendingFlush = this.flushExecutor.submit(new Callable<FlushResult>() {
+            @Override
+            public FlushResult call() {
+                try {
+                    return new FlushResult(JdbcUtil.execute(statementConnection, statementCallback), bytes);
+                }
+                finally {
+                    buffer.clear();
+                }
+            }
+        });
+        return this.pendingFlush;
+    }
+
+    /**
+     * Toggles flushing full buffers with {@link #flushAsync()} instead of {@link #flush()} while adding rows, so that
+     * encoding only waits for the database when both buffers are full. Cannot be combined with streaming.
+     */
+    public void setAsyncFlush(boolean asyncFlush) {
+        Preconditions.checkState(!asyncFlush || !this.isStreaming(), "Cannot flush asynchronously while streaming");
+        this.asyncFlush = asyncFlush;
+    }
+
+    /**
+     * Waits for the asynchronous flush in flight, if any, and keeps its buffer as the spare.
+     */
+    private void awaitPendingFlush() {
+        if (this.pendingFlush == null) {
+            return;
+        }
+        ListenableFuture<FlushResult> flush = this.pendingFlush;
+        this.pendingFlush = null;
+        this.spareBuffer = this.flushingBuffer;
+        this.flushingBuffer = null;
+        try {
+            this.warnings = flush.get().getWarnings();
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Waits for any flush in flight and gives the segments of all buffers back to their pool, even if the flush failed. A
+     * buffer still being read by an interrupted flush is given back once that flush is done. The loader must not be used
+     * afterwards.
+     */
+    void releaseBuffers() {
+        ListenableFuture<FlushResult> flush = this.pendingFlush;
+        try {
+            this.awaitPendingFlush();
+        }
+        finally {
+            this.infileDataBuffer.release();
+            if (this.fullBuffers != null) {
+                // Buffers handed to any other sink belong to whoever takes them
+                for (InfileDataBuffer buffer : this.fullBuffers) {
+                    buffer.release();
+                }
+                this.fullBuffers.clear();
+            }
+            if (this.spareBuffer != null) {
+                final InfileDataBuffer buffer = this.spareBuffer;
+                this.spareBuffer = null;
+                if (flush != null && !flush.isDone()) {
+                    flush.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            buffer.release();
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                }
+                else {
+                    buffer.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return an executor that runs one statement at a time on a daemon thread, which goes away when idle
+     */
+    static ListeningExecutorService newFlushExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-infile-flush-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(executor);
+    }
+
+    /**
+     * Turns streaming on or off. When streaming, a {@code LOAD DATA} statement is started on a background thread as soon
+     * as the first rows have been encoded, and it reads further rows through an {@link InfilePipe} while they are being
+     * encoded, so that encoding and network transfer overlap. The statement stays open until either limit is reached or
+     * {@link #flush()} is called. Streaming is off while both limits are 0.
+     * <p/>
+     * The connection cannot be used for anything else while a statement is open, so only loaders of a
+     * {@link HierarchicalInfileObjectLoader}, which complete each other's statements before using the connection, can
+     * stream. A loader on its own would wait forever on a statement of another loader of its connection.
+     *
+     * @param maxRowsPerStatement  rows after which the statement is completed, or 0 for no limit
+     * @param maxBytesPerStatement bytes after which the statement is completed, or 0 for no limit
+     */
+    public void setStreaming(int maxRowsPerStatement, long maxBytesPerStatement) {
+        Preconditions.checkArgument(maxRowsPerStatement >= 0 && maxBytesPerStatement >= 0, "Limits cannot be negative");
+        Preconditions.checkState(!this.asyncFlush || (maxRowsPerStatement == 0 && maxBytesPerStatement == 0),
+                                 "Cannot stream while flushing asynchronously");
+        Preconditions.checkState(this.streamingConnection != null || (maxRowsPerStatement == 0 && maxBytesPerStatement == 0),
+                                 "Only loaders sharing a connection through a HierarchicalInfileObjectLoader can stream");
+        this.finishStream();
+        this.maxRowsPerStatement = maxRowsPerStatement;
+        this.maxBytesPerStatement = maxBytesPerStatement;
+    }
+
+    /**
+     * @return true if rows are streamed to an open statement, see {@link #setStreaming(int, long)}
+     */
+    public boolean isStreaming() {
+        return this.maxRowsPerStatement > 0 || this.maxBytesPerStatement > 0;
+    }
+
+    /**
+     * Passes the rows in the infile buffer on to the open statement, starting one if needed, and completes the statement
+     * once it has reached its limits.
+     */
+    private void streamRows() {
+        if (this.infileDataBuffer.getInfileSize() == 0) {
+            return;
+        }
+        if (this.pipe == null) {
+            this.startStream();
+        }
+        try {
+            this.infileDataBuffer.drainTo(this.pipe);
+        }
+        catch (IllegalStateException e) {
+            // The statement stopped reading, so report why
+            this.finishStream();
+            throw e;
+        }
+        this.streamedRows += this.bufferedRows;
+        this.bufferedRows = 0;
+        if ((this.maxRowsPerStatement > 0 && this.streamedRows >= this.maxRowsPerStatement)
+            || (this.maxBytesPerStatement > 0 && this.pipe.getBytesWritten() >= this.maxBytesPerStatement)) {
+            this.finishStream();
+        }
+    }
+
+    private void startStream() {
+        if (this.streamingConnection != null) {
+            this.streamingConnection.claim(this);
+        }
+        final InfilePipe infilePipe = new InfilePipe(STREAMING_CHUNK_SIZE, STREAMING_CHUNK_COUNT);
+        final JdbcUtil.StatementCallback<List<Exception>> statementCallback = new InfileStatementCallback(
+                this.loadInfileSql, infilePipe.getInputStream()
+        );
+        final Connection statementConnection = this.connection;
+        this.pendingStatement = STREAMING_EXECUTOR.submit(new Callable<List<Exception>>() {
+            @Override
+            public List<Exception> call() {
+                try {
+                    return JdbcUtil.execute(statementConnection, statementCallback);
+                }
+                finally {
+                    // Unblocks the producer if the statement failed before reading everything
+                    infilePipe.abort();
+                }
+            }
+        });
+        this.pipe = infilePipe;
+    }
+
+    /**
+     * Ends the stream of the open statement, if there is one, and waits for the statement to complete.
+     */
+    void finishStream() {
+        if (this.pipe == null) {
+            return;
+        }
+        InfilePipe infilePipe = this.pipe;
+        Future<List<Exception>> statement = this.pendingStatement;
+        this.pipe = null;
+        this.pendingStatement = null;
+        this.streamedRows = 0;
+        if (this.streamingConnection != null) {
+            this.streamingConnection.release(this);
+        }
+
+        try {
+            infilePipe.close();
+        }
+        catch (IllegalStateException e) {
+            // The statement has already stopped reading, its exception tells why
+            logger.debug("Infile stream was aborted before it was closed.", e);
+        }
+        try {
+            this.warnings = statement.get();
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            infilePipe.abort();
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
 
     /**
      * Adds data from a given entity to an infile row via said row's various <code>append</code> methods.
@@ -92,4 +549,30 @@ public abstract class InfileObjectLoader<E> implements Flushable {
      * @param infileRow to which to append entity contents
      */
     public abstract void convertToInfileRow(E entity, InfileRow infileRow);
+
+    /**
+     * Frees segments for loaders whose infile cannot grow.
+     */
+    interface BudgetListener {
+        /**
+         * Called when the infile of a loader cannot take another segment. The loader flushes its own infile if nothing
+         * else is freed.
+         *
+         * @param loader the loader whose infile cannot grow
+         * @return true if segments may have been freed, so that the loader should try again
+         */
+        boolean onBudgetExhausted(InfileObjectLoader<?> loader);
+    }
+
+    /**
+     * Takes the full buffers of a loader that only encodes rows.
+     */
+    interface FullBufferSink {
+        /**
+         * Takes a full buffer, which may block until there is room for it.
+         *
+         * @param buffer the buffer, which belongs to the sink from now on
+         */
+        void put(InfileDataBuffer buffer);
+    }
 }
@@ -0,0 +1,34 @@
+package com.opower.persistence.jpile.loader;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every loader its own counter, starting after {@code select max(id)} when the loader is built. This is what loaders
+ * do without an allocator. Ids are only unique as long as one loader at a time inserts into a table.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class MaxIdAllocator implements IdAllocator {
+    @Override
+    public Sequence forTable(Connection connection, String tableName, String idColumnName) {
+        return new CounterSequence(SingleInfileObjectLoaderBuilder.findMaxId(idColumnName, tableName, connection));
+    }
+
+    /**
+     * Counts up from a last id.
+     */
+    static final class CounterSequence implements Sequence {
+        final AtomicLong lastId;
+
+        CounterSequence(long lastId) {
+            this.lastId = new AtomicLong(lastId);
+        }
+
+        @Override
+        public long next() {
+            return lastId.incrementAndGet();
+        }
+    }
+}
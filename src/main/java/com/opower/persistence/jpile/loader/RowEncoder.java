@@ -0,0 +1,121 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.infile.InfileRow;
+
+import java.util.List;
+
+/**
+ * Writes the columns of one entity type to an infile row. Subclasses are generated at runtime by
+ * {@link RowEncoderGenerator} so that getters are called directly instead of through reflection, and columns whose
+ * type is known up front go straight to the matching {@link InfileRow} method. Everything else is handed to the
+ * column's {@link ColumnCodec} with {@link #appendColumn(int, Object, InfileRow)}.
+ * <p/>
+ * This class is only public so that the generated subclasses can be defined in the packages of the entities they read.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public abstract class RowEncoder implements Cloneable {
+    private ColumnCodec[] codecs;
+    private List<SingleInfileObjectLoader<Object>> embeds;
+
+    protected RowEncoder() {
+    }
+
+    /**
+     * Appends the columns and embedded objects of an entity in the order of the loader's mappings and embeds.
+     *
+     * @param entity    to read, never null
+     * @param infileRow to append to
+     */
+    public abstract void encode(Object entity, InfileRow infileRow);
+
+    /**
+     * Appends the value of a column that is not handled by the generated code.
+     *
+     * @param column    index of the column in the loader's mappings
+     * @param value     returned by the getter, may be null
+     * @param infileRow to append to
+     */
+    protected final void appendColumn(int column, Object value, InfileRow infileRow) {
+        this.codecs[column].append(value, infileRow);
+    }
+
+    /**
+     * Appends the columns of an embedded object.
+     *
+     * @param embed     index of the embedded object in the loader's embeds
+     * @param value     returned by the getter, may be null
+     * @param infileRow to append to
+     */
+    protected final void appendEmbedded(int embed, Object value, InfileRow infileRow) {
+        this.embeds.get(embed).convertToInfileRow(value, infileRow);
+    }
+
+    protected static void appendLong(Long value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendLong(value);
+        }
+    }
+
+    protected static void appendInteger(Integer value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendInt(value);
+        }
+    }
+
+    protected static void appendShort(Short value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendInt(value);
+        }
+    }
+
+    protected static void appendByte(Byte value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendInt(value);
+        }
+    }
+
+    protected static void appendBoolean(Boolean value, InfileRow infileRow) {
+        infileRow.append(value);
+    }
+
+    protected static void appendString(String value, InfileRow infileRow) {
+        infileRow.append(value);
+    }
+
+    void setColumns(ColumnCodec[] codecs, List<SingleInfileObjectLoader<Object>> embeds) {
+        this.codecs = codecs;
+        this.embeds = embeds;
+    }
+
+    /**
+     * Creates an encoder with the same codecs that appends embedded objects with other loaders. Codecs are shared, they
+     * do not depend on the buffer they append to.
+     *
+     * @param newEmbeds loaders for the embedded objects, in the same order
+     * @return the new encoder
+     */
+    RowEncoder copy(List<SingleInfileObjectLoader<Object>> newEmbeds) {
+        try {
+            RowEncoder copy = (RowEncoder) this.clone();
+            copy.embeds = newEmbeds;
+            return copy;
+        }
+        catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.reflection.EntityAccessor;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Generates a {@link RowEncoder} subclass per entity class and list of getters with javassist, which loaders for the
+ * same class, table and embedded columns share. The generated {@code encode} method casts the entity
+ * once and calls every getter directly. Longs, ints, shorts, bytes, booleans and Strings, primitive or not, are appended
+ * without boxing or type checks; other columns go through their {@link ColumnCodec}.
+ * <p/>
+ * Entities with an {@link EntityAccessor} generated at compile time are read through it and nothing is generated at
+ * runtime. Otherwise encoders can only be generated if the entity and its getters are accessible from the entity's
+ * package. If they are not, or if the class cannot be defined, a reflective encoder is used instead.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class RowEncoderGenerator {
+    private static Logger logger = LoggerFactory.getLogger(RowEncoderGenerator.class);
+
+    // Keeps class names unique, the same entity can have loaders for several tables
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    // The generated classes of each entity class, keyed by the column getters and the embed getters. A ClassValue lets the
+    // generated classes be unloaded with the entity class.
+    private static final ClassValue<ConcurrentMap<List<List<Method>>, Class<?>>> GENERATED =
+            new ClassValue<ConcurrentMap<List<List<Method>>, Class<?>>>() {
+                @Override
+                protected ConcurrentMap<List<List<Method>>, Class<?>> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    // Null safe helpers in RowEncoder, named by type so that javassist does not have to resolve InfileRow's overloads
+    private static final Map<Class<?>, String> BOXED_APPENDERS = ImmutableMap.<Class<?>, String>builder()
+            .put(Long.class, "appendLong")
+            .put(Integer.class, "appendInteger")
+            .put(Short.class, "appendShort")
+            .put(Byte.class, "appendByte")
+            .put(Boolean.class, "appendBoolean")
+            .put(String.class, "appendString")
+            .build();
+
+    private RowEncoderGenerator() {
+    }
+
+    /**
+     * Creates an encoder for a loader, generated if possible.
+     *
+     * @param aClass   the entity class
+     * @param accessor the accessor generated for the entity at compile time, or null
+     * @param columns  getters in the order of the loader's mappings
+     * @param embeds   getters in the order of the loader's embeds
+     * @return a new encoder that has not been given its codecs yet
+     */
+    static RowEncoder create(Class<?> aClass, EntityAccessor accessor, List<Method> columns, List<Method> embeds) {
+        if (accessor != null) {
+            int[] columnIndexes = indexesOf(accessor, columns);
+            int[] embedIndexes = indexesOf(accessor, embeds);
+            if (columnIndexes != null && embedIndexes != null) {
+                return new AccessorRowEncoder(accessor, columnIndexes, embedIndexes);
+            }
+        }
+        if (isAccessible(aClass, columns, embeds)) {
+            try {
+                return generate(aClass, columns, embeds);
+            }
+            catch (CannotCompileException | NotFoundException | ReflectiveOperationException | RuntimeException e) {
+                logger.debug("Could not generate a row encoder for [{}], using reflection instead.", aClass, e);
+            }
+        }
+        return new ReflectiveRowEncoder(columns, embeds);
+    }
+
+    private static RowEncoder generate(Class<?> aClass, List<Method> columns, List<Method> embeds)
+            throws CannotCompileException, NotFoundException, ReflectiveOperationException {
+        List<List<Method>> key = ImmutableList.<List<Method>>of(ImmutableList.copyOf(columns), ImmutableList.copyOf(embeds));
+        ConcurrentMap<List<List<Method>>, Class<?>> generatedClasses = GENERATED.get(aClass);
+        Class<?> generated = generatedClasses.get(key);
+        if (generated == null) {
+            generated = generateClass(aClass, columns, embeds);
+            Class<?> existing = generatedClasses.putIfAbsent(key, generated);
+            if (existing != null) {
+                generated = existing;
+            }
+        }
+        return (RowEncoder) generated.getDeclaredConstructor().newInstance();
+    }
+
+    private static Class<?> generateClass(Class<?> aClass, List<Method> columns, List<Method> embeds)
+            throws CannotCompileException, NotFoundException {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new LoaderClassPath(aClass.getClassLoader()));
+        pool.appendClassPath(new LoaderClassPath(RowEncoder.class.getClassLoader()));
+
+        String name = aClass.getName() + "$JpileRowEncoder" + COUNTER.incrementAndGet();
+        CtClass encoderClass = pool.makeClass(name, pool.get(RowEncoder.class.getName()));
+        encoderClass.setModifiers(Modifier.PUBLIC | Modifier.FINAL);
+        encoderClass.addConstructor(CtNewConstructor.defaultConstructor(encoderClass));
+        encoderClass.addMethod(CtNewMethod.make(encodeSource(aClass, columns, embeds), encoderClass));
+        try {
+            return encoderClass.toClass(aClass.getClassLoader(), aClass.getProtectionDomain());
+        }
+        finally {
+            encoderClass.detach();
+        }
+    }
+
+    /**
+     * Writes the source of the {@code encode} method in the subset of Java that javassist compiles. {@code ($w)} boxes
+     * primitives. Arguments are passed with their exact parameter types, javassist cannot always read the JDK's class
+     * files to check for subtypes.
+     */
+    private static String encodeSource(Class<?> aClass, List<Method> columns, List<Method> embeds) {
+        String entityType = aClass.getName().replace('$', '.');
+        StringBuilder source = new StringBuilder();
+        source.append("public void encode(Object entity, ").append(InfileRow.class.getName()).append(" infileRow) {\n");
+        source.append(entityType).append(" e = (").append(entityType).append(") entity;\n");
+        for (int i = 0; i < columns.size(); i++) {
+            Method getter = columns.get(i);
+            Class<?> type = getter.getReturnType();
+            String call = "e." + getter.getName() + "()";
+            if (long.class.equals(type)) {
+                source.append("infileRow.appendLong(").append(call).append(");\n");
+            }
+            else if (int.class.equals(type) || short.class.equals(type) || byte.class.equals(type)) {
+                source.append("infileRow.appendInt(").append(call).append(");\n");
+            }
+            else if (boolean.class.equals(type)) {
+                source.append("infileRow.appendBoolean(").append(call).append(");\n");
+            }
+            else if (BOXED_APPENDERS.containsKey(type)) {
+                source.append(BOXED_APPENDERS.get(type)).append("(").append(call).append(", infileRow);\n");
+            }
+            else {
+                source.append("appendColumn(").append(i).append(", (java.lang.Object) ($w) ").append(call)
+                      .append(", infileRow);\n");
+            }
+        }
+        for (int i = 0; i < embeds.size(); i++) {
+            source.append("appendEmbedded(").append(i).append(", (java.lang.Object) e.").append(embeds.get(i).getName())
+                  .append("(), infileRow);\n");
+        }
+        return source.append("}").toString();
+    }
+
+    /**
+     * @return the indexes of the getters in the accessor, or null if it is missing any of them
+     */
+    private static int[] indexesOf(EntityAccessor accessor, List<Method> getters) {
+        int[] indexes = new int[getters.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = accessor.indexOf(getters.get(i).getName());
+            if (indexes[i] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @return true if a class in the entity's package can cast to the entity and call all of the getters
+     */
+    private static boolean isAccessible(Class<?> aClass, List<Method> columns, List<Method> embeds) {
+        if (aClass.getClassLoader() == null || !isAccessible(aClass, aClass.getModifiers(), aClass)) {
+            return false;
+        }
+        for (Method method : columns) {
+            if (!isAccessible(method.getDeclaringClass(), method.getModifiers(), aClass)) {
+                return false;
+            }
+        }
+        for (Method method : embeds) {
+            if (!isAccessible(method.getDeclaringClass(), method.getModifiers(), aClass)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAccessible(Class<?> declaringClass, int modifiers, Class<?> aClass) {
+        if (Modifier.isPrivate(modifiers) || Modifier.isPrivate(declaringClass.getModifiers())) {
+            return false;
+        }
+        boolean samePackage = declaringClass.getClassLoader() == aClass.getClassLoader()
+                              && declaringClass.getPackage() != null
+                              && declaringClass.getPackage().equals(aClass.getPackage());
+        return samePackage || (Modifier.isPublic(modifiers) && Modifier.isPublic(declaringClass.getModifiers()));
+    }
+
+    /**
+     * Calls the getters through an accessor generated at compile time, so that no class has to be generated at runtime.
+     */
+    private static final class AccessorRowEncoder extends RowEncoder {
+        private final EntityAccessor accessor;
+        private final int[] columns;
+        private final int[] embeds;
+
+        private AccessorRowEncoder(EntityAccessor accessor, int[] columns, int[] embeds) {
+            this.accessor = accessor;
+            this.columns = columns;
+            this.embeds = embeds;
+        }
+
+        @Override
+        public void encode(Object entity, InfileRow infileRow) {
+            for (int i = 0; i < this.columns.length; i++) {
+                this.appendColumn(i, this.accessor.get(entity, this.columns[i]), infileRow);
+            }
+            for (int i = 0; i < this.embeds.length; i++) {
+                this.appendEmbedded(i, this.accessor.get(entity, this.embeds[i]), infileRow);
+            }
+        }
+    }
+
+    /**
+     * Calls the getters through reflection, for entities that generated code cannot access.
+     */
+    private static final class ReflectiveRowEncoder extends RowEncoder {
+        private final Method[] columns;
+        private final Method[] embeds;
+
+        private ReflectiveRowEncoder(List<Method> columns, List<Method> embeds) {
+            this.columns = columns.toArray(new Method[columns.size()]);
+            this.embeds = embeds.toArray(new Method[embeds.size()]);
+        }
+
+        @Override
+        public void encode(Object entity, InfileRow infileRow) {
+            for (int i = 0; i < this.columns.length; i++) {
+                this.appendColumn(i, invoke(this.columns[i], entity), infileRow);
+            }
+            for (int i = 0; i < this.embeds.length; i++) {
+                this.appendEmbedded(i, invoke(this.embeds[i], entity), infileRow);
+            }
+        }
+
+        private static Object invoke(Method method, Object target) {
+            try {
+                return method.invoke(target);
+            }
+            catch (InvocationTargetException | IllegalAccessException e) {
+                throw propagate(e);
+            }
+        }
+    }
+}
@@ -1,31 +1,29 @@
 package com.opower.persistence.jpile.loader;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Preconditions;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.reflection.EntityMetadata;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.Column;
-import javax.persistence.EnumType;
-import javax.persistence.Enumerated;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
-import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Sets.newLinkedHashSet;
-import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getIdValue;
-import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.setIdValue;
-import static com.opower.persistence.jpile.util.Hex.encodeHexString;
 
 /**
  * An InfileObjectLoader which will update that database using IN FILE format using hibernate annotations.
@@ -36,16 +34,29 @@ import static com.opower.persistence.jpile.util.Hex.encodeHexString;
 public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     private static Logger logger = LoggerFactory.getLogger(SingleInfileObjectLoader.class);
 
-    // @TODO we may need to make this atomic to be thread safe
+    // The last generated id when there is no id sequence
     protected long autoGeneratedId = 0;
     protected final Map<String, Method> mappings = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     protected final Map<Method, SingleInfileObjectLoader<Object>> embeds = new LinkedHashMap<>();
+    // Decimal columns that declare both a precision and a scale, resolved once by the builder
+    protected final Map<Method, Column> decimalColumns = new HashMap<>();
+    // Date and time columns, also resolved once by the builder
+    protected final Map<Method, TemporalColumn> temporalColumns = new HashMap<>();
+    // Writes the columns of each entity with a codec per column, created last by the builder
+    private RowEncoder rowEncoder;
 
     protected final Class<E> aClass;
     protected PersistenceAnnotationInspector persistenceAnnotationInspector;
+    protected EntityMetadata entityMetadata;
+    // The table and the id column whose max id is looked up, null for embedded loaders and tables without an id
+    protected String tableName;
+    protected String idColumnName;
+    // Generates ids if the builder was given an IdAllocator, otherwise ids count up from autoGeneratedId
+    IdAllocator.Sequence idSequence;
     protected boolean allowNull = false;
     protected boolean autoGenerateId = false;
     protected boolean embedChild = false;
+    protected boolean rawBinary = false;
 
     SingleInfileObjectLoader(Class<E> aClass) {
         this.aClass = aClass;
@@ -65,60 +76,64 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
             }
         }
         else {
-            if (!embedChild && getIdValue(persistenceAnnotationInspector, entity) == null) {
+            if (!embedChild && entityMetadata.getIdValue(entity) == null) {
                 generateAndSetId(entity);
             }
-            for (Method m : mappings.values()) {
-                Object object = invoke(m, entity);
-                if (object != null) {
-                    if (persistenceAnnotationInspector.hasTableAnnotation(object.getClass())) {
-                        Long id = (Long) getIdValue(persistenceAnnotationInspector, object);
-                        Preconditions.checkState(id != null, "@Id for [%s] is null", object);
-                        object = id;
-                    }
-                    if (object instanceof Date) {
-                        infileRow.append((Date) object, m);
-                    }
-                    else if (object instanceof Boolean) {
-                        infileRow.append((Boolean) object);
-                    }
-                    else if (object instanceof byte[]) {
-                        infileRow.append(encodeHexString((byte[]) object));
-                    }
-                    else if (object.getClass().isEnum()) {
-                        infileRow.append(getEnumValueToAppend(m, (Enum <?>) object));
-                    }
-                    else if (object instanceof Float) {
-                        Column column = this.persistenceAnnotationInspector.findAnnotation(m, Column.class);
-                        if (column != null) {
-                            int precision = column.precision();
-                            int scale = column.scale();
-                            if (precision > 0 && scale > 0) {
-                                infileRow.append((Float) object, precision, scale);
-                                continue;
-                            }
-                        }
-                        infileRow.append(object);
-                    }
-                    else {
-                        infileRow.append(object);
-                    }
-                }
-                else {
-                    infileRow.appendNull();
-                }
-            }
-            for (Map.Entry<Method, SingleInfileObjectLoader<Object>> entry : embeds.entrySet()) {
-                Object object = invoke(entry.getKey(), entity);
-                entry.getValue().convertToInfileRow(object, infileRow);
-            }
+            rowEncoder.encode(entity, infileRow);
         }
     }
 
     /**
-     * Get the enum value depending on if the {@code method} specifies the {@link Enumerated} annotation
-     * and if it's an {@link EnumType#STRING} to use the {@link Enum#name()}, otherwise use {@link Enum#ordinal()} as specified
-     * in the {@link Enumerated} documentation.
+     * Creates a loader that shares the mappings, formats, SQL and row encoder of this one, but has its own buffer and
+     * connection. This skips everything the builder does, see {@link InfileLoaderFactory}. Streaming, asynchronous flushes
+     * and ids are not copied.
+     *
+     * @param buffer     the buffer of the new loader and its embedded loaders
+     * @param connection the connection of the new loader
+     * @return the new loader
+     */
+    SingleInfileObjectLoader<E> copy(InfileDataBuffer buffer, Connection connection) {
+        SingleInfileObjectLoader<E> copy = new SingleInfileObjectLoader<>(aClass);
+        copy.connection = connection;
+        copy.infileDataBuffer = buffer;
+        copy.loadInfileSql = loadInfileSql;
+        copy.persistenceAnnotationInspector = persistenceAnnotationInspector;
+        copy.entityMetadata = entityMetadata;
+        copy.allowNull = allowNull;
+        copy.autoGenerateId = autoGenerateId;
+        copy.embedChild = embedChild;
+        copy.rawBinary = rawBinary;
+        copy.tableName = tableName;
+        copy.idColumnName = idColumnName;
+        copy.mappings.putAll(mappings);
+        copy.decimalColumns.putAll(decimalColumns);
+        copy.temporalColumns.putAll(temporalColumns);
+        for (Map.Entry<Method, SingleInfileObjectLoader<Object>> embed : embeds.entrySet()) {
+            copy.embeds.put(embed.getKey(), embed.getValue().copy(buffer, connection));
+        }
+        copy.rowEncoder = rowEncoder.copy(new ArrayList<>(copy.embeds.values()));
+        return copy;
+    }
+
+    /**
+     * Chooses the codec of every column and creates the row encoder, once all mappings and embeds are known. Columns and
+     * embeds are numbered in iteration order.
+     */
+    void createRowEncoder() {
+        List<Method> getters = new ArrayList<>(mappings.values());
+        ColumnCodec[] codecs = new ColumnCodec[getters.size()];
+        for (int i = 0; i < codecs.length; i++) {
+            codecs[i] = ColumnCodec.forColumn(getters.get(i), this, infileDataBuffer.getCharset());
+        }
+        this.rowEncoder = RowEncoderGenerator.create(aClass, entityMetadata.getAccessor(), getters,
+                                                     new ArrayList<>(embeds.keySet()));
+        this.rowEncoder.setColumns(codecs, new ArrayList<>(embeds.values()));
+    }
+
+    /**
+     * Get the enum value depending on if the {@code method} specifies the {@link javax.persistence.Enumerated}
+     * annotation and if it's an {@link javax.persistence.EnumType#STRING} to use the {@link Enum#name()}, otherwise use
+     * {@link Enum#ordinal()} as specified in the {@link javax.persistence.Enumerated} documentation.
      *
      * @param method the method that returned the {@code enumObject}
      * @param enumObject the enum object that is being appended
@@ -126,12 +141,7 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
      */
     @VisibleForTesting
     Object getEnumValueToAppend(Method method, Enum<?> enumObject) {
-        Enumerated enumerated = method.getAnnotation(Enumerated.class);
-        if(enumerated != null && enumerated.value() == EnumType.STRING) {
-            return enumObject.name();
-        }
-
-        return enumObject.ordinal();
+        return ColumnCodec.isEnumName(method) ? enumObject.name() : enumObject.ordinal();
     }
 
     @Override
@@ -142,18 +152,18 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
                      aClass, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
-    private void generateAndSetId(E e) {
-        if (autoGenerateId) {
-            setIdValue(persistenceAnnotationInspector, e, ++autoGeneratedId);
+    /**
+     * Generates the id of an entity ahead of {@link #add(Object)}, which then keeps it.
+     */
+    void assignId(E entity) {
+        if (!embedChild && entityMetadata.getIdValue(entity) == null) {
+            generateAndSetId(entity);
         }
     }
 
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (InvocationTargetException | IllegalAccessException e) {
-            throw propagate(e);
+    private void generateAndSetId(E e) {
+        if (autoGenerateId) {
+            entityMetadata.setIdValue(e, idSequence != null ? idSequence.next() : ++autoGeneratedId);
         }
     }
 
@@ -161,6 +171,16 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
         this.autoGeneratedId = autoGeneratedId;
     }
 
+    /**
+     * Checks if a getter returns a type that is written to a binary column, either as hex digits or as raw bytes.
+     *
+     * @param type the return type of the getter
+     * @return true for {@code byte[]}, {@link UUID} and {@link ByteBuffer}
+     */
+    static boolean isBinary(Class<?> type) {
+        return byte[].class.equals(type) || UUID.class.equals(type) || ByteBuffer.class.isAssignableFrom(type);
+    }
+
     Collection<String> getAllColumns() {
         Set<String> columns = newLinkedHashSet(mappings.keySet());
         for (SingleInfileObjectLoader<Object> loader : embeds.values()) {
@@ -184,6 +204,11 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
         return autoGenerateId;
     }
 
+    @VisibleForTesting
+    RowEncoder getRowEncoder() {
+        return rowEncoder;
+    }
+
     @VisibleForTesting
     InfileDataBuffer getInfileDataBuffer() {
         return infileDataBuffer;
@@ -3,28 +3,25 @@ package com.opower.persistence.jpile.loader;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import com.opower.persistence.jpile.util.JdbcUtil;
 
 import javax.persistence.Column;
-import javax.persistence.Embedded;
-import javax.persistence.EmbeddedId;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.JoinColumn;
-import javax.persistence.ManyToOne;
-import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -44,6 +41,13 @@ public class SingleInfileObjectLoaderBuilder<E> {
     private boolean allowNull = false;
     private boolean embedded = false;
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private int maxRowsPerStatement = 0;
+    private long maxBytesPerStatement = 0;
+    private StreamingConnection streamingConnection;
+    private boolean useAsyncFlush = false;
+    private boolean lookUpMaxId = true;
+    private IdAllocator idAllocator;
     private SecondaryTable secondaryTable;
 
 
@@ -93,6 +97,54 @@ public class SingleInfileObjectLoaderBuilder<E> {
         return this;
     }
 
+    /**
+     * Toggles writing binary columns ({@code byte[]}, {@link java.util.UUID} and {@link java.nio.ByteBuffer}) as escaped
+     * raw bytes instead of hex digits. This halves the bytes sent for these columns and drops the {@code unhex()} set
+     * clauses, but requires that the bytes are not converted by the character set of the {@code LOAD DATA} statement.
+     */
+    public SingleInfileObjectLoaderBuilder<E> useRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+        return this;
+    }
+
+    /**
+     * Streams rows to a statement that stays open for the given number of rows or bytes, see
+     * {@link InfileObjectLoader#setStreaming(int, long)}. The loaders of the connection complete each other's statements
+     * through {@code streamingConnection}.
+     */
+    SingleInfileObjectLoaderBuilder<E> streaming(int maxRowsPerStatement, long maxBytesPerStatement,
+                                                 StreamingConnection streamingConnection) {
+        this.maxRowsPerStatement = maxRowsPerStatement;
+        this.maxBytesPerStatement = maxBytesPerStatement;
+        this.streamingConnection = streamingConnection;
+        return this;
+    }
+
+    /**
+     * Toggles flushing full buffers asynchronously while adding rows, see {@link InfileObjectLoader#setAsyncFlush(boolean)}.
+     */
+    public SingleInfileObjectLoaderBuilder<E> useAsyncFlush(boolean useAsyncFlush) {
+        this.useAsyncFlush = useAsyncFlush;
+        return this;
+    }
+
+    /**
+     * Toggles querying the max id of the table while building. Callers that build loaders for several tables can turn it
+     * off and look up all max ids with one query using {@link #findMaxIds(Connection, Collection)}.
+     */
+    public SingleInfileObjectLoaderBuilder<E> lookUpMaxId(boolean lookUpMaxId) {
+        this.lookUpMaxId = lookUpMaxId;
+        return this;
+    }
+
+    /**
+     * Generates ids with an allocator instead of counting up from the max id of the table, see {@link IdAllocator}.
+     */
+    public SingleInfileObjectLoaderBuilder<E> withIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+        return this;
+    }
+
     public SingleInfileObjectLoaderBuilder<E> usingSecondaryTable(SecondaryTable secondaryTable) {
         this.secondaryTable = secondaryTable;
         return this;
@@ -118,30 +170,45 @@ public class SingleInfileObjectLoaderBuilder<E> {
         objectLoader.connection = connection;
         objectLoader.infileDataBuffer = infileDataBuffer;
         objectLoader.persistenceAnnotationInspector = annotationInspector;
+        objectLoader.entityMetadata = annotationInspector.entityMetadata(aClass);
         objectLoader.allowNull = allowNull;
         objectLoader.embedChild = embedded;
+        objectLoader.rawBinary = useRawBinary;
         if (defaultTableName) {
             this.tableName = secondaryTable != null ? secondaryTable.name() : annotationInspector.tableName(aClass);
         }
         Preconditions.checkNotNull(tableName, "tableName cannot be null");
         this.findAnnotations(objectLoader);
+        this.findColumnFormats(objectLoader);
         if (!embedded) {
-            String idColumnName = findPrimaryIdColumnName(objectLoader);
-            objectLoader.setAutoGeneratedId(findMaxId(idColumnName, this.tableName, this.connection));
+            objectLoader.tableName = this.tableName;
+            objectLoader.idColumnName = findPrimaryIdColumnName(objectLoader);
+            if (idAllocator != null) {
+                if (objectLoader.autoGenerateId) {
+                    objectLoader.idSequence = idAllocator.forTable(connection, this.tableName, objectLoader.idColumnName);
+                }
+            }
+            else if (lookUpMaxId) {
+                objectLoader.setAutoGeneratedId(findMaxId(objectLoader.idColumnName, this.tableName, this.connection));
+            }
             this.generateLoadInfileSql(objectLoader);
+            objectLoader.streamingConnection = streamingConnection;
+            objectLoader.setStreaming(maxRowsPerStatement, maxBytesPerStatement);
+            objectLoader.setAsyncFlush(useAsyncFlush);
         }
+        objectLoader.createRowEncoder();
 
         return objectLoader;
     }
 
 
     /**
-     * @throws StackOverflowError if there is an infinite loop in the object graph for {@link Embedded} fields
+     * @throws StackOverflowError if there is an infinite loop in the object graph for {@link javax.persistence.Embedded} fields
      */
     private void findAnnotations(SingleInfileObjectLoader<E> objectLoader) {
         // Finds all columns that are annotated with @Column
         for (PersistenceAnnotationInspector.AnnotatedMethod<Column> annotatedMethod
-                : annotationInspector.annotatedMethodsWith(aClass, Column.class)) {
+                : objectLoader.entityMetadata.getColumns()) {
 
             Preconditions.checkState(!annotatedMethod.getAnnotation().name().isEmpty(),
                                      "@Column.name is not found on method [%s]",
@@ -163,17 +230,11 @@ public class SingleInfileObjectLoaderBuilder<E> {
             // Finds all columns with @ManyToOne
             // If @JoinColumn is not there then there is nothing to write
             for (PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn> annotatedMethod
-                    : annotationInspector.annotatedMethodsWith(aClass, JoinColumn.class)) {
-                if (annotationInspector.hasAnnotation(annotatedMethod.getMethod(), ManyToOne.class)
-                    || annotationInspector.hasAnnotation(annotatedMethod.getMethod(), OneToOne.class)) {
-                    objectLoader.mappings.put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
-                }
+                    : objectLoader.entityMetadata.getJoinColumns()) {
+                objectLoader.mappings.put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
             }
             // Finds all columns with @Embedded or @EmbeddedId
-            for (PersistenceAnnotationInspector.AnnotatedMethod<? extends Annotation> annotatedMethod
-                    : Iterables.concat(annotationInspector.annotatedMethodsWith(aClass, Embedded.class),
-                            annotationInspector.annotatedMethodsWith(aClass, EmbeddedId.class))) {
-                Method method = annotatedMethod.getMethod();
+            for (Method method : objectLoader.entityMetadata.getEmbeds()) {
                 @SuppressWarnings("unchecked")
                 SingleInfileObjectLoader<Object> embededObjectLoader
                         = new SingleInfileObjectLoaderBuilder<>((Class<Object>) method.getReturnType())
@@ -183,6 +244,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
                         .withTableName(tableName)
                         .usingAnnotationInspector(annotationInspector)
                         .allowNull()
+                        .useRawBinary(useRawBinary)
                         .isEmbedded()
                         .build();
                 objectLoader.embeds.put(method, embededObjectLoader);
@@ -190,8 +252,31 @@ public class SingleInfileObjectLoaderBuilder<E> {
         }
     }
 
+    /**
+     * Finds the Float, Double and BigDecimal columns that specify {@link Column#precision()} and {@link Column#scale()}, as
+     * well as how date and time columns are written, so that the annotations are not looked up again for every row.
+     */
+    private void findColumnFormats(SingleInfileObjectLoader<E> objectLoader) {
+        for (Method method : objectLoader.mappings.values()) {
+            Class<?> type = method.getReturnType();
+            if (TemporalColumn.isTemporal(type)) {
+                TemporalColumn temporalColumn = TemporalColumn.forMethod(method, annotationInspector);
+                if (temporalColumn != null) {
+                    objectLoader.temporalColumns.put(method, temporalColumn);
+                }
+            }
+            else if (Float.class.equals(type) || float.class.equals(type) || Double.class.equals(type)
+                || double.class.equals(type) || BigDecimal.class.equals(type)) {
+                Column column = annotationInspector.findAnnotation(method, Column.class);
+                if (column != null && column.precision() > 0 && column.scale() > 0) {
+                    objectLoader.decimalColumns.put(method, column);
+                }
+            }
+        }
+    }
+
     private String findPrimaryIdColumnName(SingleInfileObjectLoader<E> objectLoader) {
-        Method primaryIdGetter = annotationInspector.idGetter(aClass);
+        Method primaryIdGetter = objectLoader.entityMetadata.getIdGetter();
         if (primaryIdGetter != null) {
             Column column = annotationInspector.findAnnotation(primaryIdGetter, Column.class);
             String name = annotationInspector.fieldFromGetter(primaryIdGetter).getName();
@@ -240,14 +325,15 @@ public class SingleInfileObjectLoaderBuilder<E> {
     }
 
     /**
-     * Find and populate the columns to be inserted. Columns that need to be set are {@code byte[]} fields because they need to
-     * be unhexed which is not done when calling {@link InfileDataBuffer#append(byte[])}.
+     * Find and populate the columns to be inserted. Columns that need to be set are binary fields ({@code byte[]},
+     * {@link java.util.UUID} and {@link java.nio.ByteBuffer}) because they are written as hex digits and need to be unhexed,
+     * unless the loader writes raw bytes with {@link InfileDataBuffer#append(byte[])}.
      * <br/>
      * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoader#getAllColumns()} can not be used since the type
      * of the column is needed to determine if it needs be unhexed.
      * <br/>
      * The {@link ImmutableList.Builder} parameters are modified where the columns are added to them. All the columns,
-     * (including the columns of {@link Embedded} fields) will be added to the parameters.
+     * (including the columns of {@link javax.persistence.Embedded} fields) will be added to the parameters.
      *
      * @param objectLoader the object loader containing the columns needing to be updated
      * @param columns the columns builder to append to for columns that are part of the infile sql
@@ -266,7 +352,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
             Method method = entry.getValue();
             Class<?> type = method.getReturnType();
 
-            if (type.isArray() && type.getComponentType() == byte.class) {
+            if (!objectLoader.rawBinary && SingleInfileObjectLoader.isBinary(type)) {
                 setClauses.add(String.format("%1$s=unhex(@hex%1$s)", column));
                 column = "@hex" + column;
             }
@@ -283,7 +369,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
      * Find the max value of the id column in this table. Used when we are attempting to persist an entity into a table
      * that is not empty.
      */
-    private static long findMaxId(String idColumnName, final String tableName, Connection connection) {
+    static long findMaxId(String idColumnName, final String tableName, Connection connection) {
         if (idColumnName == null) {
             return 0;
         }
@@ -300,4 +386,41 @@ public class SingleInfileObjectLoaderBuilder<E> {
             }
         });
     }
+
+    /**
+     * Finds the max ids of the tables of several loaders with a single query, and sets them as the loaders' last
+     * generated ids. Loaders without an id column are left alone.
+     *
+     * @param connection the connection to query
+     * @param loaders    loaders built without looking up their max id
+     */
+    static void findMaxIds(Connection connection, Collection<? extends SingleInfileObjectLoader<?>> loaders) {
+        final List<SingleInfileObjectLoader<?>> withIds = new ArrayList<>();
+        StringBuilder query = new StringBuilder("select ");
+        for (SingleInfileObjectLoader<?> loader : loaders) {
+            if (loader.idColumnName != null) {
+                query.append(withIds.isEmpty() ? "" : ", ")
+                     .append(String.format("(select max(%s) from %s)", loader.idColumnName, loader.tableName));
+                withIds.add(loader);
+            }
+        }
+        if (withIds.isEmpty()) {
+            return;
+        }
+        final String maxIdQuery = query.toString();
+
+        JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Void>() {
+            @Override
+            public Void doInStatement(Statement statement) throws SQLException {
+                ResultSet resultSet = statement.executeQuery(maxIdQuery);
+                if (!resultSet.first()) {
+                    throw new SQLException("Could not find max ids with [" + maxIdQuery + "]");
+                }
+                for (int i = 0; i < withIds.size(); i++) {
+                    withIds.get(i).setAutoGeneratedId(resultSet.getLong(i + 1));
+                }
+                return null;
+            }
+        });
+    }
 }
@@ -0,0 +1,46 @@
+package com.opower.persistence.jpile.loader;
+
+/**
+ * Makes sure that only one of the loaders sharing a connection has a streaming statement open at a time. A connection
+ * cannot run anything else while a {@code LOAD DATA} statement is reading a stream, so a loader that wants to start
+ * streaming first completes the statement of the loader that currently owns the connection.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class StreamingConnection {
+    private InfileObjectLoader<?> owner;
+
+    /**
+     * Makes a loader the owner of the connection, completing the previous owner's statement.
+     *
+     * @param loader about to start a statement
+     */
+    void claim(InfileObjectLoader<?> loader) {
+        if (this.owner != null && this.owner != loader) {
+            this.finishStream();
+        }
+        this.owner = loader;
+    }
+
+    /**
+     * @param loader whose statement has completed
+     */
+    void release(InfileObjectLoader<?> loader) {
+        if (this.owner == loader) {
+            this.owner = null;
+        }
+    }
+
+    /**
+     * Completes the open statement, if any, so that the connection can be used for something else.
+     */
+    void finishStream() {
+        if (this.owner != null) {
+            // Releases the connection as a side effect
+            this.owner.finishStream();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.opower.persistence.jpile.loader;
+
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.persistence.Column;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
+
+/**
+ * How a date or time column is written, resolved once per column when the loader is built instead of looking up
+ * {@link Temporal @Temporal} for every row.
+ * <p/>
+ * {@link Temporal @Temporal} applies to Joda types as well, so a {@link LocalDateTime} can be written as a date or a time.
+ * Fractional seconds are taken from the column definition, so {@code @Column(columnDefinition = "DATETIME(6)")} writes
+ * microseconds.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class TemporalColumn {
+    private static final Pattern FRACTIONAL_SECONDS =
+            Pattern.compile("^\\s*(?:DATETIME|TIMESTAMP|TIME)\\s*\\(\\s*([0-6])\\s*\\)", Pattern.CASE_INSENSITIVE);
+
+    private final TemporalType type;
+    private final int fractionalDigits;
+
+    private TemporalColumn(TemporalType type, int fractionalDigits) {
+        this.type = type;
+        this.fractionalDigits = fractionalDigits;
+    }
+
+    /**
+     * Checks if a getter returns a type that is written as a date or time.
+     *
+     * @param type the return type of the getter
+     * @return true if it is a {@link Date} or one of the supported Joda types
+     */
+    static boolean isTemporal(Class<?> type) {
+        return Date.class.isAssignableFrom(type)
+               || ReadableInstant.class.isAssignableFrom(type)
+               || LocalDate.class.equals(type)
+               || LocalDateTime.class.equals(type);
+    }
+
+    /**
+     * Resolves the temporal type and fractional seconds for a getter. Joda types do not need {@link Temporal @Temporal},
+     * but {@link Date}s do.
+     *
+     * @param method              the getter
+     * @param annotationInspector used to find the annotations
+     * @return the column, or null if the getter returns a {@link Date} without {@link Temporal @Temporal}
+     */
+    static TemporalColumn forMethod(Method method, PersistenceAnnotationInspector annotationInspector) {
+        return forMethod(method, method.getReturnType(), annotationInspector);
+    }
+
+    /**
+     * Resolves a column like {@link #forMethod(Method, PersistenceAnnotationInspector)} for values of a given type, for
+     * getters that are declared with another type.
+     *
+     * @param method              the getter
+     * @param type                the type of the values
+     * @param annotationInspector used to find the annotations
+     * @return the column, or null if the values are {@link Date}s and the getter has no {@link Temporal @Temporal}
+     */
+    static TemporalColumn forMethod(Method method, Class<?> type, PersistenceAnnotationInspector annotationInspector) {
+        Temporal temporal = annotationInspector.findAnnotation(method, Temporal.class);
+        TemporalType temporalType;
+        if (temporal != null) {
+            temporalType = temporal.value();
+        }
+        else if (LocalDate.class.equals(type)) {
+            temporalType = TemporalType.DATE;
+        }
+        else if (!Date.class.isAssignableFrom(type)) {
+            temporalType = TemporalType.TIMESTAMP;
+        }
+        else {
+            return null;
+        }
+
+        int fractionalDigits = 0;
+        Column column = annotationInspector.findAnnotation(method, Column.class);
+        if (column != null) {
+            Matcher matcher = FRACTIONAL_SECONDS.matcher(column.columnDefinition());
+            if (matcher.find()) {
+                fractionalDigits = Integer.parseInt(matcher.group(1));
+            }
+        }
+        return new TemporalColumn(temporalType, fractionalDigits);
+    }
+
+    TemporalType getType() {
+        return type;
+    }
+
+    int getFractionalDigits() {
+        return fractionalDigits;
+    }
+}
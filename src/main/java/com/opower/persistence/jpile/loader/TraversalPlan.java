@@ -0,0 +1,84 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.reflection.EntityAccessor;
+import com.opower.persistence.jpile.reflection.EntityMetadata;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Everything {@link HierarchicalInfileObjectLoader} needs to save an entity of one class, resolved once per class: the
+ * relationships to visit before and after it, how to propagate its id, and its loaders. The graph walk looks up one plan
+ * per entity instead of the metadata and each loader separately.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+final class TraversalPlan {
+    final EntityMetadata metadata;
+    final SingleInfileObjectLoader<Object> primaryLoader;
+    // Null if the class has no secondary table or it is ignored
+    final SingleInfileObjectLoader<Object> secondaryLoader;
+    final Relationship[] children;
+    final Relationship[] parents;
+
+    TraversalPlan(PersistenceAnnotationInspector inspector, EntityMetadata metadata,
+                  SingleInfileObjectLoader<Object> primaryLoader, SingleInfileObjectLoader<Object> secondaryLoader) {
+        this.metadata = metadata;
+        this.primaryLoader = primaryLoader;
+        this.secondaryLoader = secondaryLoader;
+        this.children = relationships(inspector, metadata, metadata.getChildDependents());
+        this.parents = relationships(inspector, metadata, metadata.getParentDependents());
+    }
+
+    private static Relationship[] relationships(PersistenceAnnotationInspector inspector, EntityMetadata metadata,
+                                                Set<Method> dependents) {
+        Relationship[] relationships = new Relationship[dependents.size()];
+        int i = 0;
+        for (Method dependent : dependents) {
+            relationships[i++] = new Relationship(inspector, metadata, dependent);
+        }
+        return relationships;
+    }
+
+    /**
+     * A relationship getter, read through the generated accessor when there is one.
+     */
+    static final class Relationship {
+        private final EntityMetadata metadata;
+        private final Method getter;
+        private final EntityAccessor accessor;
+        private final int index;
+        // The metadata of the declared type, to set ids without looking it up. Null for collections.
+        private final EntityMetadata targetMetadata;
+
+        private Relationship(PersistenceAnnotationInspector inspector, EntityMetadata metadata, Method getter) {
+            this.metadata = metadata;
+            this.getter = getter;
+            this.accessor = metadata.getAccessor();
+            this.index = accessor != null ? accessor.indexOf(getter.getName()) : -1;
+            this.targetMetadata = Collection.class.isAssignableFrom(getter.getReturnType())
+                                  ? null
+                                  : inspector.entityMetadata(getter.getReturnType());
+        }
+
+        /**
+         * @return the related entity or collection, may be null
+         */
+        Object get(Object entity) {
+            return index >= 0 ? accessor.get(entity, index) : metadata.getDependent(getter, entity);
+        }
+
+        /**
+         * Gives a related entity the id of the entity it depends on.
+         */
+        void setId(PersistenceAnnotationInspector inspector, Object related, Object id) {
+            EntityMetadata target = targetMetadata != null && targetMetadata.getEntityClass() == related.getClass()
+                                    ? targetMetadata
+                                    : inspector.entityMetadata(related.getClass());
+            target.setIdValue(related, id);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.opower.persistence.jpile.processor;
+
+import com.google.common.collect.ImmutableSet;
+import com.opower.persistence.jpile.reflection.EntityAccessor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.persistence.Embeddable;
+import javax.persistence.Table;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates an {@link EntityAccessor} for every {@link Table &#064;Table} entity and {@link Embeddable &#064;Embeddable}
+ * class being compiled. The accessor calls the getters of all properties with a persistence annotation, and their
+ * setters, directly, so that loaders read and write entities without reflection.
+ * <p/>
+ * Loaders still wrap their {@link com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector} in a
+ * {@link com.opower.persistence.jpile.reflection.CachedProxy}, which javassist generates at runtime. The accessors
+ * therefore do not make jPile usable in native images or anywhere else classes cannot be generated at runtime.
+ * <p/>
+ * The processor is optional and not registered as a service. Enable it with
+ * {@code -processor com.opower.persistence.jpile.processor.EntityAccessorProcessor}, or list it under
+ * {@code annotationProcessors} of the maven-compiler-plugin. Classes whose properties it cannot reach, such as private
+ * nested classes, are skipped with a note and keep using reflection.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class EntityAccessorProcessor extends AbstractProcessor {
+    private static final String PERSISTENCE_PACKAGE = "javax.persistence.";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return ImmutableSet.of(Table.class.getName(), Embeddable.class.getName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(annotation))) {
+                if (type.getModifiers().contains(Modifier.PRIVATE) || !type.getTypeParameters().isEmpty()) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                                                             "No accessor generated, the class is private or generic", type);
+                    continue;
+                }
+                try {
+                    this.generate(type);
+                }
+                catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                             "Could not write accessor: " + e.getMessage(), type);
+                }
+            }
+        }
+        // Other processors may want @Table as well
+        return false;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + EntityAccessor.SUFFIX;
+        String typeName = type.getQualifiedName().toString();
+
+        Map<String, ExecutableElement> getters = this.findGetters(type, packageElement);
+        List<String> getterNames = new ArrayList<>(getters.keySet());
+
+        StringBuilder source = new StringBuilder();
+        if (!packageElement.isUnnamed()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n * Generated by ").append(EntityAccessorProcessor.class.getName()).append(" for {@link ")
+              .append(typeName).append("}.\n */\n");
+        source.append("public final class ").append(simpleName).append(" extends ")
+              .append(EntityAccessor.class.getName()).append(" {\n");
+
+        List<ExecutableElement> setters = new ArrayList<>();
+        for (String getterName : getterNames) {
+            setters.add(this.findSetter(type, packageElement, getters.get(getterName)));
+        }
+        source.append("    public ").append(simpleName).append("() {\n        super(new String[] {");
+        for (int i = 0; i < getterNames.size(); i++) {
+            source.append(i > 0 ? ", " : "").append('"').append(getterNames.get(i)).append('"');
+        }
+        source.append("},\n              new String[] {");
+        for (int i = 0; i < setters.size(); i++) {
+            source.append(i > 0 ? ", " : "");
+            if (setters.get(i) == null) {
+                source.append("null");
+            }
+            else {
+                source.append('"').append(setters.get(i).getSimpleName()).append('"');
+            }
+        }
+        source.append("});\n    }\n\n");
+
+        source.append("    @Override\n    public Object get(Object entity, int property) {\n");
+        source.append("        ").append(typeName).append(" e = (").append(typeName).append(") entity;\n");
+        source.append("        switch (property) {\n");
+        for (int i = 0; i < getterNames.size(); i++) {
+            source.append("            case ").append(i).append(":\n                return e.")
+                  .append(getterNames.get(i)).append("();\n");
+        }
+        source.append("            default:\n")
+              .append("                throw new IllegalArgumentException(\"No property \" + property);\n")
+              .append("        }\n    }\n\n");
+
+        source.append("    @Override\n    public void set(Object entity, int property, Object value) {\n");
+        source.append("        ").append(typeName).append(" e = (").append(typeName).append(") entity;\n");
+        source.append("        switch (property) {\n");
+        for (int i = 0; i < getterNames.size(); i++) {
+            ExecutableElement setter = setters.get(i);
+            if (setter != null) {
+                source.append("            case ").append(i).append(":\n                e.")
+                      .append(setter.getSimpleName()).append("((")
+                      .append(this.castType(setter.getParameters().get(0).asType())).append(") value);\n")
+                      .append("                return;\n");
+            }
+        }
+        source.append("            default:\n")
+              .append("                throw new UnsupportedOperationException(\"No setter for property \" + property);\n")
+              .append("        }\n    }\n}\n");
+
+        String generatedName = packageElement.isUnnamed() ? simpleName : packageName + "." + simpleName;
+        Writer writer = processingEnv.getFiler().createSourceFile(generatedName, type).openWriter();
+        try {
+            writer.write(source.toString());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Finds the getters with persistence annotations on a class and its superclasses, by name. Overridden getters are
+     * only found once.
+     */
+    private Map<String, ExecutableElement> findGetters(TypeElement type, PackageElement packageElement) {
+        Map<String, ExecutableElement> getters = new LinkedHashMap<>();
+        for (TypeElement current = type; current != null; current = this.superclass(current)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                String name = method.getSimpleName().toString();
+                if (!getters.containsKey(name)
+                    && (name.startsWith("get") || name.startsWith("is"))
+                    && method.getParameters().isEmpty()
+                    && method.getReturnType().getKind() != TypeKind.VOID
+                    && !method.getModifiers().contains(Modifier.STATIC)
+                    && this.isAccessible(method, current, packageElement)
+                    && this.hasPersistenceAnnotation(method)) {
+                    getters.put(name, method);
+                }
+            }
+        }
+        return getters;
+    }
+
+    /**
+     * Finds the setter for a getter by following the JavaBean naming convention.
+     */
+    private ExecutableElement findSetter(TypeElement type, PackageElement packageElement, ExecutableElement getter) {
+        String getterName = getter.getSimpleName().toString();
+        String setterName = "set" + getterName.substring(getterName.startsWith("is") ? 2 : 3);
+        for (TypeElement current = type; current != null; current = this.superclass(current)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals(setterName)
+                    && method.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(),
+                                                               getter.getReturnType())
+                    && !method.getModifiers().contains(Modifier.STATIC)
+                    && this.isAccessible(method, current, packageElement)) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals(Object.class.getName()) ? null : element;
+    }
+
+    /**
+     * @return true if the generated class, which is in the entity's package, can call the method
+     */
+    private boolean isAccessible(ExecutableElement method, TypeElement declaringType, PackageElement packageElement) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        return modifiers.contains(Modifier.PUBLIC)
+               || processingEnv.getElementUtils().getPackageOf(declaringType).equals(packageElement);
+    }
+
+    private boolean hasPersistenceAnnotation(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (annotationType.getKind() == ElementKind.ANNOTATION_TYPE
+                && annotationType.getQualifiedName().toString().startsWith(PERSISTENCE_PACKAGE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the type to cast a value to before passing it to a setter, boxed for primitives and erased for generics
+     */
+    private String castType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()))
+                                .getQualifiedName().toString();
+        }
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+}
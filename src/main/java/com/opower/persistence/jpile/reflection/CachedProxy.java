@@ -1,14 +1,16 @@
 package com.opower.persistence.jpile.reflection;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import com.google.common.base.Objects;
-import com.google.common.base.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
 import javassist.util.proxy.MethodHandler;
 import javassist.util.proxy.ProxyFactory;
 import javassist.util.proxy.ProxyObject;
@@ -21,39 +23,20 @@ import javassist.util.proxy.ProxyObject;
  *     Foo foo = new Foo();
  *     Foo cachedFoo = CachedProxy.create(foo);
  * </pre>
+ * Every method gets its own cache, picked by the number of parameters. Methods without parameters keep a single value,
+ * and the other methods look up one map per parameter with the arguments themselves as keys, so a hit allocates nothing
+ * unless an argument is an array. Values are never evicted. Arguments are only cached if they are classes, members,
+ * strings, numbers, booleans, enums or arrays of these, which keeps the caches bounded by the number of classes. Calls
+ * with any other argument go straight to the implementation.
  *
  * @author Martin Ankerl (martin.ankerl@gmail.at)
  * @author amir.raminfar
  */
 public final class CachedProxy {
-    private CachedProxy() {
-    }
-
-    /**
-     * Private class with all the required parameters for a method
-     */
-    private static final class Args {
-        private final Method method;
-        private final Object[] args;
-
-        public Args(final Method method, final Object[] args) {
-            this.method = method;
-            this.args = Arrays.copyOf(args, args.length);
-        }
-
-        @Override
-        public boolean equals(final Object obj) {
-            if (obj instanceof Args) {
-                Args other = (Args) obj;
-                return Objects.equal(this.method, other.method) && Arrays.deepEquals(this.args, other.args);
-            }
-            return false;
-        }
+    // Stands in for null arguments and results, which concurrent maps cannot hold
+    private static final Object NULL = new Object();
 
-        @Override
-        public int hashCode() {
-            return 31 * method.hashCode() + Arrays.deepHashCode(args);
-        }
+    private CachedProxy() {
     }
 
     /**
@@ -71,37 +54,213 @@ public final class CachedProxy {
         try {
             @SuppressWarnings("unchecked")
             T cachedInstance = (T) cachedClass.newInstance();
-            ((ProxyObject) cachedInstance).setHandler(new MethodHandler() {
-                final LoadingCache<Args, Optional> cache = createCache(impl);
-
-                /**
-                 * Returns the cached value of this method. If the the method returns null then null is returned.
-                 *
-                 * {@inheritDoc}
-                 */
-                @Override
-                public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args) {
-                    return this.cache.getUnchecked(new Args(thisMethod, args)).orNull();
-                }
-            });
+            ((ProxyObject) cachedInstance).setHandler(new CachingHandler(impl));
             return cachedInstance;
         }
-        catch (InstantiationException e) {
+        catch (InstantiationException | IllegalAccessException e) {
             throw Throwables.propagate(e);
         }
-        catch (IllegalAccessException e) {
-            throw Throwables.propagate(e);
+    }
+
+    /**
+     * Adds up the hits and misses of all methods of a proxy. Calls that were not cached count as misses.
+     *
+     * @param proxy a proxy returned by {@link #create(Object)}
+     * @return the statistics, only hits, misses and successful loads are counted
+     */
+    public static CacheStats stats(Object proxy) {
+        Preconditions.checkArgument(proxy instanceof ProxyObject
+                                    && ((ProxyObject) proxy).getHandler() instanceof CachingHandler,
+                                    "[%s] was not created by CachedProxy", proxy);
+        long hits = 0;
+        long misses = 0;
+        for (MethodCache cache : ((CachingHandler) ((ProxyObject) proxy).getHandler()).caches.values()) {
+            hits += cache.hits.get();
+            misses += cache.misses.get();
+        }
+        return new CacheStats(hits, misses, misses, 0, 0, 0);
+    }
+
+    /**
+     * Returns the cached value of a method. If the the method returns null then null is returned.
+     */
+    private static final class CachingHandler implements MethodHandler {
+        private final Object impl;
+        private final ConcurrentMap<Method, MethodCache> caches = new ConcurrentHashMap<>();
+
+        private CachingHandler(Object impl) {
+            this.impl = impl;
+        }
+
+        @Override
+        public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args) {
+            MethodCache cache = this.caches.get(thisMethod);
+            if (cache == null) {
+                cache = MethodCache.forMethod(thisMethod, this.impl);
+                MethodCache existing = this.caches.putIfAbsent(thisMethod, cache);
+                if (existing != null) {
+                    cache = existing;
+                }
+            }
+            Object value = cache.get(args);
+            return value == NULL ? null : value;
+        }
+    }
+
+    /**
+     * The cache of one method. Results are computed outside of any lock, when two threads miss at the same time both
+     * call the method and the first result is kept.
+     */
+    private abstract static class MethodCache {
+        final Method method;
+        final Object impl;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        MethodCache(Method method, Object impl) {
+            this.method = method;
+            this.impl = impl;
+        }
+
+        static MethodCache forMethod(Method method, Object impl) {
+            switch (method.getParameterTypes().length) {
+                case 0:
+                    return new NoArgCache(method, impl);
+                case 1:
+                    return new SingleArgCache(method, impl);
+                default:
+                    return new MultiArgCache(method, impl);
+            }
+        }
+
+        /**
+         * @return the result, or {@link #NULL}
+         */
+        abstract Object get(Object[] args);
+
+        final Object load(Object[] args) {
+            this.misses.incrementAndGet();
+            try {
+                Object value = this.method.invoke(this.impl, args);
+                return value == null ? NULL : value;
+            }
+            catch (InvocationTargetException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+            catch (IllegalAccessException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        final Object get(ConcurrentMap<Object, Object> values, Object key, Object[] args) {
+            Object value = values.get(key);
+            if (value != null) {
+                this.hits.incrementAndGet();
+                return value;
+            }
+            value = this.load(args);
+            Object existing = values.putIfAbsent(key, value);
+            return existing != null ? existing : value;
+        }
+    }
+
+    private static final class NoArgCache extends MethodCache {
+        private volatile Object value;
+
+        NoArgCache(Method method, Object impl) {
+            super(method, impl);
+        }
+
+        @Override
+        Object get(Object[] args) {
+            Object result = this.value;
+            if (result != null) {
+                this.hits.incrementAndGet();
+                return result;
+            }
+            result = this.load(args);
+            this.value = result;
+            return result;
+        }
+    }
+
+    private static final class SingleArgCache extends MethodCache {
+        private final ConcurrentMap<Object, Object> values = new ConcurrentHashMap<>();
+
+        SingleArgCache(Method method, Object impl) {
+            super(method, impl);
+        }
+
+        @Override
+        Object get(Object[] args) {
+            Object key = key(args[0]);
+            return key == null ? this.load(args) : this.get(this.values, key, args);
+        }
+    }
+
+    /**
+     * Nests one map per parameter, so that no key combining all arguments has to be created.
+     */
+    private static final class MultiArgCache extends MethodCache {
+        private final ConcurrentMap<Object, Object> values = new ConcurrentHashMap<>();
+
+        MultiArgCache(Method method, Object impl) {
+            super(method, impl);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Object get(Object[] args) {
+            ConcurrentMap<Object, Object> map = this.values;
+            int last = args.length - 1;
+            for (int i = 0; i < last; i++) {
+                Object key = key(args[i]);
+                if (key == null) {
+                    return this.load(args);
+                }
+                ConcurrentMap<Object, Object> next = (ConcurrentMap<Object, Object>) map.get(key);
+                if (next == null) {
+                    next = new ConcurrentHashMap<>();
+                    ConcurrentMap<Object, Object> existing = (ConcurrentMap<Object, Object>) map.putIfAbsent(key, next);
+                    if (existing != null) {
+                        next = existing;
+                    }
+                }
+                map = next;
+            }
+            Object key = key(args[last]);
+            return key == null ? this.load(args) : this.get(map, key, args);
+        }
+    }
+
+    /**
+     * @return the key for an argument, or null if calls with it should not be cached
+     */
+    private static Object key(Object arg) {
+        if (arg == null) {
+            return NULL;
+        }
+        if (arg instanceof Object[]) {
+            // Varargs create a new array for every call, compare the elements instead
+            Object[] array = (Object[]) arg;
+            for (Object element : array) {
+                if (element != null && !isCacheable(element)) {
+                    return null;
+                }
+            }
+            return Arrays.asList(array.clone());
         }
+        return isCacheable(arg) ? arg : null;
     }
 
-    private static LoadingCache<Args, Optional> createCache(final Object impl) {
-        return CacheBuilder.newBuilder()
-                           .softValues()
-                           .build(new CacheLoader<Args, Optional>() {
-                               @Override
-                               public Optional load(Args key) throws InvocationTargetException, IllegalAccessException {
-                                   return Optional.fromNullable(key.method.invoke(impl, key.args));
-                               }
-                           });
+    private static boolean isCacheable(Object arg) {
+        return arg instanceof Class
+               || arg instanceof Member
+               || arg instanceof String
+               || arg instanceof Number
+               || arg instanceof Boolean
+               || arg instanceof Character
+               || arg instanceof Enum
+               || arg instanceof Annotation;
     }
 }
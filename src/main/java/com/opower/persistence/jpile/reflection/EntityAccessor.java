@@ -0,0 +1,113 @@
+package com.opower.persistence.jpile.reflection;
+
+import java.util.List;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the persistent properties of one entity class without reflection. Subclasses are generated at compile
+ * time by {@link com.opower.persistence.jpile.processor.EntityAccessorProcessor} and named after the entity with
+ * {@link #SUFFIX}. When one exists jPile uses it for ids, relationships and rows instead of looking up methods at runtime,
+ * and falls back to reflection otherwise.
+ * <p/>
+ * Properties are numbered in the order of {@link #getGetterNames()}.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public abstract class EntityAccessor {
+    /**
+     * Appended to the binary name of an entity class to get the name of its accessor.
+     */
+    public static final String SUFFIX = "$$JpileAccessor";
+
+    private static Logger logger = LoggerFactory.getLogger(EntityAccessor.class);
+
+    private final List<String> getterNames;
+    private final String[] setterNames;
+
+    /**
+     * @param getterNames the getters of all persistent properties
+     * @param setterNames the setters of the same properties, null for properties that cannot be set
+     */
+    protected EntityAccessor(String[] getterNames, String[] setterNames) {
+        Preconditions.checkArgument(getterNames.length == setterNames.length, "Every getter needs a setter or null");
+        this.getterNames = ImmutableList.copyOf(getterNames);
+        this.setterNames = setterNames.clone();
+    }
+
+    /**
+     * Loads the generated accessor of a class.
+     *
+     * @param aClass the entity class
+     * @return a new accessor, or null if none was generated for exactly this class
+     */
+    public static EntityAccessor forClass(Class<?> aClass) {
+        if (aClass.getClassLoader() == null) {
+            return null;
+        }
+        try {
+            Class<?> accessorClass = Class.forName(aClass.getName() + SUFFIX, true, aClass.getClassLoader());
+            return (EntityAccessor) accessorClass.getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            logger.warn("Ignoring the generated accessor of [{}], it cannot be loaded.", aClass, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the names of the getters of all persistent properties
+     */
+    public List<String> getGetterNames() {
+        return getterNames;
+    }
+
+    /**
+     * @param getterName the name of a getter
+     * @return the index of the property, or -1 if the accessor does not have it
+     */
+    public int indexOf(String getterName) {
+        return getterNames.indexOf(getterName);
+    }
+
+    /**
+     * @param property the index of the property
+     * @return true if {@link #set(Object, int, Object)} can set the property
+     */
+    public boolean hasSetter(int property) {
+        return setterNames[property] != null;
+    }
+
+    /**
+     * @param property the index of the property
+     * @return the name of the setter, or null if the property cannot be set
+     */
+    public String getSetterName(int property) {
+        return setterNames[property];
+    }
+
+    /**
+     * Calls a getter.
+     *
+     * @param entity   the entity
+     * @param property the index of the property
+     * @return the value
+     */
+    public abstract Object get(Object entity, int property);
+
+    /**
+     * Calls the setter that goes with a getter.
+     *
+     * @param entity   the entity
+     * @param property the index of the property
+     * @param value    the new value
+     * @throws UnsupportedOperationException if the property has no setter
+     */
+    public abstract void set(Object entity, int property, Object value);
+}
@@ -0,0 +1,358 @@
+package com.opower.persistence.jpile.reflection;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.Column;
+import javax.persistence.Embedded;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.SecondaryTable;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Everything jPile needs to know about an entity class, looked up once with a {@link PersistenceAnnotationInspector} and
+ * kept in final fields. Loaders read these on every entity instead of asking the inspector again, see
+ * {@link PersistenceAnnotationInspector#entityMetadata(Class)}.
+ * <p/>
+ * The methods of the class and its superclasses are scanned once, collecting every {@code javax.persistence} annotation.
+ * If the inspector has an {@link EntityMetadataSnapshot}, the scan is read from it when the class has not changed and
+ * added to it otherwise.
+ * <p/>
+ * Classes without {@link javax.persistence.Table &#064;Table} have metadata as well, with no table name. Their ids can be
+ * set but are never read.
+ * <p/>
+ * If {@link com.opower.persistence.jpile.processor.EntityAccessorProcessor} generated an {@link EntityAccessor} for the
+ * class, ids and relationships are read and written through it instead of through reflection.
+ * <p/>
+ * Instances of this class are immutable.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public final class EntityMetadata {
+    private static final String PERSISTENCE_PACKAGE = "javax.persistence.";
+
+    private final Class<?> entityClass;
+    private final String tableName;
+    private final Method idGetter;
+    private final Method idSetter;
+    private final Field idField;
+    private final ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>>
+            annotatedMethods;
+    private final List<PersistenceAnnotationInspector.AnnotatedMethod<Column>> columns;
+    private final List<PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn>> joinColumns;
+    private final List<Method> embeds;
+    private final List<SecondaryTable> secondaryTables;
+    private final Set<Method> parentDependents;
+    private final Set<Method> childDependents;
+    private final EntityAccessor accessor;
+    // Indexes of the id and dependents in the accessor, only set if there is one
+    private final int idIndex;
+    private final boolean idSettable;
+    private final Map<Method, Integer> dependentIndexes;
+
+    EntityMetadata(PersistenceAnnotationInspector inspector, Class<?> entityClass) {
+        this.entityClass = entityClass;
+        boolean hasTable = inspector.hasTableAnnotation(entityClass);
+        this.tableName = hasTable ? inspector.tableName(entityClass) : null;
+        this.secondaryTables = ImmutableList.copyOf(inspector.findSecondaryTables(entityClass));
+
+        EntityMetadataSnapshot snapshot = inspector.getSnapshot();
+        ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> annotated
+                = snapshot != null ? snapshot.get(entityClass) : null;
+        if (annotated == null) {
+            annotated = scan(entityClass);
+            if (snapshot != null) {
+                snapshot.put(entityClass, annotated);
+            }
+        }
+        this.annotatedMethods = annotated;
+        SetMultimap<Method, Class<? extends Annotation>> annotationTypes = HashMultimap.create();
+        for (Map.Entry<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> entry
+                : annotated.entries()) {
+            annotationTypes.put(entry.getValue().getMethod(), entry.getKey());
+        }
+
+        List<PersistenceAnnotationInspector.AnnotatedMethod<Id>> ids = this.getAnnotatedMethods(Id.class);
+        this.idGetter = ids.isEmpty() ? null : ids.get(0).getMethod();
+        if (this.idGetter != null) {
+            Method setter = inspector.setterFromGetter(this.idGetter);
+            Field field = setter == null ? inspector.fieldFromGetter(this.idGetter) : null;
+            if (setter != null) {
+                ReflectionUtils.makeAccessible(setter);
+            }
+            else if (field != null) {
+                ReflectionUtils.makeAccessible(field);
+            }
+            this.idSetter = setter;
+            this.idField = field;
+        }
+        else {
+            this.idSetter = null;
+            this.idField = null;
+        }
+        this.columns = this.getAnnotatedMethods(Column.class);
+
+        // Only @JoinColumn on a relationship has a column to write
+        ImmutableList.Builder<PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn>> relationshipColumns
+                = ImmutableList.builder();
+        for (PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn> joinColumn
+                : this.getAnnotatedMethods(JoinColumn.class)) {
+            Set<Class<? extends Annotation>> types = annotationTypes.get(joinColumn.getMethod());
+            if (types.contains(ManyToOne.class) || types.contains(OneToOne.class)) {
+                relationshipColumns.add(joinColumn);
+            }
+        }
+        this.joinColumns = relationshipColumns.build();
+        ImmutableList.Builder<Method> embedded = ImmutableList.builder();
+        for (PersistenceAnnotationInspector.AnnotatedMethod<?> embed
+                : Iterables.concat(this.getAnnotatedMethods(Embedded.class), this.getAnnotatedMethods(EmbeddedId.class))) {
+            embedded.add(embed.getMethod());
+        }
+        this.embeds = embedded.build();
+
+        // Entities that can only be saved once this one has an id
+        ImmutableSet.Builder<Method> parents = ImmutableSet.builder();
+        for (PersistenceAnnotationInspector.AnnotatedMethod<OneToMany> oneToMany : this.getAnnotatedMethods(OneToMany.class)) {
+            parents.add(oneToMany.getMethod());
+        }
+        // Entities whose ids this one refers to, which have to be saved first
+        ImmutableSet.Builder<Method> children = ImmutableSet.builder();
+        for (PersistenceAnnotationInspector.AnnotatedMethod<ManyToOne> manyToOne : this.getAnnotatedMethods(ManyToOne.class)) {
+            children.add(manyToOne.getMethod());
+        }
+        for (PersistenceAnnotationInspector.AnnotatedMethod<OneToOne> oneToOne : this.getAnnotatedMethods(OneToOne.class)) {
+            if (annotationTypes.containsEntry(oneToOne.getMethod(), PrimaryKeyJoinColumn.class)) {
+                parents.add(oneToOne.getMethod());
+            }
+            else {
+                children.add(oneToOne.getMethod());
+            }
+        }
+        this.parentDependents = parents.build();
+        this.childDependents = children.build();
+
+        this.accessor = EntityAccessor.forClass(entityClass);
+        if (this.accessor != null) {
+            this.idIndex = this.idGetter == null ? -1 : this.accessor.indexOf(this.idGetter.getName());
+            this.idSettable = this.idIndex >= 0
+                              && this.idSetter != null
+                              && this.idSetter.getName().equals(this.accessor.getSetterName(this.idIndex));
+            ImmutableMap.Builder<Method, Integer> indexes = ImmutableMap.builder();
+            for (Method dependent : Sets.union(this.parentDependents, this.childDependents)) {
+                int index = this.accessor.indexOf(dependent.getName());
+                if (index >= 0) {
+                    indexes.put(dependent, index);
+                }
+            }
+            this.dependentIndexes = indexes.build();
+        }
+        else {
+            this.idIndex = -1;
+            this.idSettable = false;
+            this.dependentIndexes = ImmutableMap.of();
+        }
+    }
+
+    /**
+     * Finds every method of a class and its superclasses that has a {@code javax.persistence} annotation, reading the
+     * annotations of each method once.
+     */
+    private static ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> scan(
+            Class<?> entityClass) {
+        ImmutableListMultimap.Builder<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>>
+                annotated = ImmutableListMultimap.builder();
+        for (Method method : ReflectionUtils.getAllDeclaredMethods(entityClass)) {
+            for (Annotation annotation : method.getDeclaredAnnotations()) {
+                if (annotation.annotationType().getName().startsWith(PERSISTENCE_PACKAGE)) {
+                    annotated.put(annotation.annotationType(), newAnnotatedMethod(method, annotation));
+                }
+            }
+        }
+        return annotated.build();
+    }
+
+    private static <A extends Annotation> PersistenceAnnotationInspector.AnnotatedMethod<A> newAnnotatedMethod(
+            Method method, A annotation) {
+        return new PersistenceAnnotationInspector.AnnotatedMethod<>(method, annotation);
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * @return true if the class has {@link javax.persistence.Table &#064;Table}
+     */
+    public boolean hasTable() {
+        return tableName != null;
+    }
+
+    /**
+     * @return the table name, or null if the class has no {@link javax.persistence.Table &#064;Table}
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the getter annotated with {@link javax.persistence.Id &#064;Id}, or null
+     */
+    public Method getIdGetter() {
+        return idGetter;
+    }
+
+    /**
+     * @return all getters annotated with {@link Column &#064;Column}
+     */
+    public List<PersistenceAnnotationInspector.AnnotatedMethod<Column>> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return getters annotated with {@link JoinColumn &#064;JoinColumn} and {@link ManyToOne &#064;ManyToOne} or
+     *         {@link OneToOne &#064;OneToOne}
+     */
+    public List<PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn>> getJoinColumns() {
+        return joinColumns;
+    }
+
+    /**
+     * @return getters annotated with {@link Embedded &#064;Embedded}, followed by those annotated with
+     *         {@link EmbeddedId &#064;EmbeddedId}
+     */
+    public List<Method> getEmbeds() {
+        return embeds;
+    }
+
+    /**
+     * Returns the methods of this class and its superclasses that have a {@code javax.persistence} annotation, found by
+     * the single scan of the class.
+     *
+     * @param annotationType the annotation
+     * @param <A>            the annotation type
+     * @return the methods with the annotation, in the order of {@link ReflectionUtils#getAllDeclaredMethods(Class)}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends Annotation> List<PersistenceAnnotationInspector.AnnotatedMethod<A>> getAnnotatedMethods(
+            Class<A> annotationType) {
+        return (List<PersistenceAnnotationInspector.AnnotatedMethod<A>>) (List<?>) annotatedMethods.get(annotationType);
+    }
+
+    /**
+     * @return the secondary tables, empty if there are none
+     */
+    public List<SecondaryTable> getSecondaryTables() {
+        return secondaryTables;
+    }
+
+    /**
+     * @return getters for {@link OneToMany &#064;OneToMany} and {@link OneToOne &#064;OneToOne} relationships mapped by
+     *         the primary key, which are saved after this entity
+     */
+    public Set<Method> getParentDependents() {
+        return parentDependents;
+    }
+
+    /**
+     * @return getters for {@link ManyToOne &#064;ManyToOne} and other {@link OneToOne &#064;OneToOne} relationships,
+     *         which are saved before this entity
+     */
+    public Set<Method> getChildDependents() {
+        return childDependents;
+    }
+
+    /**
+     * @return the accessor generated for this class at compile time, or null if there is none
+     */
+    public EntityAccessor getAccessor() {
+        return accessor;
+    }
+
+    /**
+     * Reads a relationship of an entity of this class, through the generated accessor if it has the getter.
+     *
+     * @param dependent one of {@link #getParentDependents()} or {@link #getChildDependents()}
+     * @param entity    the entity
+     * @return the related entity or collection, may be null
+     */
+    public Object getDependent(Method dependent, Object entity) {
+        Integer index = dependentIndexes.get(dependent);
+        if (index != null) {
+            return accessor.get(entity, index);
+        }
+        try {
+            return dependent.invoke(entity);
+        }
+        catch (InvocationTargetException | IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Reads the id of an entity of this class.
+     *
+     * @param entity the entity
+     * @return the id, or null if it is not set or the class has no table or id
+     */
+    public Object getIdValue(Object entity) {
+        if (tableName == null || idGetter == null) {
+            return null;
+        }
+        if (idIndex >= 0) {
+            return accessor.get(entity, idIndex);
+        }
+        try {
+            return idGetter.invoke(entity);
+        }
+        catch (InvocationTargetException | IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Sets the id of an entity of this class with the id's setter, or its field if there is no setter.
+     *
+     * @param entity the entity
+     * @param id     the new id
+     */
+    public void setIdValue(Object entity, Object id) {
+        Preconditions.checkState(idGetter != null, "No @Id found on [%s]", entityClass);
+        if (idSettable) {
+            accessor.set(entity, idIndex, id);
+            return;
+        }
+        try {
+            if (idSetter != null) {
+                idSetter.invoke(entity, id);
+            }
+            else if (idField != null) {
+                idField.set(entity, id);
+            }
+        }
+        catch (InvocationTargetException | IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
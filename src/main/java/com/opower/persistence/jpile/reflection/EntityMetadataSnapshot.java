@@ -0,0 +1,316 @@
+package com.opower.persistence.jpile.reflection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
+
+/**
+ * The persistence annotations found on the methods of entity classes, kept by class name so that they can be written to
+ * a file and read back at the next start instead of scanning the classes again. A typical use is
+ * <pre>
+ *     EntityMetadataSnapshot snapshot = EntityMetadataSnapshot.read(file);
+ *     objectLoader.setMetadataSnapshot(snapshot);
+ *     ...
+ *     if (snapshot.isModified()) {
+ *         snapshot.write(file);
+ *     }
+ * </pre>
+ * Every class is stored with a fingerprint made of the names of the class and its superclasses and the modification times
+ * of the class files or jars they were loaded from, which costs a few file system lookups instead of reading the classes.
+ * An entry is only used while its fingerprint still matches. A hit looks up only the annotated methods by name, instead of
+ * reading the annotations of every method of the class and its superclasses.
+ * <p/>
+ * The file holds names and fingerprints only, so reading it never loads or instantiates classes. Instances of this class
+ * are thread safe.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public final class EntityMetadataSnapshot {
+    private static final int FORMAT_VERSION = 2;
+
+    private static Logger logger = LoggerFactory.getLogger(EntityMetadataSnapshot.class);
+
+    private final ConcurrentMap<String, ClassEntry> classes = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    /**
+     * Reads a snapshot written by {@link #write(File)}. A missing or unreadable file gives an empty snapshot, so that the
+     * classes are scanned again.
+     *
+     * @param file the file
+     * @return the snapshot
+     */
+    public static EntityMetadataSnapshot read(File file) {
+        EntityMetadataSnapshot snapshot = new EntityMetadataSnapshot();
+        if (!file.isFile()) {
+            return snapshot;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                logger.info("Ignoring metadata snapshot [{}], it was written by another version.", file);
+                return snapshot;
+            }
+            for (int classCount = in.readInt(); classCount > 0; classCount--) {
+                String className = in.readUTF();
+                snapshot.classes.put(className, ClassEntry.read(in));
+            }
+            return snapshot;
+        }
+        catch (IOException e) {
+            logger.warn("Ignoring metadata snapshot [{}], it cannot be read.", file, e);
+            return new EntityMetadataSnapshot();
+        }
+        finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes all classes of this snapshot.
+     *
+     * @param file the file, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            Map<String, ClassEntry> entries = ImmutableMap.copyOf(classes);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, ClassEntry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        finally {
+            out.close();
+        }
+        modified = false;
+    }
+
+    /**
+     * @return true if classes were added since the snapshot was read or written
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return the number of classes in this snapshot
+     */
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * Looks up the annotated methods of a class.
+     *
+     * @param aClass the class
+     * @return the annotated methods by annotation type, or null if the class is not in the snapshot or has changed
+     */
+    ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> get(Class<?> aClass) {
+        ClassEntry entry = classes.get(aClass.getName());
+        if (entry == null || !entry.fingerprint.equals(fingerprint(aClass))) {
+            return null;
+        }
+        try {
+            return entry.resolve(aClass.getClassLoader());
+        }
+        catch (ClassNotFoundException | NoSuchMethodException | RuntimeException e) {
+            logger.debug("Scanning [{}] again, its snapshot does not match the class.", aClass, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the annotated methods of a class, unless it has no fingerprint.
+     *
+     * @param aClass  the class
+     * @param methods the annotated methods by annotation type
+     */
+    void put(Class<?> aClass,
+             ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> methods) {
+        String fingerprint = fingerprint(aClass);
+        if (fingerprint != null) {
+            classes.put(aClass.getName(), new ClassEntry(fingerprint, methods));
+            modified = true;
+        }
+    }
+
+    /**
+     * Names a class and its superclasses with the modification times of the files they were loaded from, since the scan
+     * includes inherited methods.
+     *
+     * @return the fingerprint, or null if a class was not loaded from a class file or jar
+     */
+    static String fingerprint(Class<?> aClass) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Class<?> current = aClass; current != null && current != Object.class; current = current.getSuperclass()) {
+            ClassLoader classLoader = current.getClassLoader();
+            if (classLoader == null) {
+                return null;
+            }
+            URL url = classLoader.getResource(current.getName().replace('.', '/') + ".class");
+            File file = url == null ? null : classFile(url);
+            if (file == null || file.lastModified() == 0) {
+                return null;
+            }
+            fingerprint.append(current.getName()).append('@').append(file.lastModified()).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * @return the class file or the jar that holds it, or null if it is neither
+     */
+    private static File classFile(URL url) {
+        try {
+            if ("file".equals(url.getProtocol())) {
+                return new File(url.toURI());
+            }
+            if ("jar".equals(url.getProtocol())) {
+                URL jarUrl = ((JarURLConnection) url.openConnection()).getJarFileURL();
+                return "file".equals(jarUrl.getProtocol()) ? new File(jarUrl.toURI()) : null;
+            }
+        }
+        catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            logger.debug("Cannot find the file of [{}].", url, e);
+        }
+        return null;
+    }
+
+    /**
+     * The annotated methods of one class, in the order they were found.
+     */
+    private static final class ClassEntry {
+        private final String fingerprint;
+        private final List<MethodEntry> methods;
+
+        private ClassEntry(String fingerprint, List<MethodEntry> methods) {
+            this.fingerprint = fingerprint;
+            this.methods = methods;
+        }
+
+        private ClassEntry(String fingerprint,
+                           ListMultimap<Class<? extends Annotation>,
+                                   PersistenceAnnotationInspector.AnnotatedMethod<?>> methods) {
+            this.fingerprint = fingerprint;
+            ImmutableList.Builder<MethodEntry> entries = ImmutableList.builder();
+            for (Map.Entry<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> entry
+                    : methods.entries()) {
+                entries.add(new MethodEntry(entry.getKey(), entry.getValue().getMethod()));
+            }
+            this.methods = entries.build();
+        }
+
+        private static ClassEntry read(DataInputStream in) throws IOException {
+            String fingerprint = in.readUTF();
+            ImmutableList.Builder<MethodEntry> methods = ImmutableList.builder();
+            for (int methodCount = in.readInt(); methodCount > 0; methodCount--) {
+                String annotationType = in.readUTF();
+                String declaringClass = in.readUTF();
+                String name = in.readUTF();
+                String[] parameterTypes = new String[in.readInt()];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    parameterTypes[i] = in.readUTF();
+                }
+                methods.add(new MethodEntry(annotationType, declaringClass, name, parameterTypes));
+            }
+            return new ClassEntry(fingerprint, methods.build());
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(fingerprint);
+            out.writeInt(methods.size());
+            for (MethodEntry method : methods) {
+                out.writeUTF(method.annotationType);
+                out.writeUTF(method.declaringClass);
+                out.writeUTF(method.name);
+                out.writeInt(method.parameterTypes.length);
+                for (String parameterType : method.parameterTypes) {
+                    out.writeUTF(parameterType);
+                }
+            }
+        }
+
+        private ListMultimap<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>> resolve(
+                ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
+            ImmutableListMultimap.Builder<Class<? extends Annotation>, PersistenceAnnotationInspector.AnnotatedMethod<?>>
+                    resolved = ImmutableListMultimap.builder();
+            for (MethodEntry entry : methods) {
+                @SuppressWarnings("unchecked")
+                Class<? extends Annotation> annotationType
+                        = (Class<? extends Annotation>) ClassUtils.forName(entry.annotationType, classLoader);
+                Class<?>[] parameterTypes = new Class<?>[entry.parameterTypes.length];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    parameterTypes[i] = ClassUtils.forName(entry.parameterTypes[i], classLoader);
+                }
+                Method method = ClassUtils.forName(entry.declaringClass, classLoader)
+                                          .getDeclaredMethod(entry.name, parameterTypes);
+                Annotation annotation = method.getAnnotation(annotationType);
+                if (annotation == null) {
+                    throw new NoSuchMethodException(method + " is no longer annotated with " + annotationType);
+                }
+                resolved.put(annotationType, newAnnotatedMethod(method, annotation));
+            }
+            return resolved.build();
+        }
+
+        private static <A extends Annotation> PersistenceAnnotationInspector.AnnotatedMethod<A> newAnnotatedMethod(
+                Method method, A annotation) {
+            return new PersistenceAnnotationInspector.AnnotatedMethod<>(method, annotation);
+        }
+    }
+
+    /**
+     * One annotation on one method.
+     */
+    private static final class MethodEntry {
+        private final String annotationType;
+        private final String declaringClass;
+        private final String name;
+        private final String[] parameterTypes;
+
+        private MethodEntry(String annotationType, String declaringClass, String name, String[] parameterTypes) {
+            this.annotationType = annotationType;
+            this.declaringClass = declaringClass;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+        }
+
+        private MethodEntry(Class<? extends Annotation> annotationType, Method method) {
+            this.annotationType = annotationType.getName();
+            this.declaringClass = method.getDeclaringClass().getName();
+            this.name = method.getName();
+            this.parameterTypes = new String[method.getParameterTypes().length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                parameterTypes[i] = method.getParameterTypes()[i].getName();
+            }
+        }
+    }
+}
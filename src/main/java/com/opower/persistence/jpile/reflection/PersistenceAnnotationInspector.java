@@ -2,7 +2,6 @@ package com.opower.persistence.jpile.reflection;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import javax.persistence.Id;
@@ -11,7 +10,6 @@ import javax.persistence.SecondaryTables;
 import javax.persistence.Table;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import org.springframework.core.annotation.AnnotationUtils;
@@ -33,6 +31,43 @@ public class PersistenceAnnotationInspector {
     private static final String GETTER_PREFIX = "get";
     private static final String IS_PREFIX = "is";
 
+    // Built with this inspector, so that a CachedProxy caches the lookups that build it
+    private final ClassValue<EntityMetadata> entityMetadata = new ClassValue<EntityMetadata>() {
+        @Override
+        protected EntityMetadata computeValue(Class<?> type) {
+            return new EntityMetadata(PersistenceAnnotationInspector.this, type);
+        }
+    };
+
+    private volatile EntityMetadataSnapshot snapshot;
+
+    /**
+     * Returns the metadata of a class, which is looked up the first time and then kept for as long as the class is
+     * loaded. This method is final so that {@link CachedProxy} does not intercept it, reading the metadata of a known
+     * class costs about as much as a field read.
+     *
+     * @param aClass the entity class
+     * @return the metadata
+     */
+    public final EntityMetadata entityMetadata(Class<?> aClass) {
+        return entityMetadata.get(aClass);
+    }
+
+    /**
+     * Reads the annotated methods of classes from a snapshot when they have not changed, and adds the classes that are
+     * scanned to it. Only affects classes whose metadata has not been looked up yet. This method is final so that it sets
+     * the snapshot of a {@link CachedProxy} itself.
+     *
+     * @param snapshot the snapshot, or null to always scan
+     */
+    public final void useSnapshot(EntityMetadataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    final EntityMetadataSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Finds the annotation on a class or subclasses.
      * Uses <code>AnnotationUtils.findAnnotation()</code> from Spring framework. Searches all subclasses and class.
@@ -329,19 +364,7 @@ public class PersistenceAnnotationInspector {
      */
     public static Object getIdValue(PersistenceAnnotationInspector utils, Object o) {
         Preconditions.checkNotNull(o, "Cannot get id on a null object");
-        if (utils.hasTableAnnotation(o.getClass())) {
-            Method getter = utils.idGetter(o.getClass());
-            if (getter != null) {
-                try {
-                    return getter.invoke(o);
-                }
-                catch (InvocationTargetException | IllegalAccessException e) {
-                    throw Throwables.propagate(e);
-                }
-            }
-        }
-
-        return null;
+        return utils.entityMetadata(o.getClass()).getIdValue(o);
     }
 
     /**
@@ -357,23 +380,7 @@ public class PersistenceAnnotationInspector {
      */
     public static void setIdValue(PersistenceAnnotationInspector utils, Object entity, Object id) {
         Preconditions.checkNotNull(entity, "Cannot update id on a null object");
-        Method getter = utils.idGetter(entity.getClass());
-        Method setter = utils.setterFromGetter(getter);
-        Field field = utils.fieldFromGetter(getter);
-
-        try {
-            if (setter != null) {
-                ReflectionUtils.makeAccessible(setter);
-                setter.invoke(entity, id);
-            }
-            else if (field != null) {
-                ReflectionUtils.makeAccessible(field);
-                field.set(entity, id);
-            }
-        }
-        catch (InvocationTargetException | IllegalAccessException e) {
-            throw Throwables.propagate(e);
-        }
+        utils.entityMetadata(entity.getClass()).setIdValue(entity, id);
     }
 
     /**
@@ -1,7 +1,14 @@
 package com.opower.persistence.jpile.infile;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.io.CharStreams;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Instant;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -12,9 +19,17 @@ import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
 import java.util.Date;
+import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test cases for the InfileDataBuffer
@@ -73,6 +88,37 @@ public class InfileDataBufferTest {
         addRowAndAssertContents(expected);
     }
 
+    /**
+     * Verify that multi-byte characters (including surrogate pairs) are encoded as UTF-8 when mixed with characters
+     * needing escaping.
+     */
+    @Test
+    public void testAppendStringMultiByteWithEscaping() {
+        String input = "\u00e9t\u00e9\t\u304C\u3126\\\uD83D\uDE00\f";
+        String expected = "\u00e9t\u00e9\\\t\u304C\u3126\\\\\uD83D\uDE00\\\f";
+
+        this.infileDataBuffer.append(input);
+        addRowAndAssertContents(expected);
+    }
+
+    /**
+     * Verify that charsets other than UTF-8 are still encoded with the charset and escaped.
+     */
+    @Test
+    public void testAppendStringWithOtherCharset() throws IOException {
+        InfileDataBuffer latin1Buffer = new InfileDataBuffer(Charsets.ISO_8859_1);
+        latin1Buffer.append("caf\u00e9\t\\");
+        latin1Buffer.addRowToInfile();
+
+        assertEquals("caf\u00e9\\\t\\\\",
+                     CharStreams.toString(new InputStreamReader(latin1Buffer.asInputStream(), Charsets.ISO_8859_1)));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testAppendStringLargerThanRowBuffer() {
+        new InfileDataBuffer(Charsets.UTF_8, 16, 8).append("\u304C\u304C\u304C");
+    }
+
     @Test
     public void testAppendByte() {
         this.infileDataBuffer.append((byte) 65);
@@ -99,6 +145,26 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("C:\\\\");
     }
 
+    @Test
+    public void testAppendHex() {
+        byte[] bytes = {0, 9, 92, -1, 16};
+        this.infileDataBuffer.appendHex(bytes)
+                             .appendHex(ByteBuffer.wrap(bytes, 1, 3))
+                             .appendHex(new UUID(0x0123456789abcdefL, 0xfedcba9876543210L))
+                             .appendHex((byte[]) null);
+        addRowAndAssertContents("00095cff10\t095cff\t0123456789abcdeffedcba9876543210\t\\N");
+    }
+
+    @Test
+    public void testAppendRawBinary() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(2);
+        direct.put((byte) 'A').put((byte) '\n').flip();
+        this.infileDataBuffer.append(ByteBuffer.wrap(new byte[]{'x', '\t', 'y'}, 1, 2))
+                             .append(direct)
+                             .append(new UUID(0x4142434445464748L, 0x5c494a4b4c4d4e4fL));
+        addRowAndAssertContents("\\\ty\tA\\\n\tABCDEFGH\\\\IJKLMNO");
+    }
+
     /**
      * Attempt to insert a row of empty data in between two rows of good data. We should not
      * have a row in the infile buffer for the empty row in the middle.
@@ -120,6 +186,18 @@ public class InfileDataBufferTest {
         addRowAndAssertContents(contents1 + "\n" + contents2);
     }
 
+    @Test
+    public void testAppendLong() {
+        this.infileDataBuffer.appendLong(0L).appendLong(-42L).appendLong(Long.MAX_VALUE).appendLong(Long.MIN_VALUE);
+        addRowAndAssertContents("0\t-42\t" + Long.MAX_VALUE + "\t" + Long.MIN_VALUE);
+    }
+
+    @Test
+    public void testAppendIntAndBoolean() {
+        this.infileDataBuffer.appendInt(Integer.MIN_VALUE).appendInt(1000000).appendBoolean(true).append(Boolean.FALSE);
+        addRowAndAssertContents(Integer.MIN_VALUE + "\t1000000\t1\t0");
+    }
+
     @Test
     public void testAppendNull() throws Exception {
         this.infileDataBuffer.appendNull();
@@ -155,6 +233,50 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("\\N");
     }
 
+    @Test
+    public void testDateWithFractionalSeconds() {
+        Timestamp timestamp = new Timestamp(TEST_DATE.getTime());
+        timestamp.setNanos(123456789);
+        this.infileDataBuffer.append(timestamp, TemporalType.TIMESTAMP, 6)
+                             .append(new Date(TEST_DATE.getTime() + 42), TemporalType.TIMESTAMP, 3)
+                             .append(timestamp, TemporalType.TIME, 1)
+                             .append(timestamp, TemporalType.DATE, 6);
+        addRowAndAssertContents(TIMESTAMP_STRING + ".123456\t" + TIMESTAMP_STRING + ".042\t" + TIME_STRING + ".1\t"
+                                + DATE_STRING);
+    }
+
+    /**
+     * Verify that the cached date is not reused for a different day.
+     */
+    @Test
+    public void testDatesOnDifferentDays() {
+        Date nextDay = new Date(100, 0, 11, 23, 59, 59);
+        Date sameDay = new Date(100, 0, 11, 0, 0, 0);
+        this.infileDataBuffer.append(TEST_DATE, TemporalType.TIMESTAMP, 0);
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow().append(nextDay, TemporalType.TIMESTAMP, 0).append(sameDay, TemporalType.DATE, 0);
+        addRowAndAssertContents(TIMESTAMP_STRING + "\n2000-01-11 23:59:59\t2000-01-11");
+    }
+
+    @Test
+    public void testJodaTypes() {
+        this.infileDataBuffer.append(new LocalDate(1999, 12, 31))
+                             .append(new LocalDateTime(2016, 2, 29, 13, 5, 9, 70), TemporalType.TIMESTAMP, 2)
+                             .append(new DateTime(1969, 12, 31, 23, 59, 59, 999, DateTimeZone.UTC), TemporalType.TIMESTAMP, 3)
+                             .append(new Instant(0), TemporalType.DATE, 0)
+                             .append((LocalDate) null)
+                             .append(new LocalDateTime(2016, 2, 29, 13, 5, 9, 70), TemporalType.DATE, 2)
+                             .append(new LocalDateTime(2016, 2, 29, 13, 5, 9, 70), TemporalType.TIME, 2);
+        addRowAndAssertContents("1999-12-31\t2016-02-29 13:05:09.07\t1969-12-31 23:59:59.999\t1970-01-01\t\\N\t2016-02-29"
+                                + "\t13:05:09.07");
+    }
+
+    @Test
+    public void testDateWithYearOutsideFourDigits() {
+        this.infileDataBuffer.append(new DateTime(10000, 1, 1, 0, 0, DateTimeZone.UTC), TemporalType.DATE, 0);
+        addRowAndAssertContents("10000-01-01");
+    }
+
     @Test
     public void testFloatWithPrecisionAndScale1() {
         this.infileDataBuffer.append(84009.469f, 12, 3);
@@ -173,10 +295,185 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("16725.617");
     }
 
+    @Test
+    public void testFloatWithPrecisionAndScaleStripsTrailingZeros() {
+        this.infileDataBuffer.append(-0.5f, 12, 3).append(0.0001f, 12, 3).append(2f, 12, 3);
+        addRowAndAssertContents("-0.5\t0\t2");
+    }
+
+    @Test
+    public void testScaleEqualToPrecision() {
+        this.infileDataBuffer.append(0.125, 3, 3).append(new BigDecimal("0.25"), 2, 2);
+        addRowAndAssertContents("0.125\t0.25");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScaleLargerThanPrecision() {
+        this.infileDataBuffer.append(0.125, 2, 3);
+    }
+
+    @Test
+    public void testDoubleWithPrecisionAndScale() {
+        // 0.125 is an exact tie and 1.015 is stored as 1.01499999999999990230037...
+        this.infileDataBuffer.append(0.125, 12, 2).append(1.015, 12, 2).append(-1234.5678, 12, 3).append(1e30, 40, 2);
+        addRowAndAssertContents("0.12\t1.01\t-1234.568\t1000000000000000019884624838656");
+    }
+
+    @Test
+    public void testNullDecimals() {
+        this.infileDataBuffer.append((Double) null, 12, 3).append((BigDecimal) null, 12, 3).appendDecimal(null);
+        addRowAndAssertContents("\\N\t\\N\t\\N");
+    }
+
+    @Test
+    public void testBigDecimal() {
+        this.infileDataBuffer.appendDecimal(new BigDecimal("-19.990"))
+                             .appendDecimal(new BigDecimal("1E+3"))
+                             .append(new BigDecimal("2.675"), 10, 2)
+                             .appendDecimal(new BigDecimal("12345678901234567890.5"));
+        addRowAndAssertContents("-19.990\t1000\t2.68\t12345678901234567890.5");
+    }
+
+    @Test
+    public void testBigDecimalWithPrecisionAndScaleStripsTrailingZeros() {
+        this.infileDataBuffer.append(new BigDecimal("-0.500"), 12, 3)
+                             .append(new BigDecimal("0.0001"), 12, 3)
+                             .append(new BigDecimal("200.000"), 12, 3)
+                             .append(new BigDecimal("1.5"), 12, 3);
+        addRowAndAssertContents("-0.5\t0\t200\t1.5");
+    }
+
+    @Test
+    public void testShortestDoubleAndFloat() {
+        this.infileDataBuffer.appendDouble(0.1).appendDouble(-3.0).appendDouble(0.1 + 0.2).appendFloat(0.1f)
+                             .appendFloat(16725.617f).appendDouble(Double.NaN);
+        addRowAndAssertContents("0.1\t-3\t0.30000000000000004\t0.1\t16725.617\tNaN");
+    }
+
+    @Test
+    public void testRowsWrittenInPlace() {
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 64);
+        this.infileDataBuffer.newRow().append("a").appendLong(1L);
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow();
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow().append("b").appendNull();
+        addRowAndAssertContents("a\t1\nb\t\\N");
+    }
+
+    @Test
+    public void testRollbackRowWrittenInPlace() {
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 64);
+        this.infileDataBuffer.newRow().append("first");
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow().append("second");
+        this.infileDataBuffer.rollbackRow();
+        addRowAndAssertContents("first");
+    }
+
+    @Test
+    public void testRowWrittenInPlaceOverflowsInfile() {
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 8);
+        this.infileDataBuffer.newRow().append("abcd");
+        this.infileDataBuffer.addRowToInfile();
+        try {
+            this.infileDataBuffer.newRow().append("efgh");
+            fail("Expected the row to overflow the infile buffer");
+        }
+        catch (BufferOverflowException e) {
+            this.infileDataBuffer.rollbackRow();
+        }
+        addRowAndAssertContents("abcd");
+    }
+
+    @Test
+    public void testSegmentedRowsWrittenInPlace() {
+        InfileSegmentPool pool = new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, false);
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 3 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+        String expected = addRows(150);
+        assertEquals(expected, readInfile());
+        this.infileDataBuffer.clear();
+        assertEquals(2, pool.getFreeSegments());
+        assertEquals(0, this.infileDataBuffer.getInfileSize());
+    }
+
+    @Test
+    public void testDirectSegmentsStageRows() {
+        InfileSegmentPool pool = new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, true);
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 3 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+        assertFalse(this.infileDataBuffer.isWritingRowsInPlace());
+        String expected = addRows(150);
+        assertEquals(expected, readInfile());
+    }
+
+    @Test
+    public void testSegmentedInfileIsFull() {
+        InfileSegmentPool pool = new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, false);
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+        assertFalse(this.infileDataBuffer.nextSegment());
+        this.infileDataBuffer.newRow().append("a");
+        this.infileDataBuffer.addRowToInfile();
+        assertFalse(this.infileDataBuffer.nextSegment());
+    }
+
+    @Test
+    public void testSegmentPoolBudget() {
+        InfileSegmentPool pool = new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, false,
+                                                       2 * InfileSegmentPool.MIN_SEGMENT_SIZE);
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 4 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+        InfileDataBuffer other = new InfileDataBuffer(Charsets.UTF_8, 4 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+        assertTrue(pool.isBudgetExhausted());
+        try {
+            new InfileDataBuffer(Charsets.UTF_8, 4 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool);
+            fail("Expected the budget to be used up");
+        }
+        catch (IllegalStateException e) {
+            assertEquals(2 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool.getBytesInUse());
+        }
+
+        this.infileDataBuffer.newRow().append("a");
+        this.infileDataBuffer.addRowToInfile();
+        assertFalse(this.infileDataBuffer.nextSegment());
+
+        other.release();
+        assertFalse(pool.isBudgetExhausted());
+        assertTrue(this.infileDataBuffer.nextSegment());
+        assertEquals(2 * InfileSegmentPool.MIN_SEGMENT_SIZE, pool.getBytesInUse());
+        this.infileDataBuffer.clear();
+        assertEquals(InfileSegmentPool.MIN_SEGMENT_SIZE, pool.getBytesInUse());
+    }
+
+    /**
+     * Adds rows of about 1kB, moving on to the next segment when a row written in place does not fit.
+     *
+     * @return the expected contents of the infile
+     */
+    private String addRows(int count) {
+        StringBuilder expected = new StringBuilder();
+        String filler = Strings.repeat("x", 1000);
+        for (int i = 0; i < count; i++) {
+            try {
+                this.infileDataBuffer.newRow().appendInt(i).append(filler);
+            }
+            catch (BufferOverflowException e) {
+                this.infileDataBuffer.rollbackRow();
+                assertTrue(this.infileDataBuffer.nextSegment());
+                this.infileDataBuffer.newRow().appendInt(i).append(filler);
+            }
+            assertTrue(this.infileDataBuffer.addRowToInfile());
+            expected.append(i == 0 ? "" : "\n").append(i).append('\t').append(filler);
+        }
+        return expected.toString();
+    }
+
     private void addRowAndAssertContents(String expected) {
+        this.infileDataBuffer.addRowToInfile();
+        assertEquals(expected, readInfile());
+    }
+
+    private String readInfile() {
         try {
-            this.infileDataBuffer.addRowToInfile();
-            assertEquals(expected, CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream())));
+            return CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream(), Charsets.UTF_8));
         }
         catch (IOException ex) {
             throw Throwables.propagate(ex);
@@ -0,0 +1,79 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the InfilePipe
+ *
+ * @author amir.raminfar
+ */
+public class InfilePipeTest {
+
+    @Test(timeout = 10000)
+    public void testReadWhileWriting() throws Exception {
+        final InfilePipe pipe = new InfilePipe(1024, 2);
+        byte[] expected = new byte[256 * 1024];
+        new Random(42).nextBytes(expected);
+
+        Future<byte[]> read = read(pipe);
+        for (int i = 0; i < expected.length; i += 1000) {
+            pipe.write(ByteBuffer.wrap(expected, i, Math.min(1000, expected.length - i)));
+        }
+        pipe.close();
+
+        assertArrayEquals(expected, read.get());
+        assertEquals(expected.length, pipe.getBytesWritten());
+    }
+
+    @Test(timeout = 10000)
+    public void testDrainInfileIntoPipe() throws Exception {
+        InfilePipe pipe = new InfilePipe(1024, 2);
+        Future<byte[]> read = read(pipe);
+        InfileDataBuffer infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 1024);
+        infileDataBuffer.newRow().append("a").appendInt(1);
+        infileDataBuffer.addRowToInfile();
+        infileDataBuffer.drainTo(pipe);
+        infileDataBuffer.newRow().append("b").appendInt(2);
+        infileDataBuffer.addRowToInfile();
+        infileDataBuffer.drainTo(pipe);
+        pipe.close();
+
+        assertEquals("a\t1\nb\t2", new String(read.get(), Charsets.UTF_8));
+        assertEquals(0, infileDataBuffer.getInfileSize());
+    }
+
+    @Test(timeout = 10000, expected = IllegalStateException.class)
+    public void testWriteFailsAfterReaderGivesUp() throws IOException {
+        InfilePipe pipe = new InfilePipe(16, 2);
+        pipe.getInputStream().close();
+        pipe.write(ByteBuffer.allocate(1024));
+    }
+
+    private static Future<byte[]> read(final InfilePipe pipe) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return ByteStreams.toByteArray(pipe.getInputStream());
+                }
+            });
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
+import com.google.common.io.CharStreams;
+import com.opower.persistence.jpile.infile.InfileSegmentPool;
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import com.opower.persistence.jpile.sample.Product;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.sql.DataSource;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that {@link ConcurrentInfileObjectLoader} writes the rows of many threads with unique ids, without a database.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class ConcurrentInfileObjectLoaderTest {
+    private static final long MAX_ID = 10L;
+    private static final int THREADS = 4;
+    private static final int CUSTOMERS_PER_THREAD = 25;
+
+    private DataSource dataSource = mock(DataSource.class);
+    // The number of rows written to each table
+    private Multiset<String> rows = HashMultiset.create();
+    // Writing the contact table waits for releaseContacts while blockContacts is set
+    private volatile boolean blockContacts;
+    private CountDownLatch writingContacts = new CountDownLatch(1);
+    private CountDownLatch releaseContacts = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        // One connection to create loaders with and two for the writers
+        Connection setupConnection = newConnection();
+        Connection firstWriter = newConnection();
+        Connection secondWriter = newConnection();
+        when(dataSource.getConnection()).thenReturn(setupConnection, firstWriter, secondWriter);
+    }
+
+    @Test
+    public void testPersistFromManyThreads() throws Exception {
+        assertPersistsFromManyThreads(new InfileLoaderFactory(), CUSTOMERS_PER_THREAD);
+    }
+
+    @Test
+    public void testPersistFromManyThreadsWithADirectSegmentPool() throws Exception {
+        // Direct segments stage rows outside the infile, and every thread hands over several full product buffers
+        InfileLoaderFactory factory
+                = new InfileLoaderFactory(new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, true));
+        factory.infileBufferSize = InfileSegmentPool.MIN_SEGMENT_SIZE;
+        assertPersistsFromManyThreads(factory, 40 * CUSTOMERS_PER_THREAD);
+    }
+
+    /**
+     * Persists customers from {@link #THREADS} threads and checks their ids and the rows written.
+     */
+    private void assertPersistsFromManyThreads(InfileLoaderFactory factory, final int customersPerThread)
+            throws Exception {
+        final ConcurrentInfileObjectLoader objectLoader = new ConcurrentInfileObjectLoader(factory, dataSource, 2);
+        ExecutorService producers = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<Customer>>> results = newArrayList();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(producers.submit(new Callable<List<Customer>>() {
+                @Override
+                public List<Customer> call() {
+                    List<Customer> customers = newArrayList();
+                    for (int j = 0; j < customersPerThread; j++) {
+                        customers.add(ObjectFactory.newCustomer());
+                    }
+                    objectLoader.persist(customers);
+                    objectLoader.flush();
+                    return customers;
+                }
+            }));
+        }
+        Set<Long> ids = newHashSet();
+        for (Future<List<Customer>> result : results) {
+            for (Customer customer : result.get()) {
+                ids.add(customer.getId());
+            }
+        }
+        producers.shutdown();
+        objectLoader.close();
+
+        int customers = THREADS * customersPerThread;
+        assertEquals(customers, ids.size());
+        for (long id = MAX_ID + 1; id <= MAX_ID + customers; id++) {
+            assertTrue(ids.contains(id));
+        }
+        assertEquals(customers, rows.count("customer"));
+        assertEquals(customers * 4, rows.count("product"));
+        assertEquals(customers, rows.count("contact_phone"));
+    }
+
+    @Test
+    public void testFlushOnlyWaitsForTheRowsOfItsThread() throws Exception {
+        final ConcurrentInfileObjectLoader objectLoader = new ConcurrentInfileObjectLoader(new InfileLoaderFactory(),
+                                                                                           dataSource, 2);
+        blockContacts = true;
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        Future<?> blockedFlush = threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                objectLoader.persist(ObjectFactory.newCustomer());
+                objectLoader.flush();
+            }
+        });
+        assertTrue(writingContacts.await(10, TimeUnit.SECONDS));
+
+        // The other writer writes the rows of this thread while the contacts of the first thread are not written
+        Future<?> flush = threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                Customer customer = new Customer();
+                customer.setProducts(ImmutableList.<Product>of());
+                customer.setContacts(ImmutableList.<Contact>of());
+                objectLoader.persist(customer);
+                objectLoader.flush();
+            }
+        });
+        flush.get(10, TimeUnit.SECONDS);
+        assertFalse(blockedFlush.isDone());
+
+        releaseContacts.countDown();
+        blockedFlush.get(10, TimeUnit.SECONDS);
+        threads.shutdown();
+        objectLoader.close();
+        assertEquals(2, rows.count("customer"));
+    }
+
+    /**
+     * Creates a connection that counts the rows of each LOAD DATA statement by table.
+     */
+    private Connection newConnection() throws Exception {
+        Connection connection = mock(Connection.class);
+        com.mysql.jdbc.Statement statement = mock(com.mysql.jdbc.Statement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.first()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn(MAX_ID);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(connection.createStatement()).thenReturn(statement);
+
+        final AtomicReference<InputStream> infile = new AtomicReference<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                infile.set((InputStream) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(statement).setLocalInfileInputStream(any(InputStream.class));
+        when(statement.execute(startsWith("LOAD DATA"))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Exception {
+                String sql = (String) invocation.getArguments()[0];
+                String table = sql.substring(sql.indexOf("INTO TABLE ") + "INTO TABLE ".length()).split(" ")[0];
+                if (blockContacts && "contact".equals(table)) {
+                    writingContacts.countDown();
+                    releaseContacts.await();
+                }
+                String content = CharStreams.toString(new InputStreamReader(infile.get(), Charsets.UTF_8));
+                int count = Iterables.size(Splitter.on('\n').omitEmptyStrings().split(content));
+                synchronized (rows) {
+                    rows.add(table, count);
+                }
+                return false;
+            }
+        });
+        return connection;
+    }
+}
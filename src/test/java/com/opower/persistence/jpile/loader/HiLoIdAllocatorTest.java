@@ -0,0 +1,104 @@
+package com.opower.persistence.jpile.loader;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that {@link HiLoIdAllocator} hands out blocks of ids with one reservation per block.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HiLoIdAllocatorTest {
+    private static final int BLOCK_SIZE = 100;
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private Connection loaderConnection;
+
+    @Mock
+    private Statement statement;
+
+    @Mock
+    private ResultSet resultSet;
+
+    private HiLoIdAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(statement);
+        when(loaderConnection.getCatalog()).thenReturn("app");
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(statement.executeUpdate(startsWith("update"))).thenReturn(1);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(resultSet.first()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn((long) BLOCK_SIZE, 2L * BLOCK_SIZE);
+        allocator = new HiLoIdAllocator(dataSource, HiLoIdAllocator.DEFAULT_SEQUENCE_TABLE, BLOCK_SIZE);
+    }
+
+    @Test
+    public void testIdsAreReservedInBlocks() throws Exception {
+        IdAllocator.Sequence sequence = allocator.forTable(loaderConnection, "customer", "id");
+        assertSame(sequence, allocator.forTable(loaderConnection, "customer", "id"));
+
+        for (long id = 1; id <= BLOCK_SIZE; id++) {
+            assertEquals(id, sequence.next());
+        }
+        verify(statement, times(1)).executeQuery(anyString());
+
+        assertEquals(BLOCK_SIZE + 1, sequence.next());
+        verify(statement, times(2)).executeQuery(anyString());
+        verify(connection, times(2)).close();
+    }
+
+    @Test
+    public void testSequenceRowIsCreated() throws Exception {
+        when(statement.executeUpdate(startsWith("update"))).thenReturn(0, 1);
+
+        assertEquals(1, allocator.forTable(loaderConnection, "customer", "id").next());
+        verify(statement).executeUpdate(
+                "insert ignore into jpile_sequence (table_name, last_id) select 'app.customer', coalesce(max(id), 0) "
+                + "from app.customer");
+    }
+
+    @Test
+    public void testSchemasHaveSeparateSequences() throws Exception {
+        Connection otherConnection = mock(Connection.class);
+        when(otherConnection.getCatalog()).thenReturn("archive");
+
+        IdAllocator.Sequence sequence = allocator.forTable(loaderConnection, "customer", "id");
+        IdAllocator.Sequence otherSequence = allocator.forTable(otherConnection, "customer", "id");
+        assertNotSame(sequence, otherSequence);
+
+        sequence.next();
+        otherSequence.next();
+        verify(statement).executeUpdate(contains("where table_name = 'app.customer'"));
+        verify(statement).executeUpdate(contains("where table_name = 'archive.customer'"));
+    }
+}
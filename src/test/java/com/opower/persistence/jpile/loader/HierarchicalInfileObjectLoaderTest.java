@@ -0,0 +1,428 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharStreams;
+import com.opower.persistence.jpile.infile.InfileSegmentPool;
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Supplier;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the order in which {@link HierarchicalInfileObjectLoader} walks an object graph, without a database.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HierarchicalInfileObjectLoaderTest {
+    private static final long MAX_ID = 10L;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private com.mysql.jdbc.Statement statement;
+
+    private HierarchicalInfileObjectLoader objectLoader = new HierarchicalInfileObjectLoader();
+    private List<Object> saved = newArrayList();
+    private List<Object> written = newArrayList();
+    // The rows written by each LOAD DATA statement
+    private Map<String, List<String>> rows = newHashMap();
+    private InputStream infile;
+
+    @Before
+    public void setUp() throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.first()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn(MAX_ID);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(connection.createStatement()).thenReturn(statement);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                infile = (InputStream) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(statement).setLocalInfileInputStream(any(InputStream.class));
+        when(statement.execute(startsWith("LOAD DATA"))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Exception {
+                String sql = (String) invocation.getArguments()[0];
+                if (!rows.containsKey(sql)) {
+                    rows.put(sql, new ArrayList<String>());
+                }
+                String content = CharStreams.toString(new InputStreamReader(infile, Charsets.UTF_8));
+                for (String row : Splitter.on('\n').omitEmptyStrings().split(content)) {
+                    rows.get(sql).add(row);
+                }
+                return false;
+            }
+        });
+        objectLoader.setConnection(connection);
+        objectLoader.setEventCallback(new HierarchicalInfileObjectLoader.CallBack() {
+            @Override
+            public void onBeforeSave(Object o) {
+                saved.add(o);
+            }
+
+            @Override
+            public void onAfterSave(Object o) {
+                written.add(o);
+            }
+        });
+    }
+
+    @Test
+    public void testVisitOrder() {
+        Customer customer = ObjectFactory.newCustomer();
+        objectLoader.persist(customer);
+
+        List<Object> expected = newArrayList();
+        expected.add(customer);
+        for (Product product : customer.getProducts()) {
+            if (expected.size() == 1) {
+                expected.add(product.getSupplier());
+            }
+            expected.add(product);
+        }
+        expected.addAll(customer.getContacts());
+        assertEquals(expected, saved);
+    }
+
+    @Test
+    public void testIdsArePropagated() {
+        Customer customer = ObjectFactory.newCustomer();
+        objectLoader.persist(customer);
+
+        assertEquals(MAX_ID + 1, customer.getId().longValue());
+        for (Product product : customer.getProducts()) {
+            assertSame(customer, product.getCustomer());
+        }
+        for (Contact contact : customer.getContacts()) {
+            assertSame(customer, contact.getContactPK().getCustomer());
+        }
+    }
+
+    @Test
+    public void testSharedEntitiesAreSavedOncePerRoot() {
+        Customer customer = ObjectFactory.newCustomer();
+        objectLoader.persist(customer, customer);
+
+        assertEquals(2 * (1 + 1 + customer.getProducts().size() + customer.getContacts().size()), saved.size());
+    }
+
+    @Test
+    public void testCallbacksCanPersist() {
+        final Customer outer = ObjectFactory.newCustomer();
+        final Customer inner = ObjectFactory.newCustomer();
+        objectLoader.setEventCallback(new HierarchicalInfileObjectLoader.CallBack() {
+            @Override
+            public void onBeforeSave(Object o) {
+                saved.add(o);
+                if (o == outer) {
+                    objectLoader.persist(inner);
+                }
+            }
+
+            @Override
+            public void onAfterSave(Object o) {
+            }
+        });
+        objectLoader.persist(outer);
+
+        int entities = 1 + 1 + outer.getProducts().size() + outer.getContacts().size();
+        assertEquals(2 * entities, saved.size());
+        assertSame(outer, saved.get(0));
+        assertSame(inner, saved.get(1));
+        assertEquals(1, Collections.frequency(saved, outer.getProducts().get(0)));
+        assertEquals(1, Collections.frequency(saved, outer.getContacts().get(0)));
+    }
+
+    @Test
+    public void testWalkIsResetAfterAFailure() {
+        final Customer customer = ObjectFactory.newCustomer();
+        objectLoader.setEventCallback(new HierarchicalInfileObjectLoader.CallBack() {
+            private boolean failed;
+
+            @Override
+            public void onBeforeSave(Object o) {
+                saved.add(o);
+                if (o == customer.getProducts().get(0) && !failed) {
+                    failed = true;
+                    throw new IllegalStateException("Failing once");
+                }
+            }
+
+            @Override
+            public void onAfterSave(Object o) {
+            }
+        });
+        try {
+            objectLoader.persist(customer);
+            fail("The callback should fail");
+        }
+        catch (IllegalStateException e) {
+            saved.clear();
+        }
+
+        // Entities of the failed walk are saved again on the reused stack
+        objectLoader.persist(customer);
+        assertSame(customer, saved.get(0));
+        assertEquals(1 + 1 + customer.getProducts().size() + customer.getContacts().size(), saved.size());
+    }
+
+    @Test
+    public void testIgnoredClassesAreSkipped() {
+        Customer customer = ObjectFactory.newCustomer();
+        objectLoader.persist(customer);
+        saved.clear();
+
+        objectLoader.setClassesToIgnore(ImmutableSet.<Class>of(Supplier.class));
+        objectLoader.persist(customer);
+
+        assertFalse(saved.contains(customer.getProducts().get(0).getSupplier()));
+        assertEquals(1 + customer.getProducts().size() + customer.getContacts().size(), saved.size());
+    }
+
+    @Test
+    public void testSavedReferencesAreSkipped() {
+        Customer first = ObjectFactory.newCustomer();
+        Supplier supplier = first.getProducts().get(0).getSupplier();
+        Customer second = new Customer();
+        second.setContacts(ImmutableList.<Contact>of());
+        second.setProducts(ImmutableList.of(ObjectFactory.newProduct(second, supplier)));
+
+        objectLoader.persist(first);
+        objectLoader.persist(second);
+        objectLoader.flush();
+        assertEquals(2, Collections.frequency(saved, supplier));
+        assertEquals(2, tableRows("supplier").size());
+
+        saved.clear();
+        rows.clear();
+        objectLoader.setReferenceCacheSize(100);
+        objectLoader.persist(first);
+        Long cachedId = supplier.getId();
+        objectLoader.persist(second);
+        objectLoader.flush();
+        assertEquals(1, Collections.frequency(saved, supplier));
+        // The second persist neither wrote the supplier again nor gave it a new id
+        assertEquals(1, tableRows("supplier").size());
+        assertEquals(cachedId, supplier.getId());
+    }
+
+    /**
+     * @return the rows written to a table by all LOAD DATA statements
+     */
+    private List<String> tableRows(String table) {
+        List<String> tableRows = newArrayList();
+        for (Map.Entry<String, List<String>> statementRows : rows.entrySet()) {
+            if (statementRows.getKey().contains(" " + table + " ")) {
+                tableRows.addAll(statementRows.getValue());
+            }
+        }
+        return tableRows;
+    }
+
+    @Test
+    public void testClassBatches() {
+        List<Customer> customers = ImmutableList.of(ObjectFactory.newCustomer(), ObjectFactory.newCustomer(),
+                                                    ObjectFactory.newCustomer());
+        objectLoader.setClassBatchSize(2);
+        objectLoader.persist(customers);
+
+        assertEquals(MAX_ID + 1, customers.get(0).getId().longValue());
+        assertEquals(MAX_ID + 2, customers.get(1).getId().longValue());
+        assertEquals(MAX_ID + 3, customers.get(2).getId().longValue());
+        for (Customer customer : customers) {
+            for (Product product : customer.getProducts()) {
+                assertSame(customer, product.getCustomer());
+                assertNotNull(product.getId());
+            }
+        }
+        // Every entity was walked before the first row of the batch was written
+        int firstBatch = 2 * (2 + customers.get(0).getProducts().size() + customers.get(0).getContacts().size());
+        assertEquals(3 * firstBatch / 2, saved.size());
+        assertEquals(firstBatch, written.indexOf(customers.get(2)));
+        assertEquals(saved.size(), written.size());
+    }
+
+    @Test
+    public void testPersistAllWritesTheRowsOfASequentialRun() {
+        objectLoader.persist(newCustomers(50));
+        objectLoader.flush();
+        Map<String, List<String>> sequentialRows = newHashMap(rows);
+        rows.clear();
+
+        assertEquals(5, sequentialRows.size());
+        assertEquals(sequentialRows, persistAllRows(3));
+    }
+
+    @Test
+    public void testPersistAllWithDefaultChunkSize() throws Exception {
+        objectLoader.persist(newCustomers(50));
+        objectLoader.flush();
+        Map<String, List<String>> sequentialRows = newHashMap(rows);
+        rows.clear();
+
+        assertEquals(sequentialRows, persistAllRows(0));
+        // Chunks of 50 / (2 * 4) roots, each written with statements of its own
+        verify(statement, atLeast(50 / 6)).execute(startsWith("LOAD DATA LOCAL INFILE 'stream' INTO TABLE customer "));
+    }
+
+    @Test
+    public void testPersistAllWithADirectSegmentPool() throws Exception {
+        objectLoader.persist(newCustomers(1000));
+        objectLoader.flush();
+        Map<String, List<String>> sequentialRows = newHashMap(rows);
+        rows.clear();
+
+        // Direct segments stage rows outside the infile, and the products of each chunk fill several buffers
+        HierarchicalInfileObjectLoader parallelLoader = new HierarchicalInfileObjectLoader();
+        parallelLoader.setConnection(connection);
+        parallelLoader.setSegmentPool(new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, true));
+        parallelLoader.infileBufferSize = InfileSegmentPool.MIN_SEGMENT_SIZE;
+        parallelLoader.setClassBatchSize(500);
+        parallelLoader.persistAll(newCustomers(1000), 2);
+        parallelLoader.flush();
+
+        assertEquals(sequentialRows, rows);
+        verify(statement, atLeast(4)).execute(startsWith("LOAD DATA LOCAL INFILE 'stream' INTO TABLE product "));
+    }
+
+    @Test
+    public void testPersistAllReleasesTheBuffersOfChunksAfterAFailure() {
+        InfileSegmentPool pool = new InfileSegmentPool();
+        objectLoader.setSegmentPool(pool);
+        objectLoader.setClassBatchSize(3);
+        // Suppliers are not saved, so their ids have to be set for the products to be encoded
+        objectLoader.setClassesToIgnore(ImmutableSet.<Class>of(Supplier.class));
+        objectLoader.persistAll(withSupplierIds(newCustomers(50)), 4);
+        long bytesInUse = pool.getBytesInUse();
+
+        List<Customer> customers = withSupplierIds(newCustomers(50));
+        customers.get(20).getProducts().get(0).getSupplier().setId(null);
+        try {
+            objectLoader.persistAll(customers, 4);
+            fail("Encoding a product without a supplier id should fail");
+        }
+        catch (IllegalStateException e) {
+            // Chunks encoded after the failing one gave their buffers back
+            assertEquals(bytesInUse, pool.getBytesInUse());
+        }
+    }
+
+    /**
+     * Persists 50 customers with {@link HierarchicalInfileObjectLoader#persistAll(java.util.Collection, int)} on 4 threads.
+     *
+     * @param classBatchSize the roots per chunk, or 0 for the default
+     * @return the rows written by each LOAD DATA statement
+     */
+    private Map<String, List<String>> persistAllRows(int classBatchSize) {
+        HierarchicalInfileObjectLoader parallelLoader = new HierarchicalInfileObjectLoader();
+        parallelLoader.setConnection(connection);
+        if (classBatchSize > 0) {
+            parallelLoader.setClassBatchSize(classBatchSize);
+        }
+        parallelLoader.persistAll(newCustomers(50), 4);
+        parallelLoader.flush();
+        return rows;
+    }
+
+    private static List<Customer> withSupplierIds(List<Customer> customers) {
+        long id = 1;
+        for (Customer customer : customers) {
+            customer.getProducts().get(0).getSupplier().setId(id++);
+        }
+        return customers;
+    }
+
+    @Test
+    public void testStreamingWritesTheRowsOfABlockingRun() throws Exception {
+        objectLoader.persist(newCustomers(5000));
+        objectLoader.flush();
+        Map<String, List<String>> blockingRows = newHashMap(rows);
+        rows.clear();
+
+        HierarchicalInfileObjectLoader streamingLoader = new HierarchicalInfileObjectLoader();
+        streamingLoader.setConnection(connection);
+        streamingLoader.setStreaming(1000, 0);
+        streamingLoader.persist(newCustomers(5000));
+        streamingLoader.flush();
+
+        assertEquals(blockingRows, rows);
+        // Statements were completed at their row limit or when another table needed the connection
+        verify(statement, atLeast(2 * blockingRows.size() + 20)).execute(startsWith("LOAD DATA"));
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        int customers = 5000;
+        // One segment for each of the five tables and one to grow with
+        objectLoader.setMemoryBudget(6 * InfileSegmentPool.DEFAULT_SEGMENT_SIZE);
+        objectLoader.persist(newCustomers(customers));
+        objectLoader.flush();
+
+        assertEquals(4 * customers, tableRows("product").size());
+        // Tables were flushed to stay within the budget before the final flush
+        verify(statement, atLeast(rows.size() + 1)).execute(startsWith("LOAD DATA"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMemoryBudgetDoesNotReplaceASegmentPool() {
+        objectLoader.setSegmentPool(new InfileSegmentPool());
+        objectLoader.setMemoryBudget(6 * InfileSegmentPool.DEFAULT_SEGMENT_SIZE);
+    }
+
+    private static List<Customer> newCustomers(int count) {
+        Date date = new Date(0);
+        List<Customer> customers = newArrayList();
+        for (int i = 0; i < count; i++) {
+            Customer customer = ObjectFactory.newCustomer();
+            customer.setLastSeenOn(date);
+            for (Product product : customer.getProducts()) {
+                product.setPurchasedOn(date);
+            }
+            customers.add(customer);
+        }
+        return customers;
+    }
+}
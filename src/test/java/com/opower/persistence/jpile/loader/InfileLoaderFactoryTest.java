@@ -0,0 +1,116 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that sessions of a factory share templates and ids.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InfileLoaderFactoryTest {
+    private static final long MAX_ID = 123L;
+    private static final long OTHER_MAX_ID = 1000L;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private Statement statement;
+
+    private InfileLoaderFactory factory = new InfileLoaderFactory();
+
+    @Before
+    public void setUp() throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.first()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn(MAX_ID);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(connection.createStatement()).thenReturn(statement);
+        when(connection.getCatalog()).thenReturn("first");
+    }
+
+    @Test
+    public void testLoadersAreCopiedFromTemplates() {
+        SingleInfileObjectLoader<Object> first = createLoaders(Customer.class).get(0);
+        SingleInfileObjectLoader<Object> second = createLoaders(Customer.class).get(0);
+
+        assertNotSame(first, second);
+        assertNotSame(first.infileDataBuffer, second.infileDataBuffer);
+        assertSame(connection, second.connection);
+        assertEquals(first.loadInfileSql, second.loadInfileSql);
+        assertEquals(first.mappings, second.mappings);
+        assertSame(first.getRowEncoder().getClass(), second.getRowEncoder().getClass());
+        assertEquals(2, createLoaders(Contact.class).size());
+    }
+
+    @Test
+    public void testIdsAreSharedBetweenSessions() throws Exception {
+        SingleInfileObjectLoader<Object> first = createLoaders(Customer.class).get(0);
+        SingleInfileObjectLoader<Object> second = createLoaders(Customer.class).get(0);
+        Customer firstCustomer = ObjectFactory.newCustomer();
+        Customer secondCustomer = ObjectFactory.newCustomer();
+        first.add(firstCustomer);
+        second.add(secondCustomer);
+
+        assertEquals(MAX_ID + 1, firstCustomer.getId().longValue());
+        assertEquals(MAX_ID + 2, secondCustomer.getId().longValue());
+        verify(statement, times(1)).executeQuery(anyString());
+
+        factory.refreshMaxIds();
+        Customer thirdCustomer = ObjectFactory.newCustomer();
+        createLoaders(Customer.class).get(0).add(thirdCustomer);
+        assertEquals(MAX_ID + 3, thirdCustomer.getId().longValue());
+        verify(statement, times(2)).executeQuery(anyString());
+    }
+
+    @Test
+    public void testIdsAreKeptPerSchema() throws Exception {
+        Connection otherConnection = mock(Connection.class);
+        Statement otherStatement = mock(Statement.class);
+        ResultSet otherResultSet = mock(ResultSet.class);
+        when(otherResultSet.first()).thenReturn(true);
+        when(otherResultSet.getLong(1)).thenReturn(OTHER_MAX_ID);
+        when(otherStatement.executeQuery(anyString())).thenReturn(otherResultSet);
+        when(otherConnection.createStatement()).thenReturn(otherStatement);
+        when(otherConnection.getCatalog()).thenReturn("second");
+
+        Customer firstCustomer = ObjectFactory.newCustomer();
+        Customer secondCustomer = ObjectFactory.newCustomer();
+        createLoaders(Customer.class).get(0).add(firstCustomer);
+        createLoaders(Customer.class, otherConnection).get(0).add(secondCustomer);
+
+        assertEquals(MAX_ID + 1, firstCustomer.getId().longValue());
+        assertEquals(OTHER_MAX_ID + 1, secondCustomer.getId().longValue());
+    }
+
+    private List<SingleInfileObjectLoader<Object>> createLoaders(Class<?> aClass) {
+        return createLoaders(aClass, connection);
+    }
+
+    private List<SingleInfileObjectLoader<Object>> createLoaders(Class<?> aClass, Connection aConnection) {
+        return factory.createLoaders(aClass, aConnection, factory.getSegmentPool(), factory.getIdAllocator(), false, false);
+    }
+}
@@ -153,6 +153,25 @@ public class IntHierarchicalInfileObjectLoaderTest extends AbstractIntTestForJPi
         assertNull(customer.getId());
     }
 
+    @Test
+    public void testPrepare() throws Exception {
+        Customer first = ObjectFactory.newCustomer();
+        this.hierarchicalInfileObjectLoader.persist(first);
+        this.hierarchicalInfileObjectLoader.flush();
+
+        HierarchicalInfileObjectLoader preparedLoader = new HierarchicalInfileObjectLoader();
+        preparedLoader.setConnection(this.connection);
+        preparedLoader.prepare(Customer.class);
+        Customer second = ObjectFactory.newCustomer();
+        preparedLoader.persist(second);
+        preparedLoader.close();
+
+        assertEquals(first.getId() + 1, second.getId().longValue());
+        Product lastProduct = Iterables.getLast(first.getProducts());
+        assertEquals(lastProduct.getId() + 1, second.getProducts().get(0).getId().longValue());
+        assertEquals(2, this.jdbcTemplate.queryForInt("select count(*) from customer"));
+    }
+
     @Test
     public void testEventCallback() {
         HierarchicalInfileObjectLoader.CallBack callBack = mock(HierarchicalInfileObjectLoader.CallBack.class);
@@ -1,29 +1,57 @@
 package com.opower.persistence.jpile.loader;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
 import com.mysql.jdbc.Statement;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSegmentPool;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.Data;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -83,6 +111,104 @@ public class SingleInfileObjectLoaderBuilderTest {
         ));
     }
 
+    @Test
+    public void testBinaryColumnsAreUnhexed() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().build();
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data (id,@hexmd5,name) SET md5=unhex(@hexmd5)",
+                     dataLoader.loadInfileSql);
+    }
+
+    @Test
+    public void testRawBinaryColumns() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().useRawBinary(true).build();
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data (id,md5,name) ", dataLoader.loadInfileSql);
+
+        Data data = new Data();
+        data.setName("raw");
+        data.setMd5(new byte[]{'a', '\\', 'b'});
+        dataLoader.add(data);
+        assertEquals("124\ta\\\\b\traw",
+                CharStreams.toString(new InputStreamReader(dataLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    @Test
+    public void testRowEncoderIsGenerated() throws Exception {
+        RowEncoder rowEncoder = objectLoader.getRowEncoder();
+        assertEquals(Customer.class.getPackage(), rowEncoder.getClass().getPackage());
+        assertTrue(rowEncoder.getClass().getName().startsWith(Customer.class.getName() + "$JpileRowEncoder"));
+    }
+
+    @Test
+    public void testRowEncoderClassIsGeneratedOnce() throws Exception {
+        SingleInfileObjectLoader<Customer> otherLoader = new SingleInfileObjectLoaderBuilder<>(Customer.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+
+        assertNotSame(objectLoader.getRowEncoder(), otherLoader.getRowEncoder());
+        assertEquals(objectLoader.getRowEncoder().getClass(), otherLoader.getRowEncoder().getClass());
+    }
+
+    @Test
+    public void testColumnCodecs() throws Exception {
+        SingleInfileObjectLoader<Contact> contactLoader = new SingleInfileObjectLoaderBuilder<>(Contact.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+        Customer customer = new Customer();
+        customer.setId(7L);
+        Contact contact = new Contact();
+        contact.setContactPK(new Contact.ContactPK(customer, "first"));
+        contact.setLastName("last");
+        contact.setType(Contact.Type.SECONDARY);
+        contactLoader.add(contact);
+        // Enum names, embedded nulls, then the customer's id as a foreign key
+        assertEquals("last\tSECONDARY\t\\N\t\\N\t\\N\t\\N\t\\N\t7\tfirst",
+                     CharStreams.toString(new InputStreamReader(contactLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    @Test
+    public void testJodaValuesOfUndeclaredType() throws Exception {
+        SingleInfileObjectLoader<Event> eventLoader = new SingleInfileObjectLoaderBuilder<>(Event.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+        Event event = new Event();
+        event.setId(1L);
+        event.setHappenedOn(new LocalDateTime(2016, 2, 29, 13, 5, 9));
+        event.setHappenedAt(new DateTime(2016, 2, 29, 13, 5, 9, DateTimeZone.UTC));
+        eventLoader.add(event);
+        String row = CharStreams.toString(new InputStreamReader(eventLoader.getInfileDataBuffer().asInputStream()));
+        // @Temporal(DATE) applies to the LocalDateTime, the instant without an annotation is written as a timestamp
+        assertEquals(ImmutableSet.of("1", "2016-02-29", new DateTime(2016, 2, 29, 13, 5, 9, DateTimeZone.UTC)
+                             .toDateTime(DateTimeZone.getDefault()).toString("yyyy-MM-dd HH:mm:ss")),
+                     ImmutableSet.copyOf(row.split("\t")));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testDateWithoutTemporalFailsWhenBuilding() throws Exception {
+        new SingleInfileObjectLoaderBuilder<>(Reminder.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+    }
+
+    private SingleInfileObjectLoaderBuilder<Data> newDataLoaderBuilder() {
+        return new SingleInfileObjectLoaderBuilder<>(Data.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer());
+    }
+
     @Test
     public void testFlush() throws Exception {
         Customer customer = new Customer();
@@ -93,6 +219,111 @@ public class SingleInfileObjectLoaderBuilderTest {
         verify(statement).execute(anyString());
     }
 
+    @Test
+    public void testFlushAsync() throws Exception {
+        List<String> loaded = recordLoadedRows();
+        InfileDataBuffer firstBuffer = objectLoader.getInfileDataBuffer();
+        objectLoader.add(new Customer());
+        FlushResult result = objectLoader.flushAsync().get();
+
+        assertEquals(ImmutableList.of("124\t\\N\t\\N"), loaded);
+        assertEquals(9, result.getBytes());
+        assertNotSame(firstBuffer, objectLoader.getInfileDataBuffer());
+        assertEquals(0, objectLoader.getInfileDataBuffer().getInfileSize());
+    }
+
+    @Test
+    public void testAsyncFlushOfStagedRowsKeepsEveryRow() throws Exception {
+        List<String> loaded = recordLoadedRows();
+        SingleInfileObjectLoader<Customer> stagingLoader = new SingleInfileObjectLoaderBuilder<>(Customer.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer(Charsets.UTF_8, 100, 50))
+                .useAsyncFlush(true)
+                .build();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            stagingLoader.add(new Customer());
+            expected.add((AUTO_GENERATED_ID + i + 1) + "\t\\N\t\\N");
+        }
+        stagingLoader.flush();
+
+        // Rows are staged outside the infile, so the row that did not fit goes into the buffer swapped in
+        assertTrue(loaded.size() > 1);
+        assertEquals(Joiner.on('\n').join(expected), Joiner.on('\n').join(loaded));
+    }
+
+    @Test
+    public void testBuffersAreReleasedWhenFlushFails() throws Exception {
+        InfileSegmentPool pool = new InfileSegmentPool(InfileSegmentPool.MIN_SEGMENT_SIZE, false);
+        SingleInfileObjectLoader<Customer> pooledLoader = new SingleInfileObjectLoaderBuilder<>(Customer.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer(Charsets.UTF_8, InfileSegmentPool.MIN_SEGMENT_SIZE, pool))
+                .build();
+        when(statement.execute(anyString())).thenThrow(new SQLException("failed"));
+        pooledLoader.setAsyncFlush(true);
+        pooledLoader.add(new Customer());
+        pooledLoader.flushAsync();
+        pooledLoader.add(new Customer());
+        try {
+            pooledLoader.releaseBuffers();
+            fail("The failed flush should be rethrown");
+        }
+        catch (RuntimeException e) {
+            assertEquals(0, pool.getBytesInUse());
+        }
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        List<String> loaded = recordLoadedRows();
+        objectLoader.streamingConnection = new StreamingConnection();
+        objectLoader.setStreaming(0, 1);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            objectLoader.add(new Customer());
+            expected.add((AUTO_GENERATED_ID + i + 1) + "\t\\N\t\\N");
+        }
+        objectLoader.flush();
+
+        // One statement ends once the first 64kB have been streamed, the rest goes out on flush
+        assertEquals(2, loaded.size());
+        assertEquals(Joiner.on('\n').join(expected), Joiner.on('\n').join(loaded));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingNeedsASharedConnection() {
+        objectLoader.setStreaming(0, 1);
+    }
+
+    /**
+     * Makes the statement read the stream it is given, like the driver does.
+     *
+     * @return the contents of the streams read by each statement
+     */
+    private List<String> recordLoadedRows() throws Exception {
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<InputStream> inputStream = new AtomicReference<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                inputStream.set((InputStream) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(statement).setLocalInfileInputStream(any(InputStream.class));
+        when(statement.execute(anyString())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Exception {
+                loaded.add(CharStreams.toString(new InputStreamReader(inputStream.get(), Charsets.UTF_8)));
+                return false;
+            }
+        });
+        return loaded;
+    }
+
     /**
      * An enum used for testing.
      */
@@ -178,4 +409,71 @@ public class SingleInfileObjectLoaderBuilderTest {
         assertEquals("Enum value to append", enumObject.name(),
                 objectLoader.getEnumValueToAppend(TestClass.class.getMethod("getEnum"), enumObject));
     }
+
+    /**
+     * An entity whose date columns are declared as {@link Object}.
+     */
+    @Entity
+    @Table(name = "event")
+    public static class Event {
+        private Long id;
+        private Object happenedOn;
+        private Object happenedAt;
+
+        @Id
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        @Column(name = "happened_on")
+        @Temporal(TemporalType.DATE)
+        public Object getHappenedOn() {
+            return happenedOn;
+        }
+
+        public void setHappenedOn(Object happenedOn) {
+            this.happenedOn = happenedOn;
+        }
+
+        @Column(name = "happened_at")
+        public Object getHappenedAt() {
+            return happenedAt;
+        }
+
+        public void setHappenedAt(Object happenedAt) {
+            this.happenedAt = happenedAt;
+        }
+    }
+
+    /**
+     * An entity with a date column that is missing {@link Temporal}.
+     */
+    @Entity
+    @Table(name = "reminder")
+    public static class Reminder {
+        private Long id;
+        private Date due;
+
+        @Id
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        @Column(name = "due")
+        public Date getDue() {
+            return due;
+        }
+
+        public void setDue(Date due) {
+            this.due = due;
+        }
+    }
 }
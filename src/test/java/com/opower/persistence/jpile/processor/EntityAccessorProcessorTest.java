@@ -0,0 +1,144 @@
+package com.opower.persistence.jpile.processor;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.opower.persistence.jpile.reflection.EntityAccessor;
+import com.opower.persistence.jpile.reflection.EntityMetadata;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiles a small entity with {@link EntityAccessorProcessor} and checks the generated accessor.
+ *
+ * @author amir.raminfar
+ * @since 1.7.12
+ */
+public class EntityAccessorProcessorTest {
+    private static final String WIDGET = "package widgets;\n"
+            + "import javax.persistence.*;\n"
+            + "@Entity\n"
+            + "@Table(name = \"widget\")\n"
+            + "public class Widget {\n"
+            + "    private Long id;\n"
+            + "    private int count;\n"
+            + "    private Widget parent;\n"
+            + "    @Id\n"
+            + "    @Column(name = \"id\")\n"
+            + "    public Long getId() { return id; }\n"
+            + "    public void setId(Long id) { this.id = id; }\n"
+            + "    @Column(name = \"count\")\n"
+            + "    int getCount() { return count; }\n"
+            + "    void setCount(int count) { this.count = count; }\n"
+            + "    @ManyToOne\n"
+            + "    @JoinColumn(name = \"parent_id\")\n"
+            + "    public Widget getParent() { return parent; }\n"
+            + "    public Widget withParent(Widget parent) { this.parent = parent; return this; }\n"
+            + "    public String getName() { return \"not persisted\"; }\n"
+            + "}\n";
+
+    private File folder;
+    private Class<?> widgetClass;
+
+    @Before
+    public void compile() throws Exception {
+        folder = Files.createTempDir();
+        File sources = new File(folder, "sources");
+        File classes = new File(folder, "classes");
+        Files.createParentDirs(new File(classes, "widgets"));
+        File widget = new File(new File(sources, "widgets"), "Widget.java");
+        Files.createParentDirs(widget);
+        Files.write(WIDGET, widget, Charsets.UTF_8);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, Charsets.UTF_8);
+        try {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjects(widget);
+            JavaCompiler.CompilationTask task = compiler.getTask(
+                    null, fileManager, null,
+                    ImmutableList.of("-classpath", System.getProperty("java.class.path"), "-d", classes.getPath(),
+                                     "-s", sources.getPath()),
+                    null, units);
+            task.setProcessors(Arrays.asList(new EntityAccessorProcessor()));
+            assertTrue("Widget did not compile", task.call());
+        }
+        finally {
+            fileManager.close();
+        }
+
+        ClassLoader classLoader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+        widgetClass = Class.forName("widgets.Widget", true, classLoader);
+    }
+
+    @After
+    public void deleteFolder() {
+        delete(folder);
+    }
+
+    @Test
+    public void testAccessor() throws Exception {
+        EntityAccessor accessor = EntityAccessor.forClass(widgetClass);
+        assertNotNull(accessor);
+        assertEquals(ImmutableList.of("getId", "getCount", "getParent"), accessor.getGetterNames());
+        assertEquals(-1, accessor.indexOf("getName"));
+        assertEquals("setCount", accessor.getSetterName(1));
+        assertFalse(accessor.hasSetter(2));
+
+        Object widget = widgetClass.getDeclaredConstructor().newInstance();
+        Object parent = widgetClass.getDeclaredConstructor().newInstance();
+        widgetClass.getMethod("withParent", widgetClass).invoke(widget, parent);
+        accessor.set(widget, 1, 3);
+        assertEquals(3, accessor.get(widget, 1));
+        assertEquals(parent, accessor.get(widget, 2));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPropertyWithoutSetter() throws Exception {
+        EntityAccessor.forClass(widgetClass).set(widgetClass.getDeclaredConstructor().newInstance(), 2, null);
+    }
+
+    @Test
+    public void testEntityMetadataUsesAccessor() throws Exception {
+        EntityMetadata metadata = new PersistenceAnnotationInspector().entityMetadata(widgetClass);
+        assertNotNull(metadata.getAccessor());
+
+        Object widget = widgetClass.getDeclaredConstructor().newInstance();
+        assertNull(metadata.getIdValue(widget));
+        metadata.setIdValue(widget, 5L);
+        assertEquals(5L, metadata.getIdValue(widget));
+        assertNull(metadata.getDependent(widgetClass.getMethod("getParent"), widget));
+    }
+
+    @Test
+    public void testNoAccessorWithoutProcessor() {
+        assertNull(EntityAccessor.forClass(String.class));
+        assertNull(new PersistenceAnnotationInspector().entityMetadata(getClass()).getAccessor());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,6 +1,6 @@
 package com.opower.persistence.jpile.reflection;
 
-
+import com.google.common.cache.CacheStats;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
@@ -40,6 +40,32 @@ public class CachedProxyTest {
         assertEquals(1, theImplementation.returnsNull);
     }
 
+    @Test
+    public void testWithMultipleParams() {
+        assertEquals(FOO, cached.doSomethingWithTwoObjects(FOO, 1));
+        assertEquals(FOO, cached.doSomethingWithTwoObjects(FOO, 1));
+        assertEquals(FOO, cached.doSomethingWithTwoObjects(FOO, 2));
+        assertEquals(2, theImplementation.doSomethingWithTwoObjects);
+    }
+
+    @Test
+    public void testUncacheableArgumentsAreNotCached() {
+        Object notCacheable = new Object();
+        cached.doSomethingWithObject(notCacheable);
+        cached.doSomethingWithObject(notCacheable);
+        assertEquals(2, theImplementation.doSomethingWithObject);
+    }
+
+    @Test
+    public void testStats() {
+        cached.doSomethingWithObject(FOO);
+        cached.doSomethingWithObject(FOO);
+        cached.doSomethingWithObject(BAR);
+        CacheStats stats = CachedProxy.stats(cached);
+        assertEquals(1, stats.hitCount());
+        assertEquals(2, stats.missCount());
+    }
+
     /**
      * A fake class for testing.
      */
@@ -47,6 +73,7 @@ public class CachedProxyTest {
         int doSomethingWithVarParams = 0;
         int doSomethingWithObject = 0;
         int returnsNull = 0;
+        int doSomethingWithTwoObjects = 0;
 
         Object doSomethingWithVarParams(Object... args) {
             doSomethingWithVarParams++;
@@ -58,6 +85,11 @@ public class CachedProxyTest {
             return BAR;
         }
 
+        Object doSomethingWithTwoObjects(Object a, Object b) {
+            doSomethingWithTwoObjects++;
+            return FOO;
+        }
+
         Object returnsNull(Object... args) {
             returnsNull++;
             return null;
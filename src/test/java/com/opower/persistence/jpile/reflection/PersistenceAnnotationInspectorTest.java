@@ -1,15 +1,21 @@
 package com.opower.persistence.jpile.reflection;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.util.List;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Id;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTables;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
 import com.opower.persistence.jpile.sample.Product;
@@ -18,7 +24,9 @@ import org.junit.Test;
 import static com.google.common.collect.ImmutableList.copyOf;
 import static junit.framework.Assert.assertNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -144,6 +152,95 @@ public class PersistenceAnnotationInspectorTest {
         assertEquals("Number of found methods", 1, methods.size());
     }
 
+    @Test
+    public void testEntityMetadata() throws Exception {
+        EntityMetadata metadata = annotationInspector.entityMetadata(Product.class);
+        assertSame(metadata, annotationInspector.entityMetadata(Product.class));
+        assertEquals("product", metadata.getTableName());
+        assertEquals(Product.class.getMethod("getId"), metadata.getIdGetter());
+        assertEquals(ImmutableSet.of(Product.class.getMethod("getCustomer"), Product.class.getMethod("getSupplier")),
+                     metadata.getChildDependents());
+        assertEquals(ImmutableSet.of(Customer.class.getMethod("getProducts"), Customer.class.getMethod("getContacts")),
+                     annotationInspector.entityMetadata(Customer.class).getParentDependents());
+
+        Product product = new Product();
+        assertNull(metadata.getIdValue(product));
+        metadata.setIdValue(product, 5L);
+        assertEquals(5L, metadata.getIdValue(product));
+        assertFalse(annotationInspector.entityMetadata(String.class).hasTable());
+        assertNull(annotationInspector.entityMetadata(String.class).getIdValue("not an entity"));
+    }
+
+    @Test
+    public void testEntityMetadataScan() throws Exception {
+        EntityMetadata metadata = annotationInspector.entityMetadata(Contact.class);
+        assertEquals(ImmutableList.of(Contact.class.getMethod("getAddress"), Contact.class.getMethod("getContactPK")),
+                     metadata.getEmbeds());
+        assertEquals(1, annotationInspector.entityMetadata(Product.class).getAnnotatedMethods(Id.class).size());
+        assertEquals(2, annotationInspector.entityMetadata(Product.class).getJoinColumns().size());
+    }
+
+    @Test
+    public void testMetadataSnapshot() throws Exception {
+        EntityMetadataSnapshot snapshot = new EntityMetadataSnapshot();
+        annotationInspector.useSnapshot(snapshot);
+        EntityMetadata scanned = annotationInspector.entityMetadata(Customer.class);
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.isModified());
+
+        File file = File.createTempFile("jpile", ".snapshot");
+        try {
+            snapshot.write(file);
+            assertFalse(snapshot.isModified());
+
+            EntityMetadataSnapshot read = EntityMetadataSnapshot.read(file);
+            PersistenceAnnotationInspector inspector = new PersistenceAnnotationInspector();
+            inspector.useSnapshot(read);
+            EntityMetadata loaded = inspector.entityMetadata(Customer.class);
+            assertFalse(read.isModified());
+            assertEquals(scanned.getIdGetter(), loaded.getIdGetter());
+            assertEquals(scanned.getParentDependents(), loaded.getParentDependents());
+            assertEquals(scanned.getColumns().size(), loaded.getColumns().size());
+            for (int i = 0; i < scanned.getColumns().size(); i++) {
+                assertEquals(scanned.getColumns().get(i).getMethod(), loaded.getColumns().get(i).getMethod());
+                assertEquals(scanned.getColumns().get(i).getAnnotation(), loaded.getColumns().get(i).getAnnotation());
+            }
+        }
+        finally {
+            file.delete();
+        }
+        assertEquals(0, EntityMetadataSnapshot.read(file).size());
+    }
+
+    @Test
+    public void testMetadataSnapshotOfAnotherFormatIsEmpty() throws Exception {
+        File file = File.createTempFile("jpile", ".snapshot");
+        try {
+            Files.write("not a snapshot", file, Charsets.UTF_8);
+            assertEquals(0, EntityMetadataSnapshot.read(file).size());
+            Files.write(new byte[] {0, 0, 0, 2, 0, 0, 0, 1}, file);
+            assertEquals(0, EntityMetadataSnapshot.read(file).size());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMetadataSnapshotFingerprint() {
+        String fingerprint = EntityMetadataSnapshot.fingerprint(Customer.class);
+        assertNotNull(fingerprint);
+        assertTrue(fingerprint.startsWith(Customer.class.getName() + "@"));
+        assertNull(EntityMetadataSnapshot.fingerprint(String.class));
+    }
+
+    @Test
+    public void testEntityMetadataIsNotProxied() {
+        PersistenceAnnotationInspector cachedInspector = CachedProxy.create(new PersistenceAnnotationInspector());
+        assertSame(cachedInspector.entityMetadata(Customer.class), cachedInspector.entityMetadata(Customer.class));
+        assertEquals("customer", cachedInspector.entityMetadata(Customer.class).getTableName());
+    }
+
     @Test
     public void testFindAnnotation() {
         assertNotNull(annotationInspector.findAnnotation(Customer.class, Table.class));